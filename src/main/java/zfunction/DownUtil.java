@@ -5,29 +5,52 @@ import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DownUtil {
 
+    // 每个线程的缓冲区大小，以及写入多少字节 force 一次
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long FORCE_EVERY = 16 * 1024 * 1024;
+    // 剩余少于 2 * MIN_SPLIT 的范围不再分割，以及每个范围最多重试的次数
+    private static final long MIN_SPLIT = 1024 * 1024;
+    private static final int MAX_RETRIES = 3;
+
     // 定义下载资源的路径及文件名
     private String path;
     // 指定所下载的文件的保存路径及文件名
     private String targetFile;
     // 定义下载的线程对象
     private DownThread[] threads;
-    // 定义下载的文件的总大小
-    private int fileSize;
+    // 定义下载的文件的总大小，超过 2GB 的文件需要 long
+    private long fileSize;
     // 定义需要使用多少线程下载资源
     private int threadNum;
     // 线程计数同步辅助
     private CountDownLatch latch;
+    // 下载失败的线程数
+    private final AtomicInteger failed = new AtomicInteger();
+    // 动态分配每个线程下载的范围
+    private RangeScheduler scheduler;
+    // 预计还需要超过这么长时间才能下载完的范围，由空闲的线程再请求一次，小于 0 时不使用
+    private final long hedgeAfterMillis;
 
     public DownUtil(String path, String targetFile, int threadNum, CountDownLatch latch) {
+        this(path, targetFile, threadNum, latch, -1);
+    }
+
+    /**
+     * @param hedgeAfterMillis 所有范围都分不动（剩余少于 2 * MIN_SPLIT）时，预计还需要超过这么长时间才能下载完的范围，由空闲
+     *                         的线程从当前位置再请求一次，两个连接谁先下载完就用谁的，小于 0 时不使用
+     */
+    public DownUtil(String path, String targetFile, int threadNum, CountDownLatch latch, long hedgeAfterMillis) {
         this.path = path;
         this.threadNum = threadNum;
         // 初始化threads数组
         threads = new DownThread[threadNum];
         this.targetFile = targetFile;
         this.latch = latch;
+        this.hedgeAfterMillis = hedgeAfterMillis;
     }
 
     public void download() throws Exception {
@@ -48,103 +71,143 @@ public class DownUtil {
         conn.setRequestProperty("Charset", "UTF-8");
         conn.setRequestProperty("Connection", "Keep-Alive");
 
+        // 与 DownUtil2 相同，只请求第一个字节：返回 206 说明服务器支持 Range 请求，文件大小在 Content-Range（bytes 0-0/文件大小）
+        // 中。不带 Range 的 GET 在断开之前服务器就已经发送了一部分文件
+        conn.setRequestProperty("Range", "bytes=0-0");
+
         int code = conn.getResponseCode();
-        if(code == 200){
+        String contentRange = conn.getHeaderField("Content-Range");
+        if(code == 206 && contentRange != null && contentRange.indexOf('/') > 0){
             // 得到数据的长度，即文件大小
-            fileSize = conn.getContentLength();
+            fileSize = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
             System.out.println("文件总长度："+fileSize);
         }
         conn.disconnect();
+        if(code != 206){
+            // 下载线程都使用 Range 请求，服务器不支持时不能启动下载线程，latch 不会减到 0，所以直接抛出异常
+            throw new RuntimeException("服务器不支持 Range 请求，返回code=" + code);
+        }
 
-        if(fileSize > 0){
-            // 平均每个线程下载的文件大小，计算每个线程下载的开始位置与结束位置。这里不必一定要加1，不加1也可以
-            int currentPartSize = fileSize / threadNum + 1;
-
-            /**
-             * RandomAccessFile 类的父类是Object，没有继承字节流、字符流家族中任何一个类。并且它实现了 DataInput、DataOutput
-             * 这两个接口，也就意味着这个类既可以读也可以写。适用于多线程下载与上传，随机读写文件。
-             *
-             * 1、它是JAVA I/O流体系中功能最丰富的文件内容访问类，它提供了众多方法来访问文件内容。
-             * 2、由于可以自由访问文件的任意位置，所以如果需要访问文件的部分内容，RandomAccessFile将是更好的选择。
-             * 3、可以用来访问保存数据记录的文件，文件的记录的大小不必相同，但是其大小和位置必须是可知的。
-             *
-             * 以下就是在客户端本地创建出来一个大小跟服务器端一样大小的临时文件。可读可写
-             */
-            RandomAccessFile file = new RandomAccessFile(targetFile, "rw");
-
-            // 设置本地文件的大小
-            file.setLength(fileSize);
-            file.close();
-
-            for (int i = 0; i < threadNum; i++) {
-                // 计算每条线程的下载的开始位置，即是以倍数为开始位置
-                int startPos = i * currentPartSize;
-                // 每个线程下载的结束位置
-                int endPos = startPos + currentPartSize - 1;
-                if (i == threadNum-1) {
-                    //最后一个线程下载的长度稍微长一点
-                    endPos = fileSize;
-                }
-                System.out.println("线程" + i + "下载:" + startPos + "字节~" + endPos + "字节");
-                threads[i] = new DownThread(i, startPos, endPos);
-                threads[i].start();
-            }
+        if(fileSize <= 0){
+            // 不能启动下载线程，latch 不会减到 0，所以直接抛出异常
+            throw new RuntimeException("获取文件大小异常！");
+        }
+        // 开始时平均分成 threadNum 个范围，之后由下载完的线程分走其他线程剩下的部分，参考 RangeScheduler
+        scheduler = new RangeScheduler(fileSize, threadNum, MIN_SPLIT, MAX_RETRIES, hedgeAfterMillis);
+
+        /**
+         * RandomAccessFile 类的父类是Object，没有继承字节流、字符流家族中任何一个类。并且它实现了 DataInput、DataOutput
+         * 这两个接口，也就意味着这个类既可以读也可以写。适用于多线程下载与上传，随机读写文件。
+         *
+         * 1、它是JAVA I/O流体系中功能最丰富的文件内容访问类，它提供了众多方法来访问文件内容。
+         * 2、由于可以自由访问文件的任意位置，所以如果需要访问文件的部分内容，RandomAccessFile将是更好的选择。
+         * 3、可以用来访问保存数据记录的文件，文件的记录的大小不必相同，但是其大小和位置必须是可知的。
+         *
+         * 以下就是在客户端本地创建出来一个大小跟服务器端一样大小的临时文件。可读可写
+         */
+        RandomAccessFile file = new RandomAccessFile(targetFile, "rw");
+
+        // 设置本地文件的大小
+        file.setLength(fileSize);
+        file.close();
+
+        for (int i = 0; i < threadNum; i++) {
+            threads[i] = new DownThread(i);
+            threads[i].start();
         }
     }
 
+    /**
+     * 下载失败的线程数与重试之后仍然失败的范围数，latch.await() 返回之后不为 0 说明文件不完整。需要断点续传时使用
+     * SegmentedDownloader
+     */
+    public int failedCount() {
+        return failed.get() + (scheduler == null ? 0 : scheduler.failures());
+    }
+
+    /**
+     * 分割其他线程的范围的次数
+     */
+    public int steals() {
+        return scheduler == null ? 0 : scheduler.steals();
+    }
+
+    /**
+     * hedging 的次数
+     */
+    public int hedges() {
+        return scheduler == null ? 0 : scheduler.hedges();
+    }
+
     private class DownThread extends Thread {
         // 线程号
         private int threadId;
-        // 当前线程的下载位置
-        private int startIndex;
-        // 当前线程的下载结束位置
-        private int endIndex;
 
-        public DownThread(int threadId, int startIndex, int endIndex) {
+        public DownThread(int threadId) {
             this.threadId = threadId;
-            this.startIndex = startIndex;
-            this.endIndex = endIndex;
         }
 
         @Override
         public void run() {
-            try {
+            try (FileRangeWriter writer = new FileRangeWriter(targetFile, BUFFER_SIZE, FORCE_EVERY)) {
                 System.out.println("线程" + threadId + "正在下载...");
-
-                URL url = new URL(path);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("GET");
-
-                //请求服务器下载部分的文件的指定位置
-                conn.setRequestProperty("Range", "bytes=" + startIndex + "-" + endIndex);
-                conn.setConnectTimeout(5000);
-                int code = conn.getResponseCode();
-                System.out.println("线程" + threadId + "请求返回code=" + code);
-
-                if(code == 200){
-                    InputStream in = conn.getInputStream();
-                    RandomAccessFile raf = new RandomAccessFile(targetFile, "rwd");
-                    //随机写文件的时候定义开始写的位置，定位文件
-                    raf.seek(startIndex);
-
-                    int len = 0;
-                    byte[] buffer = new byte[1024];
-                    while ((len = in.read(buffer)) != -1) {
-                        raf.write(buffer, 0, len);
+                RangeScheduler.Range range;
+                // 下载完一个范围之后，继续领取下一个（分走其他线程剩下的部分），直到没有需要下载的部分
+                while ((range = scheduler.next()) != null) {
+                    try {
+                        download(range, writer);
+                    } catch (Exception e) {
+                        System.out.println("线程" + threadId + "下载" + range + "异常：" + e.getMessage());
+                        range.fail();
                     }
-                    in.close();
-                    raf.close();
-                    System.out.println("线程" + threadId + "下载完毕");
-                    //计数值减一
-                    latch.countDown();
-                }else {
-                    throw new RuntimeException("线程" + threadId + "下载异常！");
                 }
+                System.out.println("线程" + threadId + "下载完毕");
             } catch (Exception e) {
+                failed.incrementAndGet();
                 e.printStackTrace();
                 System.out.println(e.getMessage());
+            } finally {
+                //计数值减一。下载失败时也要减一，否则 latch.await() 会一直阻塞
+                latch.countDown();
             }
 
         }
+
+        private void download(RangeScheduler.Range range, FileRangeWriter writer) throws Exception {
+            long startIndex = range.position();
+            long endIndex = range.end() - 1;
+            System.out.println("线程" + threadId + "下载:" + startIndex + "字节~" + endIndex + "字节");
+
+            URL url = new URL(path);
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("GET");
+
+            //请求服务器下载部分的文件的指定位置
+            conn.setRequestProperty("Range", "bytes=" + startIndex + "-" + endIndex);
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(10000);
+            int code = conn.getResponseCode();
+
+            // Range 请求成功时返回 206 Partial Content，返回 200 说明服务器忽略了 Range，发送的是整个文件
+            if(code != 206){
+                conn.disconnect();
+                throw new RuntimeException("线程" + threadId + "请求返回code=" + code);
+            }
+            try (InputStream in = conn.getInputStream()) {
+                long n;
+                // 每次预留一块再写入，范围被其他线程分走一部分之后，reserve 只会预留到分割点，返回 0 时停止
+                while ((n = range.reserve(BUFFER_SIZE)) > 0) {
+                    long written = writer.transfer(in, range.position(), n, null);
+                    if (written < n) {
+                        throw new RuntimeException("线程" + threadId + "只下载了" + written + "字节！");
+                    }
+                    range.commit(n);
+                }
+            }
+            if (range.position() < endIndex + 1) {
+                // 后面的数据不再需要，不读完直接断开
+                conn.disconnect();
+            }
+        }
     }
 }
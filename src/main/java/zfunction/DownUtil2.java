@@ -1,29 +1,53 @@
 package zfunction;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DownUtil2 {
 
+    // 每个线程的缓冲区大小，以及写入多少字节 force 一次
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long FORCE_EVERY = 16 * 1024 * 1024;
+
     // 定义下载资源的路径及文件名
     private String path;
     // 指定所下载的文件的保存路径及文件名
     private String targetFile;
     // 定义下载的线程对象
     private DownThread[] threads;
-    // 定义下载的文件的总大小
-    private int fileSize;
+    // 定义下载的文件的总大小，超过 2GB 的文件需要 long
+    private long fileSize;
     // 定义需要使用多少线程下载资源
     private int threadNum;
+    // 下载失败的线程数
+    private final AtomicInteger failed = new AtomicInteger();
+    // 还没有结束的下载线程数，最后一个结束的线程通知 progress
+    private final AtomicInteger running = new AtomicInteger();
+    // 下载进度与速度，每个线程是一个分段，download 得到文件大小之后才创建
+    private volatile DownloadProgress progress;
+    private final long progressIntervalMillis;
+    private final DownloadProgress.Listener listener;
 
     public DownUtil2(String path, String targetFile, int threadNum) {
+        this(path, targetFile, threadNum, 0, null);
+    }
+
+    /**
+     * @param listener 下载过程中最多每 progressIntervalMillis 调用一次，全部结束时再调用一次，可以为 null
+     */
+    public DownUtil2(String path, String targetFile, int threadNum, long progressIntervalMillis,
+                     DownloadProgress.Listener listener) {
         this.path = path;
         this.threadNum = threadNum;
         // 初始化threads数组
         threads = new DownThread[threadNum];
         this.targetFile = targetFile;
+        this.progressIntervalMillis = progressIntervalMillis;
+        this.listener = listener;
     }
 
     public void download() throws Exception {
@@ -44,17 +68,29 @@ public class DownUtil2 {
         conn.setRequestProperty("Charset", "UTF-8");
         conn.setRequestProperty("Connection", "Keep-Alive");
 
+        // 只请求第一个字节：返回 206 说明服务器支持 Range 请求，文件大小在 Content-Range（bytes 0-0/文件大小）中。
+        // 不带 Range 的 GET 在断开之前服务器就已经发送了一部分文件
+        conn.setRequestProperty("Range", "bytes=0-0");
+
         int code = conn.getResponseCode();
-        if(code == 200){
+        String contentRange = conn.getHeaderField("Content-Range");
+        if(code == 206 && contentRange != null && contentRange.indexOf('/') > 0){
             // 得到数据的长度，即文件大小
-            fileSize = conn.getContentLength();
+            fileSize = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
             System.out.println("文件总长度："+fileSize);
         }
         conn.disconnect();
+        if(code != 206){
+            // 服务器不支持 Range 时，每个线程都只能从头下载整个文件
+            throw new RuntimeException("服务器不支持 Range 请求，返回code=" + code);
+        }
 
         if(fileSize > 0){
-            // 平均每个线程下载的文件大小，计算每个线程下载的开始位置与结束位置。这里不必一定要加1，不加1也可以
-            int currentPartSize = fileSize / threadNum + 1;
+            // 平均每个线程下载的文件大小（向上取整），计算每个线程下载的开始位置与结束位置
+            long currentPartSize = (fileSize + threadNum - 1) / threadNum;
+            // 向上取整之后可能用不了 threadNum 个分段（例如 9 字节 4 个线程时每段 3 字节，只有 3 段），多出的线程不启动，
+            // 否则会请求 startPos 超过文件末尾的范围，得到 416
+            int parts = (int) ((fileSize + currentPartSize - 1) / currentPartSize);
 
             /**
              * RandomAccessFile 类的父类是Object，没有继承字节流、字符流家族中任何一个类。并且它实现了 DataInput、DataOutput
@@ -72,45 +108,65 @@ public class DownUtil2 {
             file.setLength(fileSize);
             file.close();
 
-            for (int i = 0; i < threadNum; i++) {
+            progress = new DownloadProgress(fileSize, parts, progressIntervalMillis, listener);
+            running.set(parts);
+            for (int i = 0; i < parts; i++) {
                 // 计算每条线程的下载的开始位置，即是以倍数为开始位置
-                int startPos = i * currentPartSize;
-                // 每个线程使用一个RandomAccessFile进行下载
-                RandomAccessFile currentPart = new RandomAccessFile(targetFile, "rw");
-                // 定位该线程的下载位置
-                currentPart.seek(startPos);
+                long startPos = i * currentPartSize;
+                // 最后一个线程的范围到文件末尾为止
+                long partSize = Math.min(currentPartSize, fileSize - startPos);
+                // 每个线程使用一个FileRangeWriter进行下载，写入时指定位置，不需要seek
+                FileRangeWriter currentPart = new FileRangeWriter(targetFile, BUFFER_SIZE, FORCE_EVERY);
                 // 创建下载线程
-                threads[i] = new DownThread(i, startPos, currentPartSize, currentPart);
+                threads[i] = new DownThread(i, startPos, partSize, currentPart);
                 // 启动下载线程
                 threads[i].start();
             }
         }
     }
 
+    /**
+     * 等待所有下载线程结束
+     */
+    public void await() throws InterruptedException {
+        for (DownThread thread : threads) {
+            if (thread != null) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * 下载失败的线程数，await 返回之后不为 0 说明文件不完整
+     */
+    public int failedCount() {
+        return failed.get();
+    }
+
     // 获取下载的完成百分比
     public double getCompleteRate() {
-        // 统计多条线程已经下载的总大小
-        int sumSize = 0;
-        for (int i = 0; i < threadNum; i++)
-        {
-            sumSize += threads[i].length;
-        }
-        // 返回已经完成的百分比
-        return sumSize * 1.0 / fileSize;
+        // 各个线程下载的字节数记录在 DownloadProgress 的 LongAdder 中，任何线程读取都是最新的值
+        DownloadProgress current = progress;
+        return current == null ? 0 : current.completeRate();
+    }
+
+    /**
+     * 下载进度，包括速度，剩余时间与每个连接的速度，download 之前为 null
+     */
+    public DownloadProgress getProgress() {
+        return progress;
     }
 
     private class DownThread extends Thread {
         // 当前线程的下载位置
-        private int startPos;
+        private long startPos;
         // 定义当前线程负责下载的文件大小
-        private int currentPartSize;
+        private long currentPartSize;
         // 当前线程需要下载的文件块
-        private RandomAccessFile currentPart;
-        // 定义已经该线程已下载的字节数
-        public int length;
+        private FileRangeWriter currentPart;
         public int threadId;
 
-        public DownThread(int threadId, int startPos, int currentPartSize,RandomAccessFile currentPart) {
+        public DownThread(int threadId, long startPos, long currentPartSize, FileRangeWriter currentPart) {
             this.startPos = startPos;
             this.currentPartSize = currentPartSize;
             this.currentPart = currentPart;
@@ -134,29 +190,43 @@ public class DownUtil2 {
                 conn.setRequestProperty("Accept-Language", "zh-CN");
                 conn.setRequestProperty("Charset", "UTF-8");
 
+                // 只请求该线程负责的那部分文件，服务器只发送这部分数据（原来是从头下载，再 skip 掉 startPos 个字节）
+                long endPos = startPos + currentPartSize - 1;
+                conn.setRequestProperty("Range", "bytes=" + startPos + "-" + endPos);
+
                 int code = conn.getResponseCode();
-                if(code == 200){
+                // 返回 206 并且 Content-Range 与请求的范围一致，才是这部分的数据
+                String expected = "bytes " + startPos + "-" + endPos + "/" + fileSize;
+                if(code == 206 && expected.equals(conn.getHeaderField("Content-Range"))){
                     InputStream inStream = conn.getInputStream();
 
-                    // 跳过startPos个字节，表明该线程只下载自己负责哪部分文件。
-                    inStream.skip(this.startPos);
-                    byte[] buffer = new byte[1024];
-                    int hasRead = 0;
-
-                    // 读取网络数据，并写入本地文件
-                    while (length < currentPartSize && (hasRead = inStream.read(buffer)) != -1) {
-                        currentPart.write(buffer, 0, hasRead);
-                        // 累计该线程下载的总大小
-                        length += hasRead;
-                    }
-                    currentPart.close();
+                    // 读取网络数据，并写入本地文件，每写一次文件累计该线程下载的总大小
+                    long written = currentPart.transfer(inStream, startPos, currentPartSize,
+                            n -> progress.add(threadId, n));
                     inStream.close();
+                    if (written != currentPartSize) {
+                        throw new RuntimeException("线程" + threadId + "只下载了" + written + "字节！");
+                    }
                 }else {
-                    throw new RuntimeException("线程" + threadId + "下载异常！");
+                    String contentRange = conn.getHeaderField("Content-Range");
+                    conn.disconnect();
+                    throw new RuntimeException("线程" + threadId + "下载异常！code=" + code + "，Content-Range="
+                            + contentRange);
                 }
             }catch (Exception e) {
+                failed.incrementAndGet();
                 e.printStackTrace();
                 System.out.println(e.getMessage());
+            } finally {
+                try {
+                    currentPart.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                progress.finishSegment(threadId);
+                if (running.decrementAndGet() == 0) {
+                    progress.finish();
+                }
             }
         }
     }
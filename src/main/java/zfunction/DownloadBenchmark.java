@@ -0,0 +1,243 @@
+package zfunction;
+
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 多线程下载的性能测试，从本机的 RangeHttpServer 下载 SIZE 字节的随机数据，THREADS 个线程。
+ *
+ * t1：写文件方式的对比。原来的写法：每个线程每次读 1KB，写到 "rwd" 模式的 RandomAccessFile 中（每次 write 都等待磁盘）；
+ * 现在的写法：DownUtil 与 SegmentedDownloader 使用 FileRangeWriter，256KB 的直接缓冲区，指定位置写入，每 16MB force 一次。
+ * 每种方式下载完之后都与原始数据比较。
+ * t2：连接速度不同时的对比，服务器每 4 个请求中有一个限速为 SLOW_RATE。固定分段（原来 DownUtil 的分法）时，总耗时取决于
+ * 限速的那一段；DownUtil 使用 RangeScheduler，下载完的线程分走慢的连接剩下的部分，以及再加上 hedging。
+ * t3：DownUtil2 原来的写法（每个线程不带 Range 从头下载，skip 掉前面的 startPos 个字节）与使用 Range 请求的对比，
+ * 统计服务器实际发送的字节数。原来的写法每个线程读完自己的部分就断开，但服务器在断开之前已经发送了更多的数据。
+ * 注意 "rwd" 的耗时取决于磁盘，在 tmpfs 上测量的结果没有参考意义。
+ */
+public class DownloadBenchmark {
+
+    private static final int THREADS = 4;
+    private static final int SIZE = 32 * 1024 * 1024;
+    private static final long SLOW_RATE = 2 * 1024 * 1024;
+
+    /**
+     * 原来的 DownUtil.DownThread 的写法
+     */
+    static void legacy(String path, String targetFile, int fileSize) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(targetFile, "rw")) {
+            file.setLength(fileSize);
+        }
+        int currentPartSize = fileSize / THREADS + 1;
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            int startIndex = i * currentPartSize;
+            int endIndex = Math.min(fileSize, startIndex + currentPartSize) - 1;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HttpURLConnection conn = (HttpURLConnection) new URL(path).openConnection();
+                        conn.setRequestProperty("Range", "bytes=" + startIndex + "-" + endIndex);
+                        try (InputStream in = conn.getInputStream();
+                             RandomAccessFile raf = new RandomAccessFile(targetFile, "rwd")) {
+                            raf.seek(startIndex);
+                            int len;
+                            byte[] buffer = new byte[1024];
+                            while ((len = in.read(buffer)) != -1) {
+                                raf.write(buffer, 0, len);
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+    }
+
+    /**
+     * 原来 DownUtil 的固定分段，写文件使用 FileRangeWriter
+     */
+    static void fixed(String path, String targetFile, int fileSize) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(targetFile, "rw")) {
+            file.setLength(fileSize);
+        }
+        int currentPartSize = fileSize / THREADS + 1;
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            int startIndex = i * currentPartSize;
+            int endIndex = Math.min(fileSize, startIndex + currentPartSize) - 1;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HttpURLConnection conn = (HttpURLConnection) new URL(path).openConnection();
+                        conn.setRequestProperty("Range", "bytes=" + startIndex + "-" + endIndex);
+                        try (InputStream in = conn.getInputStream();
+                             FileRangeWriter writer = new FileRangeWriter(targetFile, 256 * 1024, 0)) {
+                            writer.transfer(in, startIndex, endIndex - startIndex + 1, null);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+    }
+
+    /**
+     * 原来的 DownUtil2.DownThread 的写法：不带 Range，从头下载再 skip
+     */
+    static void skipping(String path, String targetFile, int fileSize) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(targetFile, "rw")) {
+            file.setLength(fileSize);
+        }
+        int currentPartSize = fileSize / THREADS + 1;
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            int startPos = i * currentPartSize;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HttpURLConnection conn = (HttpURLConnection) new URL(path).openConnection();
+                        try (InputStream in = conn.getInputStream();
+                             FileRangeWriter writer = new FileRangeWriter(targetFile, 256 * 1024, 0)) {
+                            long skipped = 0;
+                            while (skipped < startPos) {
+                                skipped += in.skip(startPos - skipped);
+                            }
+                            writer.transfer(in, startPos, currentPartSize, null);
+                        }
+                        conn.disconnect();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+    }
+
+    static void downUtil2(String path, String targetFile) throws Exception {
+        DownUtil2 util = new DownUtil2(path, targetFile, THREADS);
+        util.download();
+        util.await();
+        if (util.failedCount() > 0) {
+            throw new IllegalStateException(util.failedCount() + " 个线程下载失败");
+        }
+    }
+
+    static void downUtil(String path, String targetFile) throws Exception {
+        downUtil(path, targetFile, -1);
+    }
+
+    static void downUtil(String path, String targetFile, long hedgeAfterMillis) throws Exception {
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        DownUtil util = new DownUtil(path, targetFile, THREADS, latch, hedgeAfterMillis);
+        util.download();
+        latch.await();
+        if (util.failedCount() > 0) {
+            throw new IllegalStateException(util.failedCount() + " 个线程下载失败");
+        }
+        System.out.println("    分割 " + util.steals() + " 次，hedging " + util.hedges() + " 次");
+    }
+
+    interface Download {
+        void run(String path, String targetFile) throws Exception;
+    }
+
+    static long measure(String name, RangeHttpServer server, byte[] content, Download download) throws Exception {
+        Path file = Files.createTempFile("download-benchmark", ".bin");
+        try {
+            server.resetStats();
+            long begin = System.nanoTime();
+            download.run(server.url(), file.toString());
+            long millis = (System.nanoTime() - begin) / 1000000;
+            if (!Arrays.equals(content, Files.readAllBytes(file))) {
+                throw new IllegalStateException(name + " 下载的数据与原始数据不同");
+            }
+            System.out.printf("    %-28s %6d ms  %8.1f MB/s  发送 %d 字节%n", name, millis,
+                    content.length / 1048576.0 / (millis / 1000.0), server.bytesSent());
+            return millis;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public static void t1() throws Exception {
+        byte[] content = new byte[SIZE];
+        new Random(42).nextBytes(content);
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            // 预热
+            measure("warm up", server, content, DownloadBenchmark::downUtil);
+
+            long[] results = new long[3];
+            results[0] = measure("1KB + rwd（原来的写法）", server, content,
+                    (path, target) -> legacy(path, target, SIZE));
+            results[1] = measure("DownUtil", server, content, DownloadBenchmark::downUtil);
+            results[2] = measure("SegmentedDownloader", server, content,
+                    (path, target) -> {
+                        if (!new SegmentedDownloader(path, target, THREADS).download()) {
+                            throw new IllegalStateException("SegmentedDownloader 下载失败");
+                        }
+                    });
+            System.out.println("结果（ms）：" + Arrays.toString(results));
+        }
+    }
+
+    public static void t2() throws Exception {
+        byte[] content = new byte[SIZE];
+        new Random(42).nextBytes(content);
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            measure("warm up", server, content, DownloadBenchmark::downUtil);
+            server.slowEvery(4, SLOW_RATE);
+
+            long[] results = new long[3];
+            results[0] = measure("固定分段", server, content, (path, target) -> fixed(path, target, SIZE));
+            results[1] = measure("DownUtil（分割）", server, content, DownloadBenchmark::downUtil);
+            results[2] = measure("DownUtil（分割 + hedging）", server, content,
+                    (path, target) -> downUtil(path, target, 200));
+            System.out.println("结果（ms）：" + Arrays.toString(results));
+        }
+    }
+
+    public static void t3() throws Exception {
+        byte[] content = new byte[SIZE];
+        new Random(42).nextBytes(content);
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            measure("warm up", server, content, DownloadBenchmark::downUtil2);
+
+            measure("从头下载再 skip（原来的写法）", server, content, (path, target) -> skipping(path, target, SIZE));
+            long sent = server.bytesSent();
+            measure("DownUtil2（Range）", server, content, DownloadBenchmark::downUtil2);
+            System.out.println("文件大小 " + SIZE + " 字节，原来的写法发送了 " + sent + " 字节（" + sent * 100 / SIZE
+                    + "%），DownUtil2 发送了 " + server.bytesSent() + " 字节，去掉获取文件大小时请求的 1 字节之后与文件大小相等："
+                    + (server.bytesSent() - 1 == SIZE));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(THREADS + " 个线程下载 " + SIZE / 1048576 + "MB：");
+        //t1();
+        //System.out.println("每 4 个请求中有一个限速为 " + SLOW_RATE / 1048576 + "MB/s：");
+        //t2();
+        t3();
+    }
+}
@@ -0,0 +1,316 @@
+package zfunction;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 下载进度与速度的统计，多个下载线程同时更新，不需要加锁。
+ *
+ * 原来的 DownUtil2.getCompleteRate 把每个 DownThread 的 public int length 加起来，length 不是 volatile，读到的值可能是
+ * 旧的，也没有下载速度的信息。这里的做法：
+ * 1，每个分段（即每个连接）一个 LongAdder，下载线程每写一次文件调用 add，读取时再求和；
+ * 2，速度按最近 WINDOW_MILLIS 的数据计算（moving window）：add 与 snapshot 时每隔至少 SAMPLE_MILLIS 记录一次各个分段
+ * 已下载的字节数，速度 = 窗口内增加的字节数 / 窗口的时长，所以能反映当前的速度，而不是从开始到现在的平均速度；
+ * ETA = 剩余字节数 / 速度；
+ * 3，每个分段单独计算速度，可以找出慢的连接（例如某个镜像或者线路慢）；
+ * 4，listener 最多每 intervalMillis 调用一次，由调用 add 的下载线程调用（不需要额外的线程），并发时用 CAS 决定由哪个线程
+ * 调用，listener 中不要做耗时的操作；finish 时无论间隔多久都再调用一次。
+ * 采样的结果保存在不可变的 Window 对象中，用 AtomicReference 的 CAS 替换，多个线程同时采样时只有一个成功，其余的直接使用
+ * 成功的那个结果。
+ */
+public class DownloadProgress {
+
+    // 窗口越长速度越平稳，但速度变化之后（例如快的连接下载完了）要更久才能反映出来
+    private static final long WINDOW_MILLIS = 1000;
+    private static final long SAMPLE_MILLIS = 100;
+
+    public interface Listener {
+        void onProgress(Snapshot snapshot);
+    }
+
+    private final long totalBytes;
+    private final LongAdder[] segments;
+    // 每个分段开始下载与下载完的时间，0 表示还没有
+    private final AtomicLongArray startNanos;
+    private final AtomicLongArray finishNanos;
+    private final long intervalNanos;
+    private final Listener listener;
+    private final AtomicLong nextFireNanos;
+    private volatile boolean finished;
+    private final AtomicReference<Window> window;
+
+    /**
+     * 某个时刻的进度，不可变
+     */
+    public static class Snapshot {
+        private final long totalBytes;
+        private final long completedBytes;
+        private final double bytesPerSecond;
+        private final long[] segmentBytes;
+        private final double[] segmentBytesPerSecond;
+        private final boolean[] segmentFinished;
+
+        Snapshot(long totalBytes, long[] segmentBytes, double bytesPerSecond, double[] segmentBytesPerSecond,
+                 boolean[] segmentFinished) {
+            this.totalBytes = totalBytes;
+            this.segmentFinished = segmentFinished;
+            this.segmentBytes = segmentBytes;
+            this.bytesPerSecond = bytesPerSecond;
+            this.segmentBytesPerSecond = segmentBytesPerSecond;
+            long sum = 0;
+            for (long bytes : segmentBytes) {
+                sum += bytes;
+            }
+            this.completedBytes = sum;
+        }
+
+        public long totalBytes() {
+            return totalBytes;
+        }
+
+        public long completedBytes() {
+            return completedBytes;
+        }
+
+        public double completeRate() {
+            return totalBytes == 0 ? 1 : completedBytes * 1.0 / totalBytes;
+        }
+
+        /**
+         * 最近一段时间的下载速度（字节/秒）
+         */
+        public double bytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * 按照当前的速度还需要多少毫秒，速度为 0 时返回 -1
+         */
+        public long etaMillis() {
+            long remaining = totalBytes - completedBytes;
+            if (remaining <= 0) {
+                return 0;
+            }
+            return bytesPerSecond > 0 ? (long) (remaining * 1000 / bytesPerSecond) : -1;
+        }
+
+        public int segmentCount() {
+            return segmentBytes.length;
+        }
+
+        public long segmentBytes(int segment) {
+            return segmentBytes[segment];
+        }
+
+        /**
+         * 某个分段（连接）最近一段时间的下载速度（字节/秒），已经下载完的分段为它下载期间的平均速度
+         */
+        public double segmentBytesPerSecond(int segment) {
+            return segmentBytesPerSecond[segment];
+        }
+
+        public boolean segmentFinished(int segment) {
+            return segmentFinished[segment];
+        }
+
+        /**
+         * 还在下载的分段中速度最慢的一个，没有时返回 -1
+         */
+        public int slowestSegment() {
+            int slowest = -1;
+            for (int i = 0; i < segmentBytes.length; i++) {
+                if (!segmentFinished[i]
+                        && (slowest < 0 || segmentBytesPerSecond[i] < segmentBytesPerSecond[slowest])) {
+                    slowest = i;
+                }
+            }
+            return slowest;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%.1f%%，%.1f MB/s，", completeRate() * 100, bytesPerSecond / 1048576));
+            long eta = etaMillis();
+            sb.append(eta < 0 ? "剩余时间未知" : String.format("剩余 %.1f 秒", eta / 1000.0));
+            sb.append("，各连接 MB/s：[");
+            for (int i = 0; i < segmentBytesPerSecond.length; i++) {
+                sb.append(i == 0 ? "" : ", ").append(String.format("%.1f", segmentBytesPerSecond[i] / 1048576));
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    /**
+     * 最近 WINDOW_MILLIS 内的采样，不可变，采样时复制一份再追加
+     */
+    private static class Window {
+        final long[] nanos;
+        // bytes[i][segment]
+        final long[][] bytes;
+
+        Window(long[] nanos, long[][] bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        long latestNanos() {
+            return nanos[nanos.length - 1];
+        }
+
+        Window append(long now, long[] sample, long windowNanos) {
+            // 去掉窗口之外的采样，但至少保留一个作为起点
+            int from = 0;
+            while (from < nanos.length - 1 && now - nanos[from + 1] >= windowNanos) {
+                from++;
+            }
+            int size = nanos.length - from;
+            long[] newNanos = Arrays.copyOfRange(nanos, from, from + size + 1);
+            long[][] newBytes = Arrays.copyOfRange(bytes, from, from + size + 1);
+            newNanos[size] = now;
+            newBytes[size] = sample;
+            return new Window(newNanos, newBytes);
+        }
+    }
+
+    /**
+     * 不需要 listener
+     */
+    public DownloadProgress(long totalBytes, int segmentCount) {
+        this(totalBytes, segmentCount, 0, null);
+    }
+
+    /**
+     * @param intervalMillis listener 最多每隔这么长时间调用一次
+     */
+    public DownloadProgress(long totalBytes, int segmentCount, long intervalMillis, Listener listener) {
+        if (totalBytes < 0 || segmentCount <= 0) {
+            throw new IllegalArgumentException("totalBytes: " + totalBytes + ", segmentCount: " + segmentCount);
+        }
+        this.totalBytes = totalBytes;
+        this.segments = new LongAdder[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new LongAdder();
+        }
+        this.startNanos = new AtomicLongArray(segmentCount);
+        this.finishNanos = new AtomicLongArray(segmentCount);
+        this.intervalNanos = intervalMillis * 1000000;
+        this.listener = listener;
+        long createdNanos = System.nanoTime();
+        this.nextFireNanos = new AtomicLong(createdNanos + intervalNanos);
+        this.window = new AtomicReference<>(new Window(new long[]{createdNanos}, new long[][]{new long[segmentCount]}));
+    }
+
+    /**
+     * 分段 segment 又下载了 bytes 字节
+     */
+    public void add(int segment, long bytes) {
+        if (startNanos.get(segment) == 0) {
+            startNanos.compareAndSet(segment, 0, System.nanoTime());
+        }
+        segments[segment].add(bytes);
+        long now = System.nanoTime();
+        // 下载的过程中采样，没有调用 snapshot 时窗口中也有足够的采样
+        if (now - window.get().latestNanos() >= SAMPLE_MILLIS * 1000000) {
+            sample(now, currentBytes());
+        }
+        if (listener != null && !finished) {
+            long next = nextFireNanos.get();
+            // 到了时间，并且 CAS 成功的线程调用 listener
+            if (now - next >= 0 && nextFireNanos.compareAndSet(next, now + intervalNanos)) {
+                fire(snapshot(now));
+            }
+        }
+    }
+
+    /**
+     * 分段 segment 下载完（或者失败）了，之后它的速度为下载期间的平均速度
+     */
+    public void finishSegment(int segment) {
+        finishNanos.compareAndSet(segment, 0, System.nanoTime());
+    }
+
+    /**
+     * 全部下载结束时调用，不管距离上一次多久，都再调用一次 listener
+     */
+    public void finish() {
+        finished = true;
+        if (listener != null) {
+            fire(snapshot(System.nanoTime()));
+        }
+    }
+
+    private void fire(Snapshot snapshot) {
+        try {
+            listener.onProgress(snapshot);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long completedBytes() {
+        long sum = 0;
+        for (LongAdder segment : segments) {
+            sum += segment.sum();
+        }
+        return sum;
+    }
+
+    public double completeRate() {
+        return totalBytes == 0 ? 1 : completedBytes() * 1.0 / totalBytes;
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(System.nanoTime());
+    }
+
+    private long[] currentBytes() {
+        long[] current = new long[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            current[i] = segments[i].sum();
+        }
+        return current;
+    }
+
+    private Snapshot snapshot(long now) {
+        long[] current = currentBytes();
+        Window w = sample(now, current);
+        long oldestNanos = w.nanos[0];
+        long[] oldest = w.bytes[0];
+        long elapsed = now - oldestNanos;
+
+        long added = 0;
+        double[] rates = new double[segments.length];
+        boolean[] finished = new boolean[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            added += current[i] - oldest[i];
+            long finish = finishNanos.get(i);
+            long start = startNanos.get(i);
+            if (finish != 0) {
+                // 已经下载完的分段，速度为下载期间的平均速度
+                finished[i] = true;
+                rates[i] = (finish - start > 0) ? current[i] * 1e9 / (finish - start) : 0;
+            } else if (elapsed > 0) {
+                rates[i] = (current[i] - oldest[i]) * 1e9 / elapsed;
+            }
+        }
+        // 总速度按所有分段窗口内增加的字节数计算（包括窗口内已经下载完的分段）
+        double total = elapsed > 0 ? added * 1e9 / elapsed : 0;
+        return new Snapshot(totalBytes, current, total, rates, finished);
+    }
+
+    /**
+     * 距离上一次采样超过 SAMPLE_MILLIS 时追加一次采样，CAS 失败说明其他线程刚刚采样过，使用它的结果
+     */
+    private Window sample(long now, long[] current) {
+        Window w = window.get();
+        if (now - w.latestNanos() < SAMPLE_MILLIS * 1000000) {
+            return w;
+        }
+        Window next = w.append(now, current, WINDOW_MILLIS * 1000000);
+        return window.compareAndSet(w, next) ? next : window.get();
+    }
+}
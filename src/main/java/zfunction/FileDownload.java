@@ -1,5 +1,9 @@
 package zfunction;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 
 public class FileDownload {
@@ -24,6 +28,9 @@ public class FileDownload {
         try {
             m.download();
             latch.await();
+            if (m.failedCount() > 0) {
+                System.out.println(m.failedCount() + " 个线程下载失败，文件不完整");
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -31,11 +38,64 @@ public class FileDownload {
         System.out.println("全部下载结束,共耗时" + (endTime - startTime) / 1000 + "s");
     }
 
+    /**
+     * 使用 SegmentedDownloader 断点续传，下载本机 RangeHttpServer 上的 8MB 随机数据：
+     * 第一次下载时服务器每 5 个请求断开一次，并且不重试，所以会有一部分段下载失败，记录文件保留下来；
+     * 第二次下载时服务器正常，只下载第一次缺少的段，最后与原始数据比较。
+     */
     public static void t2(){
+        byte[] content = new byte[8 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+        String localPath = "segmented.bin";
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            server.failEvery(5);
+            SegmentedDownloader first = new SegmentedDownloader(server.url(), localPath, 4, 256 * 1024, 0);
+            System.out.println("第一次下载完成：" + first.download() + "，请求 " + server.requests() + " 次");
 
+            server.failEvery(0);
+            server.resetStats();
+            long startTime = System.currentTimeMillis();
+            SegmentedDownloader second = new SegmentedDownloader(server.url(), localPath, 4, 256 * 1024, 3);
+            System.out.println("第二次下载完成：" + second.download() + "，请求 " + server.requests() + " 次，发送 "
+                    + server.bytesSent() + " 字节，耗时 " + (System.currentTimeMillis() - startTime) + "ms");
+
+            byte[] local = Files.readAllBytes(Paths.get(localPath));
+            System.out.println("与原始数据相同：" + Arrays.equals(content, local));
+            Files.delete(Paths.get(localPath));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
-    public static void main(String[] args) {
+    /**
+     * 使用 DownUtil2 下载本机 RangeHttpServer 上的 32MB 随机数据，服务器每 4 个请求中有一个限速为 2MB/s（模拟一个慢的镜像），
+     * 每 500ms 输出一次进度，速度，剩余时间与各个连接的速度，可以看到慢的那个连接。
+     */
+    public static void t3(){
+        byte[] content = new byte[32 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+        String localPath = "progress.bin";
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            server.slowEvery(4, 2 * 1024 * 1024);
+            DownUtil2 m = new DownUtil2(server.url(), localPath, 4, 500, snapshot -> {
+                int slowest = snapshot.slowestSegment();
+                System.out.println(snapshot + (slowest < 0 ? "" : "，最慢的连接：" + slowest));
+            });
+            long startTime = System.currentTimeMillis();
+            m.download();
+            m.await();
+            System.out.println("全部下载结束，失败 " + m.failedCount() + " 个线程，完成 " + m.getCompleteRate() * 100
+                    + "%，共耗时" + (System.currentTimeMillis() - startTime) + "ms");
+            System.out.println("与原始数据相同：" + Arrays.equals(content, Files.readAllBytes(Paths.get(localPath))));
+            Files.delete(Paths.get(localPath));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
+    public static void main(String[] args) {
+        //t1();
+        //t2();
+        t3();
     }
 }
@@ -0,0 +1,228 @@
+package zfunction;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本机的 HTTP 文件服务器，支持 Range 请求，用于测试多线程下载（FileDownload 中的 t2 等），不需要访问外网。
+ *
+ * 只提供一个文件，内容为 content，地址为 url()。请求头中有 Range: bytes=start-end（或 bytes=start-）时返回 206 与
+ * Content-Range，没有时返回 200 与整个文件，范围不合法时返回 416。只支持单个范围。
+ * 响应中带有 ETag 与 Last-Modified，请求带有 If-Range 并且与 ETag（或 Last-Modified）不同时忽略 Range，返回 200 与整个文件。
+ * setContent 替换文件的内容，ETag 随之改变，用于测试下载过程中服务器上的文件变了的情况。
+ *
+ * 为了测试下载失败后的重试与续传，failEvery(n) 让每第 n 个请求只发送一半的数据就断开连接。
+ * 为了测试连接速度不同时的下载，slowEvery(n, bytesPerSecond) 让每第 n 个请求限速为 bytesPerSecond（模拟慢的镜像或者线路）。
+ * requests，bytesSent 统计了请求的次数与实际发送的字节数（包括断开之前发送的部分）。
+ */
+public class RangeHttpServer implements Closeable {
+
+    private static final int CHUNK = 64 * 1024;
+
+    // 内容与对应的 ETag，Last-Modified，替换时一起替换
+    private volatile Version current;
+    private final AtomicInteger versions = new AtomicInteger();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile int failEvery;
+    private volatile int slowEvery;
+    private volatile long slowBytesPerSecond;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private static final class Version {
+        final byte[] content;
+        final String etag;
+        final String lastModified;
+
+        Version(byte[] content, int number) {
+            this.content = content;
+            this.etag = "\"v" + number + "-" + content.length + "\"";
+            // 每个版本的时间相差一秒，Last-Modified 的精度是秒
+            this.lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    ZonedDateTime.of(2020, 1, 1, 0, 0, number, 0, ZoneOffset.UTC));
+        }
+    }
+
+    public RangeHttpServer(byte[] content) throws IOException {
+        setContent(content);
+        // 端口为 0 时由系统分配一个空闲端口
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "range-http-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/file", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * 替换文件的内容，之后的请求返回新的内容与新的 ETag
+     */
+    public void setContent(byte[] content) {
+        this.current = new Version(content, versions.incrementAndGet());
+    }
+
+    public String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+    }
+
+    /**
+     * 每第 n 个请求只发送一半的数据就断开连接，n 为 0 时不断开
+     */
+    public void failEvery(int n) {
+        this.failEvery = n;
+    }
+
+    /**
+     * 每第 n 个请求限速为 bytesPerSecond，n 为 0 时不限速
+     */
+    public void slowEvery(int n, long bytesPerSecond) {
+        this.slowBytesPerSecond = bytesPerSecond;
+        this.slowEvery = n;
+    }
+
+    public int requests() {
+        return requests.get();
+    }
+
+    public long bytesSent() {
+        return bytesSent.get();
+    }
+
+    public void resetStats() {
+        requests.set(0);
+        bytesSent.set(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            int number = requests.incrementAndGet();
+            Version version = current;
+            byte[] content = version.content;
+            long length = content.length;
+            long start = 0;
+            long end = length - 1;
+            int code = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (ifRange != null && !ifRange.equals(version.etag) && !ifRange.equals(version.lastModified)) {
+                // 文件已经变了，返回整个文件
+                range = null;
+            }
+            exchange.getResponseHeaders().set("ETag", version.etag);
+            exchange.getResponseHeaders().set("Last-Modified", version.lastModified);
+            if (range != null) {
+                long[] parsed = parseRange(range, length);
+                if (parsed == null) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                start = parsed[0];
+                end = parsed[1];
+                code = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            long count = end - start + 1;
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(count));
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(code, count);
+            // 需要断开时只发送一半
+            int every = failEvery;
+            long send = (every > 0 && number % every == 0) ? count / 2 : count;
+            int slow = slowEvery;
+            long rate = (slow > 0 && number % slow == 0) ? slowBytesPerSecond : 0;
+            // 限速时每次发送 1/50 秒的数据
+            int chunk = (rate > 0) ? (int) Math.max(1, Math.min(CHUNK, rate / 50)) : CHUNK;
+            long begin = System.nanoTime();
+            OutputStream out = exchange.getResponseBody();
+            long position = start;
+            while (position < start + send) {
+                int n = (int) Math.min(chunk, start + send - position);
+                out.write(content, (int) position, n);
+                bytesSent.addAndGet(n);
+                position += n;
+                if (rate > 0) {
+                    out.flush();
+                    // 按照限速，发送完这些数据应该在什么时间
+                    long due = begin + (position - start) * 1000000000L / rate;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+            }
+            out.flush();
+        } catch (IOException | InterruptedException e) {
+            // 客户端提前断开等，忽略
+        } finally {
+            // 没有发送完时，close 会断开连接
+            try {
+                exchange.close();
+            } catch (Exception e) {
+                // 忽略
+            }
+        }
+    }
+
+    /**
+     * 解析 bytes=start-end，bytes=start- 与 bytes=-suffix，不合法时返回 null
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = (dash == spec.length() - 1) ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (start > end || start >= length) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,265 @@
+package zfunction;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 多线程下载时动态分配下载范围，让下载的总耗时取决于所有连接的总带宽，而不是最慢的那个连接。
+ *
+ * 原来的 DownUtil 按线程数把文件平均分成固定的几部分，某个连接慢时，其他线程早早下载完自己的部分就结束了，只剩下慢的连接
+ * 下载它的那一部分。这里的做法：
+ * 1，开始时同样平均分成 parts 个范围（Range），每个线程领取一个；
+ * 2，线程下载完自己的范围之后再调用 next，如果已经没有未分配的范围，就从正在下载的范围中找剩余字节最多的一个，把它的后一半
+ * 分出来（work stealing），原来的线程下载到分割点就停止，新的线程从分割点开始用一个新的 Range 请求下载后一半。剩余字节少于
+ * 2 * minSplit 的范围不再分割，以免请求太多；
+ * 3，（可选）没有可以分割的范围时，如果某个范围按它目前的速度还需要超过 hedgeAfterMillis 才能下载完，空闲的线程就从这个范围
+ * 的当前位置开始再请求一次剩下的部分（hedging），两个连接同时下载同样的数据，先下载完的那个让另一个停止。两个连接写入的数据
+ * 相同，所以重复写入同一个位置没有问题，代价是多下载了一部分数据。
+ *
+ * 下载线程每次写文件之前用 reserve 预留一块（最多 max 字节），写完之后 commit。分割只会从预留的位置之后开始，所以正在写入
+ * 的一块不会被分走。某个范围下载失败（fail）时，剩下的部分放回未分配的队列，由任意一个线程重新下载，最多重试 maxRetries 次，
+ * 超过之后计入 failures。所有方法都在 RangeScheduler 上同步，调用的频率是每块一次（例如 256KB），竞争很少。
+ */
+public class RangeScheduler {
+
+    private final long minSplit;
+    private final long hedgeAfterNanos;
+    private final int maxRetries;
+
+    // 还没有线程下载的范围
+    private final Deque<Range> unassigned = new ArrayDeque<>();
+    // 正在下载的范围
+    private final List<Range> active = new ArrayList<>();
+    private int nextId;
+    private int steals;
+    private int hedges;
+    private int failures;
+
+    public class Range {
+        private final int id;
+        private final int attempt;
+        private long position;
+        private long reserved;
+        private long end;
+        // hedging 时两个范围互为 partner，每个范围只 hedging 一次
+        private Range partner;
+        private boolean hedged;
+        private long assignedNanos;
+        private long assignedPosition;
+
+        private Range(long start, long end, int attempt) {
+            this.id = nextId++;
+            this.attempt = attempt;
+            this.position = start;
+            this.reserved = start;
+            this.end = end;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        /**
+         * 当前的下载位置，只有下载这个范围的线程会修改
+         */
+        public long position() {
+            synchronized (RangeScheduler.this) {
+                return position;
+            }
+        }
+
+        /**
+         * 范围的结束位置（不包括），被分割时会变小
+         */
+        public long end() {
+            synchronized (RangeScheduler.this) {
+                return end;
+            }
+        }
+
+        /**
+         * 从 position 开始预留最多 max 字节，返回预留的字节数，为 0 时说明这个范围已经下载完（或者已经被分走、被 hedging
+         * 的另一个连接下载完），应该停止下载
+         */
+        public long reserve(long max) {
+            synchronized (RangeScheduler.this) {
+                reserved = Math.min(end, position + max);
+                if (reserved <= position) {
+                    active.remove(this);
+                    return 0;
+                }
+                return reserved - position;
+            }
+        }
+
+        /**
+         * 预留的 n 字节已经写入
+         */
+        public void commit(long n) {
+            synchronized (RangeScheduler.this) {
+                position += n;
+                if (position >= end) {
+                    finish();
+                }
+            }
+        }
+
+        /**
+         * 下载这个范围时出错，剩下的部分放回未分配的队列
+         */
+        public void fail() {
+            synchronized (RangeScheduler.this) {
+                active.remove(this);
+                if (partner != null && partner.position < partner.end) {
+                    // 另一个连接还在下载同样的数据
+                    partner.partner = null;
+                    return;
+                }
+                if (position >= end) {
+                    return;
+                }
+                if (attempt < maxRetries) {
+                    unassigned.addFirst(new Range(position, end, attempt + 1));
+                } else {
+                    failures++;
+                }
+            }
+        }
+
+        private void finish() {
+            active.remove(this);
+            if (partner != null) {
+                // 这个范围覆盖了 partner 剩下的部分，让 partner 写完当前预留的一块就停止
+                partner.end = Math.max(partner.position, Math.min(partner.end, partner.reserved));
+                partner.partner = null;
+                partner = null;
+            }
+        }
+
+        /**
+         * 预计还需要多少纳秒才能下载完，还没有下载任何数据时为 Long.MAX_VALUE
+         */
+        private long remainingNanos(long now) {
+            long downloaded = position - assignedPosition;
+            if (downloaded <= 0) {
+                return Long.MAX_VALUE;
+            }
+            return (long) ((end - position) * (double) (now - assignedNanos) / downloaded);
+        }
+
+        @Override
+        public String toString() {
+            synchronized (RangeScheduler.this) {
+                return "Range" + id + "[" + position + ", " + end + ")";
+            }
+        }
+    }
+
+    /**
+     * 不使用 hedging
+     */
+    public RangeScheduler(long fileSize, int parts, long minSplit, int maxRetries) {
+        this(fileSize, parts, minSplit, maxRetries, -1);
+    }
+
+    /**
+     * @param minSplit 剩余字节少于 2 * minSplit 的范围不再分割
+     * @param hedgeAfterMillis 预计还需要超过这么长时间才能下载完的范围会被 hedging，小于 0 时不使用 hedging
+     */
+    public RangeScheduler(long fileSize, int parts, long minSplit, int maxRetries, long hedgeAfterMillis) {
+        if (fileSize <= 0 || parts <= 0 || minSplit <= 0 || maxRetries < 0) {
+            throw new IllegalArgumentException("fileSize: " + fileSize + ", parts: " + parts + ", minSplit: " + minSplit
+                    + ", maxRetries: " + maxRetries);
+        }
+        this.minSplit = minSplit;
+        this.maxRetries = maxRetries;
+        this.hedgeAfterNanos = (hedgeAfterMillis < 0) ? -1 : hedgeAfterMillis * 1000000;
+        long partSize = (fileSize + parts - 1) / parts;
+        for (long start = 0; start < fileSize; start += partSize) {
+            unassigned.add(new Range(start, Math.min(fileSize, start + partSize), 0));
+        }
+    }
+
+    /**
+     * 领取下一个要下载的范围，没有需要下载的范围时返回 null，调用的线程可以结束了
+     */
+    public synchronized Range next() {
+        Range range = unassigned.poll();
+        if (range == null) {
+            range = steal();
+        }
+        if (range == null && hedgeAfterNanos >= 0) {
+            range = hedge();
+        }
+        if (range != null) {
+            range.assignedNanos = System.nanoTime();
+            range.assignedPosition = range.position;
+            active.add(range);
+        }
+        return range;
+    }
+
+    /**
+     * 分出剩余字节最多的范围的后一半
+     */
+    private Range steal() {
+        Range victim = null;
+        for (Range range : active) {
+            // hedging 中的范围两个连接的位置不同，不分割
+            if (range.partner == null && (victim == null || range.end - range.reserved > victim.end - victim.reserved)) {
+                victim = range;
+            }
+        }
+        if (victim == null || victim.end - victim.reserved < 2 * minSplit) {
+            return null;
+        }
+        long split = victim.reserved + (victim.end - victim.reserved) / 2;
+        Range stolen = new Range(split, victim.end, 0);
+        victim.end = split;
+        steals++;
+        return stolen;
+    }
+
+    /**
+     * 重新请求预计最晚下载完的范围剩下的部分
+     */
+    private Range hedge() {
+        long now = System.nanoTime();
+        Range slowest = null;
+        long slowestNanos = hedgeAfterNanos;
+        for (Range range : active) {
+            long nanos = range.remainingNanos(now);
+            if (!range.hedged && range.position < range.end && nanos > slowestNanos) {
+                slowest = range;
+                slowestNanos = nanos;
+            }
+        }
+        if (slowest == null) {
+            return null;
+        }
+        Range copy = new Range(slowest.position, slowest.end, 0);
+        copy.partner = slowest;
+        slowest.partner = copy;
+        copy.hedged = true;
+        slowest.hedged = true;
+        hedges++;
+        return copy;
+    }
+
+    /**
+     * 重试次数用完仍然下载失败的范围数，不为 0 时文件不完整
+     */
+    public synchronized int failures() {
+        return failures;
+    }
+
+    public synchronized int steals() {
+        return steals;
+    }
+
+    public synchronized int hedges() {
+        return hedges;
+    }
+}
@@ -0,0 +1,326 @@
+package zfunction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 可以断点续传的多线程分段下载。
+ *
+ * DownUtil 把文件按线程数分成固定的几部分，某一部分下载失败时只打印异常，整个文件就作废了，重新下载又要从头开始。
+ * 这里的做法：
+ * 1，把文件分成很多个大小为 segmentSize 的小段，所有段的序号放在一个共享的队列中，threadNum 个线程从队列中领取，每段用一个
+ * Range 请求下载，所以下载得快的线程会多下载几段；
+ * 2，一段下载失败（连接异常，返回码不是 206，收到的字节数不对等）时，把它放回队列，稍后由某个线程重新下载，每段最多重试
+ * maxRetries 次；
+ * 3，每下载完一段，在记录文件（targetFile + ".seg"）的位图中把这一段对应的位置为 1，位图每段只占一位，所以 1GB 的文件按
+ * 1MB 分段时记录文件只有一百多字节。
+ * 下载中断（重试次数用完，进程被杀死等）之后，用同样的参数再次 download，会从记录文件中读出已经完成的段，只下载缺少的段。
+ * 全部完成之后删除记录文件。以下情况记录文件作废，从头下载：
+ * 服务器上的文件大小，ETag（没有或者是弱 ETag 时用 Last-Modified）或者分段大小变了；目标文件不存在（例如被删除了）或者大小不对，
+ * 这时记录为完成的段已经没有数据了。
+ * 每段的请求都带上 If-Range: ETag，下载过程中服务器上的文件变了时，服务器返回 200 与整个新文件，而不是 206，
+ * 这时停止下载并删除记录文件，以免把两个版本的数据拼在一起。
+ *
+ * 记录文件只在每段的数据写入 targetFile 之后更新，所以记录为完成的段一定已经写入。数据由 FileRangeWriter 每 16MB force
+ * 一次，记录没有 force，进程崩溃时它们都在操作系统的页缓存中，不会丢失；机器掉电时可能丢失，这时需要删除记录文件重新下载。
+ * 可以用 RangeHttpServer 在本机测试，参考 FileDownload.t2。
+ */
+public class SegmentedDownloader {
+
+    // 记录文件头：魔数，文件大小，分段大小，ETag（或 Last-Modified，writeUTF 写入，长度不固定）
+    private static final int MAGIC = 0x53454732;
+    // 每个线程的缓冲区大小，以及写入多少字节 force 一次
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long FORCE_EVERY = 16 * 1024 * 1024;
+
+    // 下载资源的路径
+    private final String path;
+    // 下载的文件的保存路径
+    private final String targetFile;
+    private final int threadNum;
+    private final int segmentSize;
+    private final int maxRetries;
+
+    private long fileSize;
+    private int segmentCount;
+    // 服务器返回的 ETag，没有时为 Last-Modified，都没有时为空字符串
+    private String validator;
+    // 下载过程中服务器上的文件变了
+    private volatile boolean remoteChanged;
+
+    public SegmentedDownloader(String path, String targetFile, int threadNum) {
+        this(path, targetFile, threadNum, 1024 * 1024, 3);
+    }
+
+    public SegmentedDownloader(String path, String targetFile, int threadNum, int segmentSize, int maxRetries) {
+        if (threadNum <= 0 || segmentSize <= 0 || maxRetries < 0) {
+            throw new IllegalArgumentException("threadNum: " + threadNum + ", segmentSize: " + segmentSize
+                    + ", maxRetries: " + maxRetries);
+        }
+        this.path = path;
+        this.targetFile = targetFile;
+        this.threadNum = threadNum;
+        this.segmentSize = segmentSize;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * 下载缺少的段，全部下载完成时返回 true。返回 false 时记录文件会保留，再次调用 download 可以继续下载。
+     */
+    public boolean download() throws IOException, InterruptedException {
+        fileSize = contentLength();
+        segmentCount = (int) ((fileSize + segmentSize - 1) / segmentSize);
+        remoteChanged = false;
+        System.out.println("文件总长度：" + fileSize + "，分为 " + segmentCount + " 段");
+
+        File target = new File(targetFile);
+        // 目标文件不存在或者大小不对时，记录为完成的段没有数据，记录文件作废
+        boolean targetUsable = target.isFile() && target.length() == fileSize;
+        ResumeState state = new ResumeState(new File(targetFile + ".seg"), fileSize, segmentSize, segmentCount,
+                validator, targetUsable);
+        try {
+            // 目标文件已经存在时保留其中的数据，记录为完成的段不再下载
+            try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+                file.setLength(fileSize);
+            }
+            Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+            for (int i = 0; i < segmentCount; i++) {
+                if (!state.isDone(i)) {
+                    pending.add(i);
+                }
+            }
+            System.out.println("已完成 " + (segmentCount - pending.size()) + " 段，需要下载 " + pending.size() + " 段");
+
+            AtomicIntegerArray attempts = new AtomicIntegerArray(segmentCount);
+            int workers = Math.min(threadNum, Math.max(1, pending.size()));
+            CountDownLatch latch = new CountDownLatch(workers);
+            for (int i = 0; i < workers; i++) {
+                new DownThread(i, pending, attempts, state, latch).start();
+            }
+            latch.await();
+
+            if (remoteChanged) {
+                System.out.println("下载过程中服务器上的文件变了，删除记录文件，需要重新下载");
+                state.close();
+                state.delete();
+                return false;
+            }
+            int done = state.doneCount();
+            if (done < segmentCount) {
+                System.out.println("下载未完成：" + done + "/" + segmentCount + " 段，可以再次下载缺少的段");
+                return false;
+            }
+        } finally {
+            state.close();
+        }
+        state.delete();
+        return true;
+    }
+
+    private HttpURLConnection open(String range) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(path).openConnection();
+        conn.setConnectTimeout(5 * 1000);
+        conn.setReadTimeout(10 * 1000);
+        conn.setRequestMethod("GET");
+        conn.setRequestProperty("Range", range);
+        if (validator != null && !validator.isEmpty()) {
+            // 文件没有变时返回 206，变了时返回 200 与整个文件
+            conn.setRequestProperty("If-Range", validator);
+        }
+        return conn;
+    }
+
+    /**
+     * 请求第一个字节，从 Content-Range 中得到文件大小，同时确认服务器支持 Range 请求，并记录 ETag 或 Last-Modified
+     */
+    private long contentLength() throws IOException {
+        validator = null;
+        HttpURLConnection conn = open("bytes=0-0");
+        try {
+            int code = conn.getResponseCode();
+            String contentRange = conn.getHeaderField("Content-Range");
+            if (code != 206 || contentRange == null || contentRange.indexOf('/') < 0) {
+                throw new IOException("服务器不支持 Range 请求，返回 code=" + code);
+            }
+            try (InputStream in = conn.getInputStream()) {
+                while (in.read() != -1) {
+                    // 读完响应，连接才能复用
+                }
+            }
+            String etag = conn.getHeaderField("ETag");
+            String lastModified = conn.getHeaderField("Last-Modified");
+            // If-Range 不能使用弱 ETag（W/ 开头）
+            if (etag != null && !etag.startsWith("W/")) {
+                validator = etag;
+            } else {
+                validator = (lastModified != null) ? lastModified : "";
+            }
+            return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private class DownThread extends Thread {
+        private final int threadId;
+        private final Queue<Integer> pending;
+        private final AtomicIntegerArray attempts;
+        private final ResumeState state;
+        private final CountDownLatch latch;
+
+        DownThread(int threadId, Queue<Integer> pending, AtomicIntegerArray attempts, ResumeState state,
+                   CountDownLatch latch) {
+            super("segment-down-" + threadId);
+            this.threadId = threadId;
+            this.pending = pending;
+            this.attempts = attempts;
+            this.state = state;
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            try (FileRangeWriter writer = new FileRangeWriter(targetFile, BUFFER_SIZE, FORCE_EVERY)) {
+                Integer segment;
+                while (!remoteChanged && (segment = pending.poll()) != null) {
+                    try {
+                        fetch(segment, writer);
+                        state.markDone(segment);
+                    } catch (IOException e) {
+                        int attempt = attempts.incrementAndGet(segment);
+                        if (attempt <= maxRetries) {
+                            System.out.println("线程" + threadId + "下载第 " + segment + " 段失败（" + e.getMessage()
+                                    + "），第 " + attempt + " 次重试");
+                            // 等一会儿再重试，以免服务器出错时连续失败
+                            TimeUnit.MILLISECONDS.sleep(100L * attempt);
+                            pending.add(segment);
+                        } else {
+                            System.out.println("线程" + threadId + "下载第 " + segment + " 段失败：" + e.getMessage());
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                // 无论成功失败都要计数，否则 download 会一直等待
+                latch.countDown();
+            }
+        }
+
+        private void fetch(int segment, FileRangeWriter writer) throws IOException {
+            long start = (long) segment * segmentSize;
+            long end = Math.min(fileSize, start + segmentSize) - 1;
+            HttpURLConnection conn = open("bytes=" + start + "-" + end);
+            try {
+                int code = conn.getResponseCode();
+                if (code == 200 && !validator.isEmpty()) {
+                    // If-Range 不匹配，服务器上的文件变了，其他线程也不再下载
+                    remoteChanged = true;
+                    conn.disconnect();
+                    throw new IOException("服务器上的文件已经改变");
+                }
+                String expected = "bytes " + start + "-" + end + "/" + fileSize;
+                if (code != 206 || !expected.equals(conn.getHeaderField("Content-Range"))) {
+                    // 没有读取响应，连接不能复用
+                    conn.disconnect();
+                    throw new IOException("返回 code=" + code + "，Content-Range=" + conn.getHeaderField("Content-Range"));
+                }
+                long length = end - start + 1;
+                long read;
+                try (InputStream in = conn.getInputStream()) {
+                    read = writer.transfer(in, start, length, null);
+                }
+                if (read != length) {
+                    throw new IOException("收到 " + read + " 字节，应为 " + length + " 字节");
+                }
+            } finally {
+                if (conn.getErrorStream() != null) {
+                    conn.getErrorStream().close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 记录文件：文件头，之后是位图，第 i 段完成时第 i 位为 1
+     */
+    private static class ResumeState {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final byte[] bitmap;
+        // 位图在记录文件中的位置，即文件头的长度
+        private long bitmapOffset;
+        private int doneCount;
+
+        /**
+         * @param targetUsable 目标文件存在并且大小正确，为 false 时已有的记录作废
+         */
+        ResumeState(File file, long fileSize, int segmentSize, int segmentCount, String validator,
+                    boolean targetUsable) throws IOException {
+            this.file = file;
+            this.bitmap = new byte[(segmentCount + 7) / 8];
+            this.raf = new RandomAccessFile(file, "rw");
+            boolean valid = false;
+            try {
+                valid = targetUsable && raf.length() > 0 && raf.readInt() == MAGIC && raf.readLong() == fileSize
+                        && raf.readInt() == segmentSize && raf.readUTF().equals(validator)
+                        && raf.length() == raf.getFilePointer() + bitmap.length;
+            } catch (IOException e) {
+                // 记录文件不完整，作废
+            }
+            if (valid) {
+                bitmapOffset = raf.getFilePointer();
+                raf.readFully(bitmap);
+                for (int i = 0; i < segmentCount; i++) {
+                    if (isDone(i)) {
+                        doneCount++;
+                    }
+                }
+            } else {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeLong(fileSize);
+                raf.writeInt(segmentSize);
+                raf.writeUTF(validator);
+                bitmapOffset = raf.getFilePointer();
+                raf.write(bitmap);
+            }
+        }
+
+        synchronized boolean isDone(int segment) {
+            return (bitmap[segment >> 3] & (1 << (segment & 7))) != 0;
+        }
+
+        synchronized void markDone(int segment) throws IOException {
+            int index = segment >> 3;
+            bitmap[index] |= (byte) (1 << (segment & 7));
+            doneCount++;
+            // 只写入改变的那个字节
+            raf.seek(bitmapOffset + index);
+            raf.write(bitmap[index]);
+        }
+
+        synchronized int doneCount() {
+            return doneCount;
+        }
+
+        void close() throws IOException {
+            raf.close();
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                System.out.println("删除记录文件失败：" + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package zinterview;
+
+/**
+ * 三种环形缓冲区的公共部分：容量的计算，以及 put，take 在缓冲区满了或者空了时的等待方式（WaitStrategy）。
+ *
+ * 阻塞操作先直接尝试一次，只有失败时才交给 WaitStrategy 等待，所以不需要等待时没有额外的开销（也不会分配对象）。
+ * 每次成功存取之后都要调用 signalAllWhenBlocking，以唤醒使用 blocking 方式等待的线程。
+ */
+abstract class AbstractRingBuffer<E> implements RingBuffer<E> {
+
+    final int capacity;
+    final int mask;
+    final WaitStrategy waitStrategy;
+
+    AbstractRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        if (waitStrategy == null) {
+            throw new NullPointerException("waitStrategy");
+        }
+        this.capacity = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        if (!offer(e)) {
+            waitStrategy.waitUntil(() -> offer(e));
+        }
+        waitStrategy.signalAllWhenBlocking();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E take() throws InterruptedException {
+        E e = poll();
+        if (e == null) {
+            Object[] holder = new Object[1];
+            waitStrategy.waitUntil(() -> (holder[0] = poll()) != null);
+            e = (E) holder[0];
+        }
+        waitStrategy.signalAllWhenBlocking();
+        return e;
+    }
+
+    @Override
+    public void putAll(E[] src, int off, int len) throws InterruptedException {
+        checkRange(src, off, len);
+        int n = offer(src, off, len);
+        if (n > 0) {
+            waitStrategy.signalAllWhenBlocking();
+        }
+        if (n == len) {
+            return;
+        }
+        // remaining[0] 为下一个要放入的位置，remaining[1] 为剩余的个数
+        int[] remaining = {off + n, len - n};
+        while (remaining[1] > 0) {
+            waitStrategy.waitUntil(() -> {
+                int offered = offer(src, remaining[0], remaining[1]);
+                remaining[0] += offered;
+                remaining[1] -= offered;
+                return offered > 0;
+            });
+            waitStrategy.signalAllWhenBlocking();
+        }
+    }
+
+    @Override
+    public int drainTo(E[] dst, int max) throws InterruptedException {
+        if (Math.min(max, dst.length) <= 0) {
+            return 0;
+        }
+        int n = poll(dst, max);
+        if (n == 0) {
+            int[] drained = new int[1];
+            waitStrategy.waitUntil(() -> (drained[0] = poll(dst, max)) > 0);
+            n = drained[0];
+        }
+        waitStrategy.signalAllWhenBlocking();
+        return n;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    static void checkRange(Object[] src, int off, int len) {
+        if (off < 0 || len < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len);
+        }
+    }
+
+    static void checkNotNull(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+    }
+}
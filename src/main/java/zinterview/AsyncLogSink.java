@@ -0,0 +1,246 @@
+package zinterview;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步批量写日志：调用 log 的线程只把日志放入队列就返回，由一个单独的写线程批量取出，编码后写入文件。
+ *
+ * BlockingQueueLog.printLog 每输出一行都要调用一次 System.out.println，多个线程同时输出时都阻塞在 System.out 的锁上，
+ * 每一行也都是一次 write 系统调用。这里的做法：
+ * 1，队列使用 MpscRingBuffer（多个业务线程，一个写线程），放入只是一次 CAS，队列没满时 log 的耗时在几十纳秒的级别。
+ * 同一个线程放入的日志按照放入的顺序取出，所以每个线程的日志在文件中的顺序与调用的顺序一致（不同线程之间的先后不保证）。
+ * 2，写线程每次最多取出 BATCH 个日志，按 UTF-8 编码到 BUFFERS 个可以重复使用的直接内存 ByteBuffer 中，再用
+ * GatheringByteChannel.write(ByteBuffer[]) 一次写出所有 ByteBuffer（gathering write），即一批日志只有一次系统调用。
+ * 使用直接内存是因为用堆内的 ByteBuffer 写文件时，JDK 会先把数据复制到一个临时的直接内存中；
+ * 3，编码时先手动编码到一个重复使用的 byte 数组中，不像 String.getBytes 那样每次都创建数组；
+ * 4，队列满了时 log 会等待（WaitStrategy.sleeping），而不是丢弃日志。
+ *
+ * 写入的数据在操作系统的页缓存中，进程退出不会丢失，机器掉电时可能丢失最后一部分。close 时会先写完队列中剩余的日志：
+ * 写线程取到 CLOSE 之后先设置 finished，再取出队列中剩余的日志直到队列为空；log 放入之后再检查一次 finished，为 true 时
+ * 这一条可能没有被写入，抛出异常。所以 log 要么正常返回并且日志一定会被写入，要么抛出异常，不会悄悄丢失。log 中只有
+ * 对 closed，finished 的 volatile 读，没有对共享变量的写，生产者之间不会因为 close 的检查争抢同一个缓存行。
+ * 写入的目标是 GatheringByteChannel，除了 FileChannel，也可以是 MappedLogWriter 等。性能测试参考 LogBenchmark。
+ */
+public class AsyncLogSink implements Closeable {
+
+    private static final int BATCH = 1024;
+    private static final int BUFFERS = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // close 时放入队列，写线程取到它就结束。用 new 创建，只按引用比较，不会与日志内容相同的字符串混淆
+    private static final String CLOSE = new String("close");
+
+    private final GatheringByteChannel channel;
+    private final MpscRingBuffer<String> queue;
+    private final ByteBuffer[] buffers = new ByteBuffer[BUFFERS];
+    // 当前正在写入的 ByteBuffer
+    private int current;
+    // 编码用的临时数组，只由写线程访问
+    private byte[] scratch = new byte[1024];
+    private final Thread writer;
+    private volatile boolean closed;
+    // 写线程取到 CLOSE 之后设置，之后只再取一轮剩余的日志
+    private volatile boolean finished;
+
+    public AsyncLogSink(Path file) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND),
+                64 * 1024);
+    }
+
+    /**
+     * @param capacity 队列的容量，日志产生的速度超过写入的速度时，最多积压这么多条日志
+     */
+    public AsyncLogSink(GatheringByteChannel channel, int capacity) {
+        this.channel = channel;
+        this.queue = new MpscRingBuffer<>(capacity, WaitStrategy.sleeping());
+        for (int i = 0; i < BUFFERS; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "async-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 写一行日志（会在末尾加上换行符）
+     */
+    public void log(String line) {
+        if (closed) {
+            throw new IllegalStateException("AsyncLogSink 已经关闭！");
+        }
+        try {
+            queue.put(line);
+        } catch (InterruptedException e) {
+            // 保留中断状态，日志直接丢弃
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // 放入（推进 tail 的 CAS）在读 finished 之前：这里读到 false，说明写线程设置 finished 时已经能看到这一条，
+        // 最后一轮一定会取出它；读到 true 时写线程可能已经取完了，这一条不一定会被写入
+        if (finished) {
+            throw new IllegalStateException("AsyncLogSink 已经关闭，日志可能没有写入！");
+        }
+    }
+
+    private void drainLoop() {
+        String[] batch = new String[BATCH];
+        boolean closing = false;
+        while (!closing) {
+            try {
+                int n = queue.drainTo(batch, BATCH);
+                for (int i = 0; i < n; i++) {
+                    if (batch[i] == CLOSE) {
+                        closing = true;
+                    } else {
+                        encode(batch[i]);
+                    }
+                    batch[i] = null;
+                }
+                if (closing) {
+                    drainRemaining(batch);
+                }
+                flushBuffers();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            } catch (IOException e) {
+                // 写入失败时丢弃这一批，继续处理后面的日志
+                e.printStackTrace();
+                for (ByteBuffer buffer : buffers) {
+                    buffer.clear();
+                }
+                current = 0;
+            }
+        }
+    }
+
+    /**
+     * 取到 CLOSE 之后，取出队列中剩余的日志，包括在 close 之前通过了检查、CLOSE 之后才放入的日志
+     */
+    private void drainRemaining(String[] batch) throws IOException {
+        finished = true;
+        while (true) {
+            // 先读 size 再取：size 为 0 时，没有生产者抢到了位置还没有写入，这之后取不到就说明队列已经空了
+            boolean empty = queue.size() == 0;
+            int n = queue.poll(batch, BATCH);
+            for (int i = 0; i < n; i++) {
+                if (batch[i] != CLOSE) {
+                    encode(batch[i]);
+                }
+                batch[i] = null;
+            }
+            if (n == 0) {
+                if (empty) {
+                    return;
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 按 UTF-8 编码 line 与换行符，放入 buffers 中，所有 ByteBuffer 都满了时先写出。
+     * 先编码到 scratch 中，再整块复制到直接内存，逐个字节地 put 到直接内存中要慢得多（每次都有边界检查）。
+     */
+    private void encode(String line) throws IOException {
+        int length = line.length();
+        if (scratch.length < length * 3 + 1) {
+            scratch = new byte[length * 3 + 1];
+        }
+        byte[] bytes = scratch;
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[n++] = (byte) (0xC0 | (c >> 6));
+                bytes[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(line.charAt(i + 1))) {
+                // 两个 char 编码为 4 个字节，不会超过 length * 3
+                int codePoint = Character.toCodePoint(c, line.charAt(++i));
+                bytes[n++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[n++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符，与 String.getBytes 一样替换为 ?
+                bytes[n++] = (byte) '?';
+            } else {
+                bytes[n++] = (byte) (0xE0 | (c >> 12));
+                bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        bytes[n++] = '\n';
+
+        for (int off = 0; off < n; ) {
+            ByteBuffer buffer = buffers[current];
+            if (!buffer.hasRemaining()) {
+                if (++current == BUFFERS) {
+                    flushBuffers();
+                }
+                continue;
+            }
+            int chunk = Math.min(n - off, buffer.remaining());
+            buffer.put(bytes, off, chunk);
+            off += chunk;
+        }
+    }
+
+    /**
+     * 一次写出所有已经放入数据的 ByteBuffer
+     */
+    private void flushBuffers() throws IOException {
+        int count = Math.min(current + 1, BUFFERS);
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            buffers[i].flip();
+            remaining += buffers[i].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers, 0, count);
+        }
+        for (int i = 0; i < count; i++) {
+            buffers[i].clear();
+        }
+        current = 0;
+    }
+
+    /**
+     * 写完队列中剩余的日志之后关闭文件。close 之后不能再调用 log。
+     * 写线程已经结束时（例如被中断）不再等待，队列中剩余的日志丢弃。
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // 不用 put：写线程已经结束并且队列满了时，put 会一直等待
+            while (!queue.offer(CLOSE)) {
+                if (!writer.isAlive()) {
+                    break;
+                }
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+    }
+}
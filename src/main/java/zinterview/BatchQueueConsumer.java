@@ -0,0 +1,115 @@
+package zinterview;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 从 BlockingQueue 中批量取出元素的消费者。
+ *
+ * BlockingQueueLog.t3 的消费线程先判断 isEmpty 再 take，这有两个问题：
+ * 1，isEmpty 与 take 之间其他线程可能取走了最后一个元素，take 就会一直阻塞；生产者还没来得及放入时，isEmpty 为 true，
+ * 消费线程又会提前退出；
+ * 2，每取出一个元素都要加一次队列的锁，元素多时锁的竞争很激烈。
+ *
+ * 这里的做法：先用 poll(timeout) 等待第一个元素，取到之后再用 drainTo 一次取出队列中已有的元素（最多 maxBatch 个），
+ * 一次加锁就取出了一批，然后把整批元素交给 handler 处理。poll 设置了超时时间，所以消费线程可以定期检查是否已经 shutdown，
+ * 不会永远阻塞在 take 上。
+ *
+ * 结束的方式有两种：
+ * 毒丸（poison pill）：生产者放完数据之后放入 poisonPill（按引用比较），消费者处理完它之前的元素就结束，并且把它放回队列，
+ * 让同一个队列的其他消费线程也能取到它而结束，所以只需要放入一个毒丸；
+ * shutdown：消费者取完队列中剩余的元素之后结束。
+ * handler 抛出的异常只打印，不影响后面的批次。实现了 Runnable，可以交给多个线程同时执行。吞吐量对比参考 LogBenchmark.t3。
+ */
+public class BatchQueueConsumer<E> implements Runnable {
+
+    private final BlockingQueue<E> queue;
+    private final int maxBatch;
+    private final long pollTimeoutNanos;
+    private final Consumer<? super List<E>> handler;
+    private final E poisonPill;
+    private volatile boolean shutdown;
+
+    /**
+     * @param poisonPill 为 null 时只能通过 shutdown 结束
+     */
+    public BatchQueueConsumer(BlockingQueue<E> queue, int maxBatch, long pollTimeout, TimeUnit unit,
+                              Consumer<? super List<E>> handler, E poisonPill) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch <= 0");
+        }
+        this.queue = queue;
+        this.maxBatch = maxBatch;
+        this.pollTimeoutNanos = unit.toNanos(pollTimeout);
+        this.handler = handler;
+        this.poisonPill = poisonPill;
+    }
+
+    @Override
+    public void run() {
+        List<E> batch = new ArrayList<>(maxBatch);
+        try {
+            while (true) {
+                E first = queue.poll(pollTimeoutNanos, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    if (shutdown && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                boolean poisoned = removePoisonPill(batch);
+                if (!batch.isEmpty()) {
+                    handle(batch);
+                }
+                if (poisoned) {
+                    queue.put(poisonPill);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 如果 batch 中有毒丸，删除它以及它之后的元素（放回队列，由其他消费者处理），返回 true
+     */
+    private boolean removePoisonPill(List<E> batch) throws InterruptedException {
+        if (poisonPill == null) {
+            return false;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i) == poisonPill) {
+                List<E> rest = batch.subList(i + 1, batch.size());
+                for (E e : rest) {
+                    queue.put(e);
+                }
+                batch.subList(i, batch.size()).clear();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handle(List<E> batch) {
+        try {
+            handler.accept(batch);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * 不再等待新的元素，取完队列中剩余的元素之后结束（最多延迟 pollTimeout）
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+}
@@ -1,5 +1,9 @@
 package zinterview;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
@@ -134,13 +138,100 @@ public class BlockingQueueLog {
         //}
     }
 
-    public static void main(String[] args) {
+    /**
+     * 使用 AsyncLogSink：4 个线程直接调用 log，不再需要把日志先放入 queue 再由线程池逐条输出，log 只是放入队列就返回，
+     * 由 AsyncLogSink 的写线程批量写入文件。每个线程的日志在文件中的顺序与调用的顺序一致。
+     */
+    public static void t4() throws Exception {
+        Path file = Paths.get("async.log");
+        System.out.println("log = begin，输出到 " + file.toAbsolutePath());
+        Files.deleteIfExists(file);
+        AsyncLogSink sink = new AsyncLogSink(file);
+        CountDownLatch done = new CountDownLatch(pool.getCorePoolSize());
+        for(int i=0; i<pool.getCorePoolSize(); i++){
+            final int num = i;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 4; j++) {
+                        long begin = System.nanoTime();
+                        sink.log("线程 " + num + " 的日志 " + (j + 1) + " = " + System.currentTimeMillis());
+                        System.out.println("线程 " + num + " 调用 log 耗时 = " + (System.nanoTime() - begin) + " ns");
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        sink.close();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * 使用 ParallelDispatcher：与 t2 一样把 obs 中的日志分给线程池处理，但 t2 按 index = size / 线程数 固定分段，18 条日志时最后
+     * 2 条没有线程输出；这里每个线程处理完一块再去领取下一块，所有日志都会输出，并且各个线程的负载是均衡的。
+     */
+    public static void t5(){
+        System.out.println("log = begin");
+        List<String> logs = new ArrayList<>();
+        for(int i=0; i<18; i++){
+            logs.add((i+1)+"");
+        }
+        long begin = System.currentTimeMillis();
+        new ParallelDispatcher(pool).forEach(logs, BlockingQueueLog::printLog);
+        System.out.println("全部输出，耗时 = " + (System.currentTimeMillis() - begin) + " ms");
+    }
+
+    /**
+     * 使用 BatchQueueConsumer：与 t3 一样由 4 个线程从 queue 中取出日志输出，但每次用 drainTo 取出一批（最多 4 条），
+     * 生产者放完之后放入一个毒丸，所有消费线程都会在处理完之前的日志后结束，不会像 t3 那样因为 isEmpty 判断而提前退出或者
+     * 一直阻塞在 take 上。
+     */
+    public static void t6() throws Exception {
+        System.out.println("log = begin");
+        BlockingQueue<String> logs = new LinkedBlockingQueue<>();
+        String poisonPill = new String("end");
+        BatchQueueConsumer<String> consumer = new BatchQueueConsumer<>(logs, 4, 100, TimeUnit.MILLISECONDS,
+                batch -> {
+                    System.out.println(Thread.currentThread().getName() + " 取出 " + batch.size() + " 条 = " + batch);
+                    for (String log : batch) {
+                        printLog(log);
+                    }
+                }, poisonPill);
+        CountDownLatch done = new CountDownLatch(pool.getCorePoolSize());
+        for(int i=0; i<pool.getCorePoolSize(); i++){
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    consumer.run();
+                    done.countDown();
+                }
+            });
+        }
+        for(int i=0; i<16; i++){
+            logs.put((i+1)+"");
+        }
+        logs.put(poisonPill);
+        done.await();
+        // 队列中只剩下毒丸
+        System.out.println("BlockingQueue 中剩余 = " + logs);
+    }
+
+    public static void main(String[] args) throws Exception {
         // 原始代码
         //t1();
         // 4 线程代码，使用传统集合
         //t2();
         // 4 线程代码，使用阻塞队列集合
-        t3();
+        //t3();
+        // 4 线程直接调用 AsyncLogSink，异步批量写入文件
+        //t4();
+        // 4 线程代码，动态分块，不遗漏元素
+        //t5();
+        // 4 线程代码，批量取出阻塞队列中的元素
+        t6();
 
         pool.shutdown();
     }
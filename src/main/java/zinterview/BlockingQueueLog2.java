@@ -115,6 +115,22 @@ public class BlockingQueueLog2 {
         }
     }
 
+    /**
+     * 使用 OrderedPipelineStage：10 个输入由线程池中的线程并行执行 TestDo.dosome，但输出的顺序与输入的顺序相同。
+     * t3 中的 Semaphore(1) 让 dosome 串行执行，需要 10 秒；这里并行执行，大约 1 秒。
+     */
+    public static void t4() throws InterruptedException {
+        System.out.println("begin ==");
+        long begin = System.currentTimeMillis();
+        OrderedPipelineStage<String, String> stage = new OrderedPipelineStage<>(pool, pool.getCorePoolSize(),
+                TestDo::dosome, out -> System.out.println(Thread.currentThread().getName() + " == " + out));
+        for(int i=0; i<10; i++){
+            stage.submit((i+1)+"");
+        }
+        stage.flush();
+        System.out.println("耗时 = " + (System.currentTimeMillis() - begin) + " ms");
+    }
+
     public static void tx(){
         for(int i=0; i<10; i++){
             String in = (i+1)+"";
@@ -196,13 +212,15 @@ public class BlockingQueueLog2 {
         System.out.println("que = "+queue.size());
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         // 原始代码
         //t1();
         // 10 线程代码，使用 LinkedBlockingQueue
         //t2();
         // 10 线程代码，使用 SynchronousQueue 阻塞队列集合
-        t3();
+        //t3();
+        // 10 线程代码，并行处理，按输入的顺序输出
+        t4();
 
         //test();
         pool.shutdown();
@@ -48,6 +48,25 @@ public class BlockingQueueLog3 {
         d.start();
     }
 
+    /**
+     * 使用 KeyedExecutor：key 相同的任务按照提交的顺序依次输出，key 不同的任务同时输出。与 t1，t2 不同，这里不需要为每个任务
+     * 创建一个线程，等待中的任务也不占用线程。
+     */
+    public static void t3() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(4);
+        String[][] tasks = {{"1", "1"}, {"2", "2"}, {"1", "3"}, {"4", "4"}, {"1", "5"}, {"2", "6"}};
+        TestDo2 testDo = TestDo2.getInstance();
+        System.out.println("begin ===");
+        for (String[] task : tasks) {
+            // 与 Test 中一样，用变量拼接的方式产生内容相同但不是同一个对象的 key
+            String key = task[0] + "";
+            String value = task[1];
+            executor.execute(key, () -> testDo.doSome(key, value));
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
     public static void test() {
         String a = "a"+"";
         String b = "a"+"";
@@ -65,11 +84,13 @@ public class BlockingQueueLog3 {
         System.out.println(c==d);
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         // 原始代码
         //t1();
         // 10 线程代码，使用 LinkedBlockingQueue
-        t2();
+        //t2();
+        // 按 key 串行的线程池
+        t3();
         // 10 线程代码，使用 SynchronousQueue 阻塞队列集合
         //test();
         pool.shutdown();
@@ -98,7 +119,8 @@ class Test extends Thread {
         //testDo.doSome(key, value);
         //testDo.doSome2(key, value);
         //testDo.doSome3(key, value);
-        testDo.doSome4(key, value);
+        //testDo.doSome4(key, value);
+        testDo.doSome5(key, value);
     }
 }
 
@@ -232,4 +254,26 @@ class TestDo2 {
         }
 
     }
-}
\ No newline at end of file
+
+
+    private StripedLock keyLocks = StripedLock.striped(64);
+    public void doSome5(String key, String value) {
+        /**
+         * clist 的方式每次都要遍历整个集合，并且集合只增不减。使用 StripedLock，按 key 的 hash 直接找到对应的锁（O(1)），
+         * 锁的个数是固定的，不管有多少种 key 都不会增加内存。不同的 key 偶尔会落在同一个锁上，此时它们也会互斥，如果不能
+         * 接受，可以使用 StripedLock.exact()，每个 key 一个锁，用完即删除。
+         */
+        keyLocks.lock(key);
+        try {
+            // 该方法块中的代码不能改动
+            try {
+                Thread.sleep(1000);
+                System.out.println(key+" ："+value+" == "+System.currentTimeMillis()/1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        } finally {
+            keyLocks.unlock(key);
+        }
+    }
+}
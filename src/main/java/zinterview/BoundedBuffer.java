@@ -1,5 +1,6 @@
 package zinterview;
 
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.LinkedBlockingDeque;
@@ -8,10 +9,24 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 /**
  * 设计可缓冲队列，即设计一个缓冲区。一头接收数据，一头发送数据。
  * 在 java 中实际上已经提供了这样一种缓冲队列，即 ArrayBlockingQueue。
+ *
+ * 唤醒时使用 signal 而不是 signalAll：在 needClear 上等待的只有生产者，在 needPut 上等待的只有消费者，每次 put（take）也只
+ * 多出一个元素（空位），所以唤醒一个线程就够了。signalAll 会把所有等待的线程都唤醒，它们再去争抢同一把锁，抢到之后发现条件
+ * 仍然不满足又继续等待（惊群效应），白白增加了上下文切换。
+ *
+ * 批量存取（putAll，drainTo）：一次加锁搬运尽可能多的元素，并且每批只唤醒一次，把加锁与唤醒的代价分摊到一批元素上。
+ * 因为一批元素只唤醒了一个线程，所以被唤醒的线程操作完之后，如果还有剩余的元素（空位），要继续唤醒下一个等待的线程（级联唤
+ * 醒），否则其他线程会在有元素（空位）的情况下一直等待。没有线程在等待时 signal 几乎没有开销。
+ *
+ * 等待方式：默认使用 Condition.await，即线程被 park，之后由 signal 唤醒，唤醒的延迟通常为几十微秒。对延迟敏感时可以指定一个
+ * WaitStrategy（例如 busySpin，yielding），等待时先释放锁，再按照 WaitStrategy 的方式等待 count 变化，之后重新加锁检查。
+ * 所以 count 是 volatile 的，不持有锁的线程也能看到它的变化。各种方式的延迟对比参考 BufferBenchmark.t3。
+ * 需要更高吞吐量时，可以使用无锁的 RingBuffer（SpscRingBuffer，MpscRingBuffer，MpmcRingBuffer），性能对比参考 BufferBenchmark。
  */
 public class BoundedBuffer {
     final Lock lock = new ReentrantLock();
@@ -19,18 +34,86 @@ public class BoundedBuffer {
     final Condition needPut = lock.newCondition();
 
     // 定义一个缓冲队列，默认可装下 100 个元素。测试时可以适当减小容量。
-    final Object[] items = new Object[100];
-    int puti,takei,count;
+    final Object[] items;
+    int puti,takei;
+    volatile int count;
+    // 是否打印每次的存取，性能测试时要关闭，否则测量的就是 System.out 的耗时了
+    final boolean verbose;
+    // 为 null 时使用 needClear，needPut 等待
+    final WaitStrategy waitStrategy;
+    private final BooleanSupplier notFull;
+    private final BooleanSupplier notEmpty;
+
+    public BoundedBuffer() {
+        this(100, true);
+    }
+
+    public BoundedBuffer(int capacity, boolean verbose) {
+        this(capacity, verbose, null);
+    }
+
+    public BoundedBuffer(int capacity, boolean verbose, WaitStrategy waitStrategy) {
+        this.items = new Object[capacity];
+        this.verbose = verbose;
+        this.waitStrategy = waitStrategy;
+        this.notFull = () -> count < items.length;
+        this.notEmpty = () -> count > 0;
+    }
+
+    /**
+     * 持有锁时调用，等待缓冲区有空位
+     */
+    private void awaitNotFull() throws InterruptedException {
+        if (waitStrategy == null) {
+            needClear.await();
+            return;
+        }
+        lock.unlock();
+        try {
+            waitStrategy.waitUntil(notFull);
+        } finally {
+            lock.lock();
+        }
+    }
+
+    /**
+     * 持有锁时调用，等待缓冲区有元素
+     */
+    private void awaitNotEmpty() throws InterruptedException {
+        if (waitStrategy == null) {
+            needPut.await();
+            return;
+        }
+        lock.unlock();
+        try {
+            waitStrategy.waitUntil(notEmpty);
+        } finally {
+            lock.lock();
+        }
+    }
+
+    /**
+     * 释放锁之后调用，唤醒使用 WaitStrategy.blocking 等待的线程
+     */
+    private void signalWaiters() {
+        if (waitStrategy != null) {
+            waitStrategy.signalAllWhenBlocking();
+        }
+    }
 
     public void put(Object o) throws Exception{
         lock.lock();
         try {
             while (count == items.length){
-                System.out.println("缓冲区已经满了，等待取出值 ===== 满");
-                needClear.await();
+                if (verbose) {
+                    System.out.println("缓冲区已经满了，等待取出值 ===== 满");
+                }
+                awaitNotFull();
             }
             items[puti] = o;
-            System.out.println("放入 = "+ items[puti]);
+            if (verbose) {
+                System.out.println("放入 = "+ items[puti]);
+            }
 
             // 当当前数组队列已经满时，即下标数字等于数组长度时，就从头开始放。虽然该队列是存取交替进行的，但是也不能完全确
             // 定之前的位置是空的。所以就需要用 count 去判断，是否是已经全满了。
@@ -38,9 +121,13 @@ public class BoundedBuffer {
                 puti = 0;
             }
             ++count;
-            needPut.signalAll();
+            needPut.signal();
+            if (count < items.length) {
+                needClear.signal();
+            }
         }finally {
             lock.unlock();
+            signalWaiters();
         }
     }
 
@@ -48,11 +135,16 @@ public class BoundedBuffer {
         lock.lock();
         try {
             while (count == 0){
-                System.out.println("缓冲区已经空了，等待存入值 ===== 空");
-                needPut.await();
+                if (verbose) {
+                    System.out.println("缓冲区已经空了，等待存入值 ===== 空");
+                }
+                awaitNotEmpty();
             }
             Object o = items[takei];
-            System.out.println("取出 = "+ o);
+            items[takei] = null;
+            if (verbose) {
+                System.out.println("取出 = "+ o);
+            }
 
             // 如果当前数组队列已经空了，即下标数字等于数组长度时，就从头开始取。虽然该队列是存取交替进行的，但是也不能完全确
             // 定之前的位置是有数据的。所以就需要用 count 去判断，是否是已经全空了。
@@ -60,10 +152,139 @@ public class BoundedBuffer {
                 takei = 0;
             }
             --count;
-            needClear.signalAll();
+            needClear.signal();
+            if (count > 0) {
+                needPut.signal();
+            }
+            return o;
+        }finally {
+            lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    /**
+     * 放入元素，缓冲区满了时不等待，直接返回 false
+     */
+    public boolean offer(Object o){
+        lock.lock();
+        try {
+            if (count == items.length) {
+                return false;
+            }
+            items[puti] = o;
+            if (verbose) {
+                System.out.println("放入 = "+ o);
+            }
+            if(++puti == items.length){
+                puti = 0;
+            }
+            ++count;
+            needPut.signal();
+            return true;
+        }finally {
+            lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    /**
+     * 取出元素，缓冲区空了时不等待，直接返回 null
+     */
+    public Object poll(){
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+            Object o = items[takei];
+            items[takei] = null;
+            if (verbose) {
+                System.out.println("取出 = "+ o);
+            }
+            if(++takei == items.length){
+                takei = 0;
+            }
+            --count;
+            needClear.signal();
             return o;
         }finally {
             lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    /**
+     * 批量放入 src[off, off + len) 中的元素。空位不够时先放入一部分，再等待消费者取出，直到全部放入为止。
+     * 等待时被中断会抛出 InterruptedException，这时已经放入的元素（src 中从 off 开始的一段）不会撤回，可能已经被消费者取出，
+     * 其余的元素没有放入。所以中断之后不能直接用同样的参数重新调用 putAll，否则前面的元素会重复。
+     */
+    public void putAll(Object[] src, int off, int len) throws Exception{
+        if (off < 0 || len < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len);
+        }
+        lock.lock();
+        try {
+            while (len > 0) {
+                while (count == items.length){
+                    awaitNotFull();
+                }
+                // 一次最多放满所有空位，数组的尾部与头部分两段复制
+                int n = Math.min(len, items.length - count);
+                int first = Math.min(n, items.length - puti);
+                System.arraycopy(src, off, items, puti, first);
+                System.arraycopy(src, off + first, items, 0, n - first);
+                puti = (puti + n) % items.length;
+                count += n;
+                off += n;
+                len -= n;
+                if (verbose) {
+                    System.out.println("批量放入 = " + n);
+                }
+                needPut.signal();
+            }
+            if (count < items.length) {
+                needClear.signal();
+            }
+        }finally {
+            lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    /**
+     * 批量取出最多 max 个元素放入 dst 中，返回取出的个数。缓冲区为空时等待，直到至少可以取出一个元素。
+     */
+    public int drainTo(Object[] dst, int max) throws Exception{
+        max = Math.min(max, dst.length);
+        if (max <= 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (count == 0){
+                awaitNotEmpty();
+            }
+            int n = Math.min(max, count);
+            int first = Math.min(n, items.length - takei);
+            System.arraycopy(items, takei, dst, 0, first);
+            System.arraycopy(items, 0, dst, first, n - first);
+            // 清空取出的位置，以免缓冲区一直引用着已经取出的元素
+            Arrays.fill(items, takei, takei + first, null);
+            Arrays.fill(items, 0, n - first, null);
+            takei = (takei + n) % items.length;
+            count -= n;
+            if (verbose) {
+                System.out.println("批量取出 = " + n);
+            }
+            needClear.signal();
+            if (count > 0) {
+                needPut.signal();
+            }
+            return n;
+        }finally {
+            lock.unlock();
+            signalWaiters();
         }
     }
 
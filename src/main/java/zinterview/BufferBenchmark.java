@@ -0,0 +1,556 @@
+package zinterview;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * 有界缓冲区的性能对比测试：BoundedBuffer（ReentrantLock + Condition），ElasticBoundedBuffer，ArrayBlockingQueue，以及三种
+ * RingBuffer。
+ *
+ * 由于项目中没有引入 JMH，这里采用手写的测试方式：每种缓冲区先预热一轮，再测量 ROUNDS 轮取最好的一次，输出每毫秒传递的元素
+ * 个数（ops/ms）。传递的元素是事先创建好的对象，避免测量到装箱与分配的开销。
+ * t4 对比的是装箱的开销，所以 t4 放入的是每次新装箱的 Integer，Long，以及不装箱的 int，long。
+ * 测试时最好加上 -server -Xms1g -Xmx1g 参数，并且 CPU 核数要多于生产者与消费者的线程数之和，否则测量的主要是线程调度。
+ */
+public class BufferBenchmark {
+
+    private static final int CAPACITY = 1024;
+    private static final int ITEMS = 2000000;
+    private static final int ROUNDS = 3;
+    private static final int BATCH = 256;
+    private static final Object[] VALUES = new Object[CAPACITY];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = i;
+        }
+    }
+
+    /**
+     * 统一不同缓冲区的 put，take 方法
+     */
+    abstract static class Buffer {
+        abstract void put(Object o) throws Exception;
+
+        abstract Object take() throws Exception;
+
+        /**
+         * 批量放入，默认逐个调用 put
+         */
+        void putAll(Object[] src, int off, int len) throws Exception {
+            for (int i = off; i < off + len; i++) {
+                put(src[i]);
+            }
+        }
+
+        /**
+         * 批量取出，默认只调用一次 take
+         */
+        int drainTo(Object[] dst, int max) throws Exception {
+            dst[0] = take();
+            return 1;
+        }
+
+        static Buffer of(BoundedBuffer buffer) {
+            return new Buffer() {
+                @Override
+                void put(Object o) throws Exception {
+                    buffer.put(o);
+                }
+
+                @Override
+                Object take() throws Exception {
+                    return buffer.take();
+                }
+
+                @Override
+                void putAll(Object[] src, int off, int len) throws Exception {
+                    buffer.putAll(src, off, len);
+                }
+
+                @Override
+                int drainTo(Object[] dst, int max) throws Exception {
+                    return buffer.drainTo(dst, max);
+                }
+            };
+        }
+
+        static Buffer of(ElasticBoundedBuffer buffer) {
+            return new Buffer() {
+                @Override
+                void put(Object o) throws Exception {
+                    buffer.put(o);
+                }
+
+                @Override
+                Object take() throws Exception {
+                    return buffer.take();
+                }
+            };
+        }
+
+        static Buffer of(BlockingQueue<Object> queue) {
+            return new Buffer() {
+                @Override
+                void put(Object o) throws Exception {
+                    queue.put(o);
+                }
+
+                @Override
+                Object take() throws Exception {
+                    return queue.take();
+                }
+
+                @Override
+                int drainTo(Object[] dst, int max) throws Exception {
+                    // ArrayBlockingQueue.drainTo 不会等待，所以先 take 一个，再把剩下的一次取出
+                    dst[0] = queue.take();
+                    List<Object> drained = new ArrayList<>(max - 1);
+                    queue.drainTo(drained, max - 1);
+                    for (int i = 0; i < drained.size(); i++) {
+                        dst[i + 1] = drained.get(i);
+                    }
+                    return drained.size() + 1;
+                }
+            };
+        }
+
+        static Buffer of(RingBuffer<Object> ring) {
+            return new Buffer() {
+                @Override
+                void put(Object o) throws Exception {
+                    ring.put(o);
+                }
+
+                @Override
+                Object take() throws Exception {
+                    return ring.take();
+                }
+
+                @Override
+                void putAll(Object[] src, int off, int len) throws Exception {
+                    ring.putAll(src, off, len);
+                }
+
+                @Override
+                int drainTo(Object[] dst, int max) throws Exception {
+                    return ring.drainTo(dst, max);
+                }
+            };
+        }
+    }
+
+    /**
+     * 1 对 1，4 对 1，4 对 4 的生产者与消费者，对比各种缓冲区的吞吐量。SPSC，MPSC 只参与符合它们要求的场景。
+     */
+    public static void t1() throws Exception {
+        int[][] cases = {{1, 1}, {4, 1}, {4, 4}};
+        for (int[] c : cases) {
+            int producers = c[0];
+            int consumers = c[1];
+            System.out.println(producers + " 个生产者，" + consumers + " 个消费者：");
+            report("BoundedBuffer", producers, consumers, () -> Buffer.of(new BoundedBuffer(CAPACITY, false)));
+            report("ElasticBoundedBuffer", producers, consumers,
+                    () -> Buffer.of(ElasticBoundedBuffer.newBuilder().minCapacity(64).maxCapacity(CAPACITY).build()));
+            report("ArrayBlockingQueue", producers, consumers, () -> Buffer.of(new ArrayBlockingQueue<>(CAPACITY)));
+            if (producers == 1 && consumers == 1) {
+                report("SpscRingBuffer", producers, consumers, () -> Buffer.of(new SpscRingBuffer<>(CAPACITY)));
+            }
+            if (consumers == 1) {
+                report("MpscRingBuffer", producers, consumers, () -> Buffer.of(new MpscRingBuffer<>(CAPACITY)));
+            }
+            report("MpmcRingBuffer", producers, consumers, () -> Buffer.of(new MpmcRingBuffer<>(CAPACITY)));
+        }
+    }
+
+    /**
+     * 生产者每次放入 BATCH 个元素，消费者每次最多取出 BATCH 个元素，对比逐个存取与批量存取的吞吐量。
+     */
+    public static void t2() throws Exception {
+        int[][] cases = {{1, 1}, {4, 4}};
+        for (int[] c : cases) {
+            int producers = c[0];
+            int consumers = c[1];
+            System.out.println(producers + " 个生产者，" + consumers + " 个消费者，每批 " + BATCH + " 个：");
+            for (int batch : new int[]{1, BATCH}) {
+                String suffix = (batch == 1) ? "（逐个）" : "（批量）";
+                report("BoundedBuffer" + suffix, producers, consumers, batch,
+                        () -> Buffer.of(new BoundedBuffer(CAPACITY, false)));
+                report("ArrayBlockingQueue" + suffix, producers, consumers, batch,
+                        () -> Buffer.of(new ArrayBlockingQueue<>(CAPACITY)));
+                if (producers == 1 && consumers == 1) {
+                    report("SpscRingBuffer" + suffix, producers, consumers, batch,
+                            () -> Buffer.of(new SpscRingBuffer<>(CAPACITY)));
+                }
+                report("MpmcRingBuffer" + suffix, producers, consumers, batch,
+                        () -> Buffer.of(new MpmcRingBuffer<>(CAPACITY)));
+            }
+        }
+    }
+
+    /**
+     * 各种等待方式的延迟与 CPU 占用对比：1 个生产者每隔约 50 微秒放入一个元素（缓冲区几乎总是空的，所以消费者每次都要等待），
+     * 消费者记录每个元素从放入到取出的时间，输出 p50，p99，p999 以及消费者线程的 CPU 占用率（CPU 时间 / 经过的时间）。
+     * 注意 busySpin 与 yielding 需要 CPU 核数多于线程数，否则自旋的消费者会和生产者抢时间片。
+     */
+    public static void t3() throws Exception {
+        String[] names = {"busySpin", "yielding", "sleeping", "blocking"};
+        WaitStrategy[] strategies = {WaitStrategy.busySpin(), WaitStrategy.yielding(), WaitStrategy.sleeping(),
+                WaitStrategy.blocking()};
+        System.out.printf("    %-36s %8s %8s %8s %8s%n", "", "p50(us)", "p99(us)", "p999(us)", "CPU");
+        latency("BoundedBuffer + Condition", Buffer.of(new BoundedBuffer(CAPACITY, false)));
+        for (int i = 0; i < strategies.length; i++) {
+            latency("BoundedBuffer + " + names[i], Buffer.of(new BoundedBuffer(CAPACITY, false, strategies[i])));
+            latency("SpscRingBuffer + " + names[i], Buffer.of(new SpscRingBuffer<>(CAPACITY, strategies[i])));
+        }
+    }
+
+    /**
+     * 装箱与不装箱的分配对比：1 个生产者放入 ITEMS 个递增的 int（long），1 个消费者取出并求和。通过
+     * com.sun.management.ThreadMXBean.getThreadAllocatedBytes 统计生产者与消费者线程分配的字节数，输出每个元素平均分配的
+     * 字节数以及吞吐量。BoundedBuffer 每个元素都要装箱（超出了 valueOf 的缓存范围），IntBoundedBuffer，LongBoundedBuffer
+     * 的存取不分配对象，只有锁竞争时 AQS 会为等待的线程创建节点，平均到每个元素上接近于 0。
+     */
+    public static void t4() throws Exception {
+        System.out.printf("    %-32s %12s %12s%n", "", "bytes/item", "ops/ms");
+        for (int i = 0; i <= ROUNDS; i++) {
+            // 第一轮为预热
+            boolean print = i > 0;
+            BoundedBuffer boxedInts = new BoundedBuffer(CAPACITY, false);
+            allocation("BoundedBuffer(Integer)", print,
+                    n -> {
+                        for (int j = 0; j < n; j++) {
+                            boxedInts.put(Integer.valueOf(j + 128));
+                        }
+                    },
+                    n -> {
+                        long sum = 0;
+                        for (int j = 0; j < n; j++) {
+                            sum += (Integer) boxedInts.take();
+                        }
+                        return sum;
+                    });
+            IntBoundedBuffer ints = new IntBoundedBuffer(CAPACITY);
+            allocation("IntBoundedBuffer", print,
+                    n -> {
+                        for (int j = 0; j < n; j++) {
+                            ints.put(j + 128);
+                        }
+                    },
+                    n -> {
+                        long sum = 0;
+                        for (int j = 0; j < n; j++) {
+                            sum += ints.take();
+                        }
+                        return sum;
+                    });
+            BoundedBuffer boxedLongs = new BoundedBuffer(CAPACITY, false);
+            allocation("BoundedBuffer(Long)", print,
+                    n -> {
+                        for (long j = 0; j < n; j++) {
+                            boxedLongs.put(Long.valueOf(j + 128));
+                        }
+                    },
+                    n -> {
+                        long sum = 0;
+                        for (int j = 0; j < n; j++) {
+                            sum += (Long) boxedLongs.take();
+                        }
+                        return sum;
+                    });
+            LongBoundedBuffer longs = new LongBoundedBuffer(CAPACITY);
+            allocation("LongBoundedBuffer", print,
+                    n -> {
+                        for (long j = 0; j < n; j++) {
+                            longs.put(j + 128);
+                        }
+                    },
+                    n -> {
+                        long sum = 0;
+                        for (int j = 0; j < n; j++) {
+                            sum += longs.take();
+                        }
+                        return sum;
+                    });
+        }
+    }
+
+    /**
+     * 两个进程之间的吞吐量：当前进程作为生产者，通过 MappedBoundedBuffer 放入 ITEMS 个 64 字节的消息（前 8 个字节为序号），
+     * 消费者是用 ProcessBuilder 启动的另一个 JVM 进程（即 main 方法的 mapped-consumer 参数）。
+     * 第一个消费者进程取出一半之后退出，再启动第二个消费者进程取出剩下的一半，并检查序号是从第一个进程停下的位置继续的，
+     * 以验证消费者重启之后没有丢失或者重复元素。消费者的吞吐量从取出第一个元素开始计算，不包括 JVM 启动的时间。
+     */
+    public static void t5() throws Exception {
+        Path file = Files.createTempFile("mapped-buffer", ".dat");
+        Files.delete(file);
+        try (MappedBoundedBuffer buffer = new MappedBoundedBuffer(file, CAPACITY, 128)) {
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] message = new byte[64];
+                        for (long i = 0; i < ITEMS; i++) {
+                            for (int j = 0; j < 8; j++) {
+                                message[j] = (byte) (i >>> (56 - 8 * j));
+                            }
+                            buffer.put(message);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            long begin = System.nanoTime();
+            producer.start();
+            int half = ITEMS / 2;
+            consumerProcess(file, 0, half);
+            System.out.println("    第一个消费者退出时缓冲区中还有 " + buffer.size() + " 个元素");
+            consumerProcess(file, half, ITEMS - half);
+            producer.join();
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("    %-32s %8d ops/ms（包括启动两个 JVM 的时间）%n", "总计",
+                    (long) ITEMS * 1000000 / elapsed);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void consumerProcess(Path file, long first, int count) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                BufferBenchmark.class.getName(), "mapped-consumer", file.toString(), String.valueOf(first),
+                String.valueOf(count)).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("消费者进程异常退出：" + process.exitValue());
+        }
+    }
+
+    /**
+     * 消费者进程：从 first 开始取出 count 个消息，检查序号是否连续
+     */
+    private static void mappedConsumer(Path file, long first, int count) throws Exception {
+        try (MappedBoundedBuffer buffer = new MappedBoundedBuffer(file, CAPACITY, 128)) {
+            long begin = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] message = buffer.take();
+                if (i == 0) {
+                    begin = System.nanoTime();
+                }
+                long sequence = 0;
+                for (int j = 0; j < 8; j++) {
+                    sequence = (sequence << 8) | (message[j] & 0xFF);
+                }
+                if (sequence != first + i) {
+                    throw new IllegalStateException("序号不连续，期望 " + (first + i) + "，实际 " + sequence);
+                }
+            }
+            long elapsed = Math.max(1, System.nanoTime() - begin);
+            System.out.printf("    %-32s %8d ops/ms%n", "消费者进程 [" + first + ", " + (first + count) + ")",
+                    (long) count * 1000000 / elapsed);
+        }
+    }
+
+    interface Producer {
+        void produce(int items) throws Exception;
+    }
+
+    interface Consumer {
+        long consume(int items) throws Exception;
+    }
+
+    private static void allocation(String name, boolean print, Producer producer, Consumer consumer)
+            throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] allocated = new long[2];
+        long[] sum = new long[1];
+        Thread consumerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long id = Thread.currentThread().getId();
+                    long begin = threads.getThreadAllocatedBytes(id);
+                    sum[0] = consumer.consume(ITEMS);
+                    allocated[1] = threads.getThreadAllocatedBytes(id) - begin;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        Thread producerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long id = Thread.currentThread().getId();
+                    long begin = threads.getThreadAllocatedBytes(id);
+                    producer.produce(ITEMS);
+                    allocated[0] = threads.getThreadAllocatedBytes(id) - begin;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        long begin = System.nanoTime();
+        consumerThread.start();
+        producerThread.start();
+        producerThread.join();
+        consumerThread.join();
+        long elapsed = System.nanoTime() - begin;
+        long expected = (long) ITEMS * (ITEMS - 1) / 2 + 128L * ITEMS;
+        if (sum[0] != expected) {
+            throw new IllegalStateException(name + " 取出的元素之和不正确：" + sum[0]);
+        }
+        if (print) {
+            System.out.printf("    %-32s %12.2f %12d%n", name, (allocated[0] + allocated[1]) / (double) ITEMS,
+                    (long) ITEMS * 1000000 / elapsed);
+        }
+    }
+
+    private static void latency(String name, Buffer buffer) throws Exception {
+        int messages = 20000;
+        Integer[] indexes = new Integer[messages];
+        for (int i = 0; i < messages; i++) {
+            indexes[i] = i;
+        }
+        // 放入的时间由生产者写入，通过缓冲区的同步保证消费者可以看到
+        long[] sendTimes = new long[messages];
+        long[] latencies = new long[messages];
+        long[] cpu = new long[1];
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long cpuBegin = threads.getCurrentThreadCpuTime();
+                    for (int i = 0; i < messages; i++) {
+                        int index = (Integer) buffer.take();
+                        latencies[index] = System.nanoTime() - sendTimes[index];
+                    }
+                    cpu[0] = threads.getCurrentThreadCpuTime() - cpuBegin;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        consumer.start();
+        long begin = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            LockSupport.parkNanos(50000);
+            sendTimes[i] = System.nanoTime();
+            buffer.put(indexes[i]);
+        }
+        consumer.join();
+        long elapsed = System.nanoTime() - begin;
+        // 去掉前 10% 作为预热
+        long[] measured = Arrays.copyOfRange(latencies, messages / 10, messages);
+        Arrays.sort(measured);
+        System.out.printf("    %-36s %8.1f %8.1f %8.1f %7.0f%%%n", name,
+                measured[(int) (measured.length * 0.5)] / 1000.0,
+                measured[(int) (measured.length * 0.99)] / 1000.0,
+                measured[(int) (measured.length * 0.999)] / 1000.0,
+                cpu[0] * 100.0 / elapsed);
+    }
+
+    private static void report(String name, int producers, int consumers, Supplier<Buffer> factory) throws Exception {
+        report(name, producers, consumers, 1, factory);
+    }
+
+    private static void report(String name, int producers, int consumers, int batch, Supplier<Buffer> factory)
+            throws Exception {
+        run(producers, consumers, batch, factory.get());
+        long best = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            best = Math.max(best, run(producers, consumers, batch, factory.get()));
+        }
+        System.out.printf("    %-28s %8d ops/ms%n", name, best);
+    }
+
+    /**
+     * 生产者一共放入 ITEMS 个元素，消费者全部取出之后结束，返回 ops/ms。batch 大于 1 时使用批量存取。
+     */
+    static long run(int producers, int consumers, int batch, Buffer buffer) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(producers + consumers);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int items = ITEMS / producers;
+                        if (batch == 1) {
+                            for (int i = 0; i < items; i++) {
+                                buffer.put(VALUES[i & (CAPACITY - 1)]);
+                            }
+                        } else {
+                            for (int i = 0; i < items; i += batch) {
+                                buffer.putAll(VALUES, 0, Math.min(batch, items - i));
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            }).start();
+        }
+        for (int c = 0; c < consumers; c++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int items = ITEMS / consumers;
+                        if (batch == 1) {
+                            for (int i = 0; i < items; i++) {
+                                buffer.take();
+                            }
+                        } else {
+                            Object[] dst = new Object[batch];
+                            for (int i = 0; i < items; ) {
+                                i += buffer.drainTo(dst, Math.min(batch, items - i));
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        end.await();
+        return (long) ITEMS * 1000000 / (System.nanoTime() - begin);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && "mapped-consumer".equals(args[0])) {
+            mappedConsumer(Paths.get(args[1]), Long.parseLong(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        // 各种缓冲区的吞吐量对比
+        t1();
+        // 逐个存取与批量存取的对比
+        //t2();
+        // 各种等待方式的延迟对比
+        //t3();
+        // 装箱与不装箱的分配对比
+        //t4();
+        // 两个进程之间通过内存映射文件传递数据
+        //t5();
+    }
+}
@@ -0,0 +1,530 @@
+package zinterview;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.ThreadMXBean;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * 缓存的性能对比测试。
+ *
+ * 由于项目中没有引入 JMH，这里采用手写的测试方式：先预热一轮，再正式测量，输出每毫秒的操作次数（ops/ms）。
+ * 测试时最好加上 -server -Xms2g -Xmx2g 参数，并且关闭其他耗费 CPU 的程序，多次运行取平均值。
+ */
+public class CacheBenchmark {
+
+    private static final int KEYS = 4096;
+    private static final int OPS_PER_THREAD = 200000;
+    private static final int[] THREADS = {1, 8, 32};
+
+    /**
+     * 对比 CacheDemo.getDataByLock（全局读写锁）与 CacheDemo.getData（ConcurrentCache）在 1/8/32 线程下的吞吐量。
+     * 每个 key 第一次访问时都会未命中，模拟数据库访问耗时 50 微秒。
+     */
+    public static void t1() throws Exception {
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+        }
+        CacheDemo.dbDelayNanos = 50000;
+
+        // 预热
+        run(1, keys, CacheDemo::getDataByLock);
+        run(1, keys, CacheDemo::getData);
+
+        for (int threads : THREADS) {
+            long lock = run(threads, keys, CacheDemo::getDataByLock);
+            long engine = run(threads, keys, CacheDemo::getData);
+            System.out.println("线程数 = " + threads + "，读写锁 = " + lock + " ops/ms，ConcurrentCache = " + engine + " ops/ms");
+        }
+        CacheDemo.dbDelayNanos = 0;
+    }
+
+    /**
+     * 单线程对比三种淘汰策略的命中率，不受读缓冲区丢弃访问记录的影响。访问的 key 服从 Zipf 分布（skew 为 0.9），共 100000 个
+     * 不同的 key，缓存容量为其中的 5%；第二轮在 Zipf 的访问中每隔一段插入一次对冷数据的顺序扫描，LRU 会被扫描冲掉热点数据，
+     * TINY_LFU 的准入过滤则让扫描的数据停留在窗口中就被淘汰。命中率 = 1 - 加载次数 / 访问次数。
+     */
+    public static void t8() throws Exception {
+        int keys = 100000;
+        int[] zipf = zipf(keys, 0.9, 1 << 21);
+        int[] scan = new int[zipf.length];
+        for (int i = 0; i < scan.length; i++) {
+            // 每 64K 次访问中有 16K 次是对 key 空间之外的冷数据的顺序扫描
+            scan[i] = ((i & 0xFFFF) < 0xC000) ? zipf[i] : keys + i;
+        }
+        for (int[] trace : new int[][]{zipf, scan}) {
+            System.out.println(trace == zipf ? "Zipf 0.9：" : "Zipf 0.9 + 顺序扫描：");
+            for (EvictionPolicy evictionPolicy : EvictionPolicy.values()) {
+                AtomicLong loads = new AtomicLong();
+                ConcurrentCache<Integer, Object> cache = ConcurrentCache.newBuilder()
+                        .maximumSize(keys / 20)
+                        .evictionPolicy(evictionPolicy)
+                        .build(key -> {
+                            loads.incrementAndGet();
+                            return "数据库中的数据 ==";
+                        });
+                for (int key : trace) {
+                    cache.get(key);
+                }
+                System.out.println("    " + evictionPolicy + "：命中率 = "
+                        + String.format("%.2f%%", 100.0 * (trace.length - loads.get()) / trace.length));
+            }
+        }
+    }
+
+    /**
+     * 对比三种淘汰策略在 32 线程下的吞吐量与命中率。访问的 key 服从 Zipf 分布（少数热点 key 占大部分的访问），
+     * 共 100000 个不同的 key，缓存容量为其中的 5%。命中率 = 1 - 加载次数 / 访问次数。
+     */
+    public static void t2() throws Exception {
+        int keys = 100000;
+        int[] trace = zipf(keys, 0.9, 1 << 21);
+        for (EvictionPolicy evictionPolicy : EvictionPolicy.values()) {
+            AtomicLong loads = new AtomicLong();
+            ConcurrentCache<Integer, Object> cache = ConcurrentCache.newBuilder()
+                    .maximumSize(keys / 20)
+                    .evictionPolicy(evictionPolicy)
+                    .build(key -> {
+                        loads.incrementAndGet();
+                        return "数据库中的数据 ==";
+                    });
+            int threads = 32;
+            CountDownLatch end = new CountDownLatch(threads);
+            long begin = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t * (trace.length / threads);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < trace.length; i++) {
+                            cache.get(trace[(offset + i) & (trace.length - 1)]);
+                        }
+                        end.countDown();
+                    }
+                }).start();
+            }
+            end.await();
+            long millis = Math.max(1, (System.nanoTime() - begin) / 1000000);
+            long ops = (long) threads * trace.length;
+            cache.cleanUp();
+            System.out.println(evictionPolicy + "：吞吐量 = " + ops / millis + " ops/ms，命中率 = "
+                    + String.format("%.2f%%", 100.0 * (ops - loads.get()) / ops) + "，缓存条数 = " + cache.size());
+        }
+    }
+
+    /**
+     * 对比数据过期时的读延迟：只配置 expireAfterWrite 时，数据过期后的第一次读取必须同步等待数据库；而配置了
+     * refreshAfterWrite 时，旧值会在后台刷新期间继续返回，所以高百分位的延迟不会出现尖刺。模拟数据库访问耗时 20 毫秒。
+     */
+    public static void t3() throws Exception {
+        CacheLoader<Integer, Object> slowLoader = key -> {
+            Thread.sleep(20);
+            return "数据库中的数据 ==" + System.nanoTime();
+        };
+        ConcurrentCache<Integer, Object> expireOnly = ConcurrentCache.newBuilder()
+                .expireAfterWrite(500, TimeUnit.MILLISECONDS)
+                .build(slowLoader);
+        ConcurrentCache<Integer, Object> refreshAhead = ConcurrentCache.newBuilder()
+                .refreshAfterWrite(250, TimeUnit.MILLISECONDS)
+                .expireAfterWrite(10, TimeUnit.SECONDS)
+                .build(slowLoader);
+        System.out.println("只过期：" + latency(expireOnly));
+        System.out.println("后台刷新：" + latency(refreshAhead));
+    }
+
+    private static String latency(ConcurrentCache<Integer, Object> cache) throws Exception {
+        int keys = 10;
+        for (int i = 0; i < keys; i++) {
+            cache.get(i);
+        }
+        int samples = 10000;
+        long[] nanos = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            long begin = System.nanoTime();
+            cache.get(i % keys);
+            nanos[i] = System.nanoTime() - begin;
+            // 每 100 微秒读取一次，持续数秒，期间数据会多次过期
+            LockSupport.parkNanos(100000);
+        }
+        Arrays.sort(nanos);
+        return "p50 = " + nanos[samples / 2] / 1000 + "us，p99 = " + nanos[samples * 99 / 100] / 1000
+                + "us，p999 = " + nanos[samples * 999 / 1000] / 1000 + "us，max = " + nanos[samples - 1] / 1000 + "us";
+    }
+
+    /**
+     * 对比扇出读取（每个请求查询 50 个 key）时，循环调用 get 与调用一次 getAll 的后端访问次数与耗时。32 个线程同时发起请求，
+     * key 有重叠，模拟数据库每次访问耗时 1 毫秒（不论查询多少条）。
+     */
+    public static void t5() throws Exception {
+        AtomicLong roundTrips = new AtomicLong();
+        CacheLoader<Integer, Object> backend = new CacheLoader<Integer, Object>() {
+            @Override
+            public Object load(Integer key) {
+                roundTrips.incrementAndGet();
+                LockSupport.parkNanos(1000000);
+                return "数据库中的数据 ==" + key;
+            }
+
+            @Override
+            public Map<Integer, Object> loadAll(Collection<? extends Integer> keys) {
+                roundTrips.incrementAndGet();
+                LockSupport.parkNanos(1000000);
+                Map<Integer, Object> result = new HashMap<>();
+                for (Integer key : keys) {
+                    result.put(key, "数据库中的数据 ==" + key);
+                }
+                return result;
+            }
+        };
+        for (boolean batch : new boolean[]{false, true}) {
+            roundTrips.set(0);
+            ConcurrentCache<Integer, Object> cache = ConcurrentCache.newBuilder().maximumSize(100000).build(backend);
+            int threads = 32;
+            int requests = 200;
+            CountDownLatch end = new CountDownLatch(threads);
+            long begin = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        List<Integer> keys = new ArrayList<>(50);
+                        for (int r = 0; r < requests; r++) {
+                            keys.clear();
+                            for (int i = 0; i < 50; i++) {
+                                keys.add(random.nextInt(200000));
+                            }
+                            if (batch) {
+                                cache.getAll(keys);
+                            } else {
+                                for (Integer key : keys) {
+                                    cache.get(key);
+                                }
+                            }
+                        }
+                        end.countDown();
+                    }
+                }).start();
+            }
+            end.await();
+            long millis = (System.nanoTime() - begin) / 1000000;
+            System.out.println((batch ? "getAll" : "循环 get") + "：后端访问次数 = " + roundTrips.get() + "，耗时 = " + millis + "ms");
+        }
+    }
+
+    /**
+     * 对比全部存放在堆中与堆内 + 堆外两级存储时的 GC 情况。先加载 entries 条数据，再做 500 万次读取（90% 的读取落在 1%
+     * 的热点数据上）。输出 GC 次数、GC 总耗时、最长的一次 GC 停顿、当前线程分配的内存以及 full GC 之后堆中存活的内存。
+     *
+     * 需要注意的是，两级存储减少的是存活的对象数量，所以 GC 停顿更短；但数据在两级之间移动时要序列化与反序列化，这部分会增
+     * 加内存的分配量。冷数据的访问越少，两级存储的收益越大。
+     *
+     * 两种模式要分开运行，避免互相影响，例如 1000 万条数据时：
+     * java -Xms8g -Xmx8g -XX:MaxDirectMemorySize=4g zinterview.CacheBenchmark heap 10000000
+     * java -Xms8g -Xmx8g -XX:MaxDirectMemorySize=4g zinterview.CacheBenchmark tiered 10000000
+     */
+    public static void t4(String mode, int entries) throws Exception {
+        CacheLoader<Integer, Profile> loader = Profile::new;
+        ConcurrentCache<Integer, Profile> cache;
+        if ("heap".equals(mode)) {
+            cache = ConcurrentCache.newBuilder().initialCapacity(entries).build(loader);
+        } else {
+            cache = ConcurrentCache.newBuilder()
+                    .maximumSize(entries / 100)
+                    .offHeap(new JacksonSerializer<>(Profile.class), 4L * 1024 * 1024 * 1024)
+                    .build(loader);
+        }
+
+        AtomicLong maxPause = new AtomicLong();
+        NotificationListener listener = (notification, handback) -> {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                maxPause.accumulateAndGet(info.getGcInfo().getDuration(), Math::max);
+            }
+        };
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) bean).addNotificationListener(listener, null, null);
+        }
+
+        long[] gcBefore = gc();
+        long allocatedBefore = allocatedBytes();
+        long begin = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            cache.get(i);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int hot = Math.max(1, entries / 100);
+        for (int i = 0; i < 5000000; i++) {
+            cache.get(random.nextInt(10) == 0 ? random.nextInt(entries) : random.nextInt(hot));
+        }
+        long millis = (System.nanoTime() - begin) / 1000000;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long[] gcAfter = gc();
+
+        System.gc();
+        long live = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.println(mode + "：耗时 = " + millis + "ms，GC 次数 = " + (gcAfter[0] - gcBefore[0])
+                + "，GC 总耗时 = " + (gcAfter[1] - gcBefore[1]) + "ms，最长停顿 = " + maxPause.get() + "ms，分配内存 = " + (allocated >> 20)
+                + "MB，存活堆内存 = " + (live >> 20) + "MB，堆中条数 = " + cache.size() + "，堆外条数 = " + cache.offHeapSize());
+    }
+
+    private static long[] gc() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * 模拟一条用户数据，Jackson 序列化需要无参构造器与 public 字段
+     */
+    public static class Profile {
+        public long id;
+        public String name;
+        public String email;
+        public int level;
+
+        public Profile() {
+        }
+
+        public Profile(Integer id) {
+            this.id = id;
+            this.name = "user" + id;
+            this.email = "user" + id + "@example.com";
+            this.level = id % 10;
+        }
+    }
+
+    /**
+     * 生成服从 Zipf 分布的 key 序列，length 必须是 2 的幂
+     */
+    static int[] zipf(int keys, double skew, int length) {
+        double[] cdf = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        Random random = new Random(42);
+        int[] trace = new int[length];
+        for (int i = 0; i < length; i++) {
+            int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            trace[i] = (index >= 0) ? index : Math.min(-index - 1, keys - 1);
+        }
+        return trace;
+    }
+
+    /**
+     * 对比开启与不开启统计时命中路径的吞吐量（所有 key 都已经在缓存中）。两种配置交替运行多轮，各取最好的一轮，以减少 JIT
+     * 与 CPU 频率波动的影响。开启统计后命中数与热点 key 都是在维护操作重放读缓冲区时统计的，命中路径本身不变。
+     */
+    public static void t6() throws Exception {
+        String[] keys = new String[10000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+        }
+        CacheLoader<String, Object> loader = key -> "数据库中的数据 ==" + key;
+        ConcurrentCache<String, Object> plain = ConcurrentCache.newBuilder().maximumSize(100000).build(loader);
+        ConcurrentCache<String, Object> recorded = ConcurrentCache.newBuilder().maximumSize(100000).recordStats().build(loader);
+        for (String key : keys) {
+            plain.get(key);
+            recorded.get(key);
+        }
+        for (int threads : new int[]{1, 8}) {
+            long best = 0;
+            long bestStats = 0;
+            for (int round = 0; round < 10; round++) {
+                best = Math.max(best, hits(threads, keys, plain));
+                bestStats = Math.max(bestStats, hits(threads, keys, recorded));
+            }
+            System.out.printf("%2d 个线程: 不统计 %8d ops/ms, 统计 %8d ops/ms, 开销 %.1f%%%n",
+                    threads, best, bestStats, (best - bestStats) * 100.0 / best);
+        }
+        System.out.println(recorded.stats());
+    }
+
+    /**
+     * 快照的预热时间（time-to-warm）：先写入 entries 条 1KB 的数据并保存为快照，再分别使用 1 个线程与 CPU 核数个线程加载到
+     * 一个新的缓存中，输出保存与加载的耗时以及吞吐量。100 万条数据时快照约为 1GB：
+     * java -Xms4g -Xmx4g zinterview.CacheBenchmark snapshot 1000000
+     *
+     * 注意快照文件刚写完时还在操作系统的页缓存中，测量的是内存映射 + 解析 + 写入缓存的时间；重启之后第一次加载还要加上从磁盘
+     * 顺序读取的时间（可以先执行 echo 3 > /proc/sys/vm/drop_caches 来模拟）。
+     */
+    public static void t7(int entries) throws Exception {
+        Path file = Files.createTempFile("cache", ".snapshot");
+        Utf8Serializer serializer = new Utf8Serializer();
+        char[] payload = new char[1000];
+        ConcurrentCache<String, String> cache = ConcurrentCache.newBuilder().maximumSize(entries)
+                .expireAfterWrite(1, TimeUnit.HOURS).build(key -> null);
+        Map<String, String> batch = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            Arrays.fill(payload, (char) ('a' + i % 26));
+            batch.put("key" + i, new String(payload));
+            if (batch.size() == 10000) {
+                cache.putAll(batch);
+                batch.clear();
+            }
+        }
+        cache.putAll(batch);
+        batch = null;
+
+        long begin = System.nanoTime();
+        long saved = cache.saveSnapshot(file, serializer, serializer);
+        long millis = Math.max(1, (System.nanoTime() - begin) / 1000000);
+        long bytes = Files.size(file);
+        System.out.printf("保存 %d 条，文件 %d MB，耗时 %d ms（%d MB/s）%n",
+                saved, bytes >> 20, millis, (bytes >> 20) * 1000 / millis);
+        cache = null;
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (int parallelism : (cpus > 1) ? new int[]{1, cpus} : new int[]{1}) {
+            System.gc();
+            ConcurrentCache<String, String> warmed = ConcurrentCache.newBuilder().maximumSize(entries)
+                    .expireAfterWrite(1, TimeUnit.HOURS).build(key -> null);
+            begin = System.nanoTime();
+            long loaded = warmed.loadSnapshot(file, serializer, serializer, parallelism);
+            millis = Math.max(1, (System.nanoTime() - begin) / 1000000);
+            System.out.printf("%2d 个线程加载 %d 条（缓存中 %d 条），耗时 %d ms（%d MB/s）%n",
+                    parallelism, loaded, warmed.size(), millis, (bytes >> 20) * 1000 / millis);
+        }
+        Files.delete(file);
+    }
+
+    /**
+     * 测试用的字符串序列化，避免 JSON 的开销掩盖了快照文件本身的读写时间
+     */
+    private static final class Utf8Serializer implements CacheSerializer<String> {
+        @Override
+        public byte[] serialize(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 命中路径的吞吐量（ops/ms）。每个线程按固定的步长遍历 key，避免随机数的开销掩盖了要测量的差异。
+     */
+    private static long hits(int threads, String[] keys, ConcurrentCache<String, Object> cache) throws Exception {
+        int ops = 2000000;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int offset = t * 997;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ops; i++) {
+                            if (cache.get(keys[(offset + i * 7) % keys.length]) == null) {
+                                throw new IllegalStateException("缓存返回了空值");
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        end.await();
+        return (long) threads * ops * 1000000 / (System.nanoTime() - begin);
+    }
+
+    private static long run(int threads, String[] keys, Function<String, Object> getter) throws Exception {
+        CacheDemo.clear();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int i = 0; i < OPS_PER_THREAD; i++) {
+                            if (getter.apply(keys[random.nextInt(keys.length)]) == null) {
+                                throw new IllegalStateException("缓存返回了空值");
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        end.await();
+        long millis = Math.max(1, (System.nanoTime() - begin) / 1000000);
+        return (long) threads * OPS_PER_THREAD / millis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && "snapshot".equals(args[0])) {
+            t7(Integer.parseInt(args[1]));
+            return;
+        }
+        if (args.length == 2) {
+            t4(args[0], Integer.parseInt(args[1]));
+            return;
+        }
+        // 读写锁与 ConcurrentCache 的对比
+        //t1();
+        // 三种淘汰策略的对比
+        //t2();
+        // 过期与后台刷新的读延迟对比
+        //t3();
+        // 堆内与堆外两级存储的 GC 对比
+        //t4("heap", 1000000);
+        //t4("tiered", 1000000);
+        // 扇出读取时 get 与 getAll 的对比
+        //t5();
+        // 开启统计对命中路径的影响
+        //t6();
+        // 快照的预热时间
+        //t7(100000);
+        // 单线程时三种淘汰策略的命中率
+        t8();
+    }
+}
@@ -1,19 +1,105 @@
 package zinterview;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 题目要求：做一个缓存系统
+ *
+ * getDataByLock 是最初的实现，使用一把全局的读写锁。getData 则交给 ConcurrentCache 缓存引擎去处理，未命中时只会阻塞当前 key
+ * 的加载，并且同一个 key 只会去数据库中加载一次。两者的性能对比参考 CacheBenchmark。
+ * 并且 getData 的缓存是有容量上限的，超出时按照 W-TinyLFU 策略淘汰数据，淘汰操作不会在读路径上加全局锁。数据库中的数
+ * 据变化后，缓存中的数据也会定时在后台刷新，而不是一直不变直到重启。
+ * 超出容量的数据不会直接丢弃，而是序列化后放到堆外内存中，再次访问时重新提升到堆中，对 getData 的调用者来说是透明的。
+ * 部署重启时，可以先调用 saveSnapshot 把缓存保存到磁盘上，启动后再调用 warmUp 加载，避免冷启动时所有请求都打到数据库上。
+ * 缓存的命中率、加载耗时与热点 key 可以通过 stats() 查看，或者在 jconsole 中查看 zinterview:type=ConcurrentCache,name=CacheDemo。
  */
 public class CacheDemo {
 
     private static Map<String,Object> cache = new HashMap();
     private static ReadWriteLock lock = new ReentrantReadWriteLock();
 
+    // 缓存的最大条数。原来的 HashMap 会一直增长，直到堆内存耗尽而频繁地 full GC。
+    static final int MAXIMUM_SIZE = 100000;
+
+    private static final CacheSerializer<String> KEY_SERIALIZER = new JacksonSerializer<>(String.class);
+    private static final CacheSerializer<Object> VALUE_SERIALIZER = new JacksonSerializer<>(Object.class);
+
+    private static ConcurrentCache<String,Object> engine = ConcurrentCache.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .evictionPolicy(EvictionPolicy.TINY_LFU)
+            // 数据写入 1 分钟后在后台刷新（刷新期间仍返回旧值），5 分钟内一直没有刷新成功则过期
+            .refreshAfterWrite(1, TimeUnit.MINUTES)
+            .expireAfterWrite(5, TimeUnit.MINUTES)
+            // 超出容量的冷数据降级到堆外内存，最多 64MB
+            .offHeap(VALUE_SERIALIZER, 64 * 1024 * 1024)
+            // 记录命中率、加载耗时，以及访问最多的 16 个 key
+            .recordStats()
+            .build(new DbLoader());
+
+    static {
+        engine.registerMBean("CacheDemo");
+    }
+
+    // 模拟数据库的访问耗时（纳秒），默认为 0。测试时可以加大该值，以体现未命中时持锁加载数据的代价。
+    static volatile long dbDelayNanos = 0;
+
+    /**
+     * 模拟从数据库中取得数据
+     */
+    static Object queryDb(String key){
+        if(dbDelayNanos > 0){
+            LockSupport.parkNanos(dbDelayNanos);
+        }
+        return "数据库中的数据 ==";
+    }
+
+    /**
+     * 模拟一次数据库查询取得多条数据，例如 select * from t where id in (...)，只有一次网络往返。
+     */
+    static Map<String,Object> queryDbAll(Collection<? extends String> keys){
+        if(dbDelayNanos > 0){
+            LockSupport.parkNanos(dbDelayNanos);
+        }
+        Map<String,Object> result = new HashMap<>();
+        for(String key : keys){
+            result.put(key, "数据库中的数据 ==");
+        }
+        return result;
+    }
+
+    static class DbLoader implements CacheLoader<String,Object> {
+        @Override
+        public Object load(String key) {
+            return queryDb(key);
+        }
+
+        @Override
+        public Map<String,Object> loadAll(Collection<? extends String> keys) {
+            return queryDbAll(keys);
+        }
+    }
+
     public static Object getData(String key){
+        return engine.get(key);
+    }
+
+    /**
+     * 批量取得数据，所有未命中的 key 只查询一次数据库
+     */
+    public static Map<String,Object> getAll(Collection<String> keys){
+        return engine.getAll(keys);
+    }
+
+    public static Object getDataByLock(String key){
         lock.readLock().lock();
         Object value = null;
         try {
@@ -27,9 +113,11 @@ public class CacheDemo {
                 // 防止写操作时出现异常，而不能释放锁，所以要捕捉异常。并最后强制释放锁。
                 try {
                     // 再次判断 value 的值是否为空。就是要防止多线程并发时，其中一个线程在写，而其他线程在写操作阻塞时，在之
-                    // 后的执行中重复写入数据。
+                    // 后的执行中重复写入数据。所以这里要重新从缓存中取值，而不是判断之前取到的局部变量。
+                    value = cache.get(key);
                     if(value == null){
-                        value = "数据库中的数据 ==";
+                        value = queryDb(key);
+                        cache.put(key, value);
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -48,7 +136,46 @@ public class CacheDemo {
         return value;
     }
 
-    public static void main(String[] args) {
+    /**
+     * 清空两种实现的缓存数据，便于测试时重新开始
+     */
+    static void clear(){
+        lock.writeLock().lock();
+        try {
+            cache.clear();
+        }finally {
+            lock.writeLock().unlock();
+        }
+        engine.invalidateAll();
+    }
 
+    /**
+     * 把缓存中的数据保存为快照文件，例如在停机（部署）之前调用，返回保存的条数。
+     */
+    public static long saveSnapshot(Path file) throws IOException {
+        return engine.saveSnapshot(file, KEY_SERIALIZER, VALUE_SERIALIZER);
+    }
+
+    /**
+     * 启动时加载快照文件预热缓存，返回加载的条数。快照不存在时直接返回 0，即冷启动。
+     */
+    public static long warmUp(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        return engine.loadSnapshot(file, KEY_SERIALIZER, VALUE_SERIALIZER, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 缓存的统计数据
+     */
+    public static CacheStats stats() {
+        return engine.stats();
+    }
+
+    public static void main(String[] args) {
+        System.out.println(getData("a"));
+        System.out.println(getDataByLock("a"));
+        System.out.println(stats());
     }
 }
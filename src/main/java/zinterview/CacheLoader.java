@@ -0,0 +1,39 @@
+package zinterview;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 缓存的数据加载器：当缓存中没有对应的数据时，由它去数据库（或其他后端）中取得数据。
+ *
+ * 加载器本身不需要考虑并发问题，ConcurrentCache 会保证同一个 key 在同一时刻只有一个线程在调用 load 方法（single-flight）。
+ * 如果 load 返回 null，则表示后端中没有该数据，此时不会写入缓存。
+ */
+@FunctionalInterface
+public interface CacheLoader<K, V> {
+
+    V load(K key) throws Exception;
+
+    /**
+     * 批量加载，由 ConcurrentCache.getAll 调用，一次传入所有未命中的 key。默认是逐个调用 load，可以覆盖此方法，用一次后端请求
+     * （例如 SQL 的 where id in (...)）取得所有数据。返回的 map 中没有的 key 表示后端中没有该数据。
+     */
+    default Map<K, V> loadAll(Collection<? extends K> keys) throws Exception {
+        Map<K, V> result = new HashMap<>();
+        for (K key : keys) {
+            V value = load(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 后台刷新时调用，默认就是重新加载一次。可以覆盖此方法，根据旧值做增量的刷新。返回 null 表示保留旧值。
+     */
+    default V reload(K key, V oldValue) throws Exception {
+        return load(key);
+    }
+}
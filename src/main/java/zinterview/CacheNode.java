@@ -0,0 +1,45 @@
+package zinterview;
+
+/**
+ * ConcurrentCache 中的缓存节点。
+ *
+ * key，value 与两个时间戳可以被任意线程无锁读取。而 prev，next，queue，index，frequency 这些字段只属于淘汰策略，
+ * variableTime 及其链表指针只属于时间轮，它们都只能在持有 ConcurrentCache 的 evictionLock 时访问，所以不需要 volatile。
+ */
+final class CacheNode<K, V> {
+
+    // 节点的生命周期：在 map 中（ALIVE），已从 map 中移除（RETIRED），已从淘汰策略和时间轮中移除（DEAD）
+    static final int ALIVE = 0;
+    static final int RETIRED = 1;
+    static final int DEAD = 2;
+
+    final K key;
+    volatile V value;
+    volatile int state;
+    // 写入时间与最后访问时间（System.nanoTime），只在配置了过期或刷新时才会更新
+    volatile long writeTime;
+    volatile long accessTime;
+
+    // 以下字段由淘汰策略使用
+    CacheNode<K, V> prev;
+    CacheNode<K, V> next;
+    int queue;
+    int index = -1;
+    int frequency;
+    // 是否已加入淘汰策略与时间轮
+    boolean linked;
+
+    // 以下字段由时间轮使用，variableTime 为过期的时间点
+    long variableTime;
+    CacheNode<K, V> prevInVariable;
+    CacheNode<K, V> nextInVariable;
+
+    CacheNode(K key, V value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    boolean isAlive() {
+        return state == ALIVE;
+    }
+}
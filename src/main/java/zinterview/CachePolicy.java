@@ -0,0 +1,294 @@
+package zinterview;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 淘汰策略的公共父类。所有方法都只会在持有 ConcurrentCache 的 evictionLock 时调用，所以内部不需要任何同步。
+ *
+ * 读操作不会直接调用 onAccess，而是先记录到读缓冲区中，等到缓冲区满了或者有写操作时再批量重放。这样读路径上就不需要加锁，
+ * 代价只是策略看到的访问顺序稍有延迟，并且在竞争激烈时会丢弃一部分访问记录（对命中率的影响很小）。
+ */
+abstract class CachePolicy<K, V> {
+
+    int size;
+
+    /**
+     * 新的节点加入缓存
+     */
+    abstract void onAdd(CacheNode<K, V> node);
+
+    /**
+     * 节点被访问（读取或者更新）
+     */
+    abstract void onAccess(CacheNode<K, V> node);
+
+    /**
+     * 节点被主动移除（invalidate 或者过期）
+     */
+    abstract void onRemove(CacheNode<K, V> node);
+
+    /**
+     * 选出一个要淘汰的节点，并把它从策略中移除。只会在 size 大于最大容量时调用。
+     */
+    abstract CacheNode<K, V> evict();
+
+
+    /**
+     * 侵入式的双向链表，直接使用节点上的 prev，next 字段，所以移动一个节点是 O(1) 的，并且不需要额外分配对象。
+     */
+    static final class AccessOrderDeque<K, V> {
+        CacheNode<K, V> first;
+        CacheNode<K, V> last;
+
+        void addLast(CacheNode<K, V> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        void remove(CacheNode<K, V> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(CacheNode<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        CacheNode<K, V> pollFirst() {
+            CacheNode<K, V> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+    }
+
+
+    static final class Lru<K, V> extends CachePolicy<K, V> {
+        private final AccessOrderDeque<K, V> deque = new AccessOrderDeque<>();
+
+        @Override
+        void onAdd(CacheNode<K, V> node) {
+            deque.addLast(node);
+            size++;
+        }
+
+        @Override
+        void onAccess(CacheNode<K, V> node) {
+            deque.moveToBack(node);
+        }
+
+        @Override
+        void onRemove(CacheNode<K, V> node) {
+            deque.remove(node);
+            size--;
+        }
+
+        @Override
+        CacheNode<K, V> evict() {
+            CacheNode<K, V> node = deque.pollFirst();
+            if (node != null) {
+                size--;
+            }
+            return node;
+        }
+    }
+
+
+    static final class SampledLfu<K, V> extends CachePolicy<K, V> {
+        // 每次淘汰时抽取的节点数
+        private static final int SAMPLES = 8;
+        private static final int MAX_FREQUENCY = 255;
+
+        // 所有节点存放在数组中，以便于随机抽样。移除时把最后一个节点填到空位上，所以也是 O(1) 的。
+        private CacheNode<K, V>[] nodes;
+        private final long agingPeriod;
+        private long accesses;
+
+        SampledLfu(long maximumSize) {
+            nodes = newNodes((int) Math.min(Math.max(maximumSize + 1, 16), 1 << 20));
+            agingPeriod = Math.max(maximumSize * 10, 1000);
+        }
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        private static <K, V> CacheNode<K, V>[] newNodes(int length) {
+            return new CacheNode[length];
+        }
+
+        @Override
+        void onAdd(CacheNode<K, V> node) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            node.index = size;
+            node.frequency = 1;
+            nodes[size++] = node;
+        }
+
+        @Override
+        void onAccess(CacheNode<K, V> node) {
+            if (node.frequency < MAX_FREQUENCY) {
+                node.frequency++;
+            }
+            // 定期把所有的访问次数减半，让过去的热点数据慢慢冷却。平均到每次访问上的代价是 O(1) 的。
+            if (++accesses == agingPeriod) {
+                accesses = 0;
+                for (int i = 0; i < size; i++) {
+                    nodes[i].frequency >>>= 1;
+                }
+            }
+        }
+
+        @Override
+        void onRemove(CacheNode<K, V> node) {
+            int index = node.index;
+            CacheNode<K, V> tail = nodes[--size];
+            nodes[index] = tail;
+            tail.index = index;
+            nodes[size] = null;
+            node.index = -1;
+        }
+
+        @Override
+        CacheNode<K, V> evict() {
+            if (size == 0) {
+                return null;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            CacheNode<K, V> victim = nodes[random.nextInt(size)];
+            for (int i = 1; i < SAMPLES; i++) {
+                CacheNode<K, V> node = nodes[random.nextInt(size)];
+                if (node.frequency < victim.frequency) {
+                    victim = node;
+                }
+            }
+            onRemove(victim);
+            return victim;
+        }
+    }
+
+
+    static final class WindowTinyLfu<K, V> extends CachePolicy<K, V> {
+        private static final int WINDOW = 0;
+        private static final int PROBATION = 1;
+        private static final int PROTECTED = 2;
+
+        private final AccessOrderDeque<K, V> window = new AccessOrderDeque<>();
+        private final AccessOrderDeque<K, V> probation = new AccessOrderDeque<>();
+        private final AccessOrderDeque<K, V> protect = new AccessOrderDeque<>();
+        private final FrequencySketch sketch;
+
+        // 窗口占总容量的 1%，主区中受保护的部分占 80%
+        private final long windowMaximum;
+        private final long protectedMaximum;
+        private long windowSize;
+        private long protectedSize;
+
+        WindowTinyLfu(long maximumSize) {
+            windowMaximum = Math.max(1, maximumSize / 100);
+            protectedMaximum = (long) ((maximumSize - windowMaximum) * 0.8);
+            sketch = new FrequencySketch(maximumSize);
+        }
+
+        @Override
+        void onAdd(CacheNode<K, V> node) {
+            sketch.increment(node.key);
+            node.queue = WINDOW;
+            window.addLast(node);
+            windowSize++;
+            size++;
+        }
+
+        @Override
+        void onAccess(CacheNode<K, V> node) {
+            sketch.increment(node.key);
+            if (node.queue == WINDOW) {
+                window.moveToBack(node);
+            } else if (node.queue == PROBATION) {
+                // 在试用区中再次被访问，就晋升到保护区。保护区满了则把最久未访问的节点降回试用区。
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protect.addLast(node);
+                protectedSize++;
+                if (protectedSize > protectedMaximum) {
+                    CacheNode<K, V> demoted = protect.pollFirst();
+                    protectedSize--;
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+            } else {
+                protect.moveToBack(node);
+            }
+        }
+
+        @Override
+        void onRemove(CacheNode<K, V> node) {
+            if (node.queue == WINDOW) {
+                window.remove(node);
+                windowSize--;
+            } else if (node.queue == PROBATION) {
+                probation.remove(node);
+            } else {
+                protect.remove(node);
+                protectedSize--;
+            }
+            size--;
+        }
+
+        @Override
+        CacheNode<K, V> evict() {
+            // 窗口中超出 windowMaximum 的节点全部按顺序移入试用区的尾部。预热期间（size 没有超过容量）不会调用 evict，
+            // 窗口会一直增长，第一次淘汰时要一次把它缩回 windowMaximum，否则窗口只能每次减少一个，主区一直是空的，
+            // 整个策略就退化成了 LRU
+            CacheNode<K, V> candidate = null;
+            while (windowSize > windowMaximum) {
+                candidate = window.pollFirst();
+                windowSize--;
+                candidate.queue = PROBATION;
+                probation.addLast(candidate);
+            }
+
+            // 候选者是最后一个移入试用区的节点（稳定之后每次加入一个节点，也就只移入这一个），淘汰者是试用区的头部
+            CacheNode<K, V> victim = probation.first;
+            if (victim == candidate) {
+                // 试用区中只有候选者
+                victim = protect.first;
+            }
+
+            CacheNode<K, V> evicted;
+            if (candidate == null || victim == null) {
+                evicted = (victim != null) ? victim : candidate;
+                if (evicted == null) {
+                    evicted = (protect.first != null) ? protect.first : window.first;
+                }
+            } else {
+                // 准入过滤：候选者的访问频率必须高于淘汰者，才能把淘汰者挤出去
+                evicted = (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) ? victim : candidate;
+            }
+            if (evicted != null) {
+                onRemove(evicted);
+            }
+            return evicted;
+        }
+    }
+}
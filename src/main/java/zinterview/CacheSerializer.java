@@ -0,0 +1,11 @@
+package zinterview;
+
+/**
+ * 缓存数据的序列化方式，用于把数据存入堆外内存（或者磁盘）时转换为字节。实现类必须是线程安全的。
+ */
+public interface CacheSerializer<V> {
+
+    byte[] serialize(V value) throws Exception;
+
+    V deserialize(byte[] bytes) throws Exception;
+}
@@ -0,0 +1,238 @@
+package zinterview;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 缓存快照文件的读写，用于 ConcurrentCache 的预热（saveSnapshot / loadSnapshot）。
+ *
+ * 文件格式：
+ * [分区 0 的记录][分区 1 的记录]...[分区表][分区数 int][保存时间 long][版本 int][MAGIC int]
+ * 每条记录为 [key 长度 int][value 长度 int][已写入的时长（毫秒）long][key][value]，记录之间没有任何填充。
+ * 分区表中每个分区为 [起始位置 long][长度 int][记录数 int]。
+ *
+ * 写入时记录按顺序追加，每满 PARTITION_SIZE 字节就结束一个分区。分区表放在文件的末尾，因为写完之前并不知道有多少个分区。
+ * 读取时先读出末尾的分区表，再由多个线程各自把一个分区映射（mmap）到内存中解析，所以加载的代价是对文件的顺序读取，并且可以
+ * 并行。
+ *
+ * 写入时先写到一个临时文件中，全部写完并 force 到磁盘之后再改名为目标文件。所以进程在保存的过程中崩溃，也不会留下一个不完整
+ * 的快照；末尾的 MAGIC 则用于识别被截断或者格式不对的文件。
+ */
+final class CacheSnapshot {
+
+    static final int MAGIC = 0x43534E50;
+    static final int VERSION = 1;
+
+    static final int RECORD_HEADER = 16;
+    private static final int PARTITION_ENTRY = 16;
+    private static final int TRAILER = 20;
+    private static final int PARTITION_SIZE = 8 << 20;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private CacheSnapshot() {
+    }
+
+    static final class Writer implements Closeable {
+        private final Path file;
+        private final Path temp;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        // 分区表：每个分区的 [起始位置, 长度, 记录数]
+        private long[] partitions = new long[3 * 64];
+        private int partitionCount;
+        private long partitionStart;
+        private int partitionRecords;
+        private long position;
+        private long records;
+        private boolean completed;
+
+        Writer(Path file) throws IOException {
+            this.file = file;
+            this.temp = file.resolveSibling(file.getFileName() + ".tmp");
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void append(byte[] key, byte[] value, long ageMillis) throws IOException {
+            int length = RECORD_HEADER + key.length + value.length;
+            if (buffer.remaining() < RECORD_HEADER) {
+                flush();
+            }
+            buffer.putInt(key.length);
+            buffer.putInt(value.length);
+            buffer.putLong(ageMillis);
+            put(key);
+            put(value);
+            position += length;
+            records++;
+            partitionRecords++;
+            if (position - partitionStart >= PARTITION_SIZE) {
+                endPartition();
+            }
+        }
+
+        /**
+         * 写入的记录数
+         */
+        long records() {
+            return records;
+        }
+
+        /**
+         * 写入分区表，并把临时文件改名为目标文件。
+         */
+        void complete() throws IOException {
+            endPartition();
+            for (int i = 0; i < partitionCount; i++) {
+                if (buffer.remaining() < PARTITION_ENTRY) {
+                    flush();
+                }
+                buffer.putLong(partitions[3 * i]);
+                buffer.putInt((int) partitions[3 * i + 1]);
+                buffer.putInt((int) partitions[3 * i + 2]);
+            }
+            if (buffer.remaining() < TRAILER) {
+                flush();
+            }
+            buffer.putInt(partitionCount);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putInt(VERSION);
+            buffer.putInt(MAGIC);
+            flush();
+            channel.force(true);
+            channel.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            completed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!completed) {
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private void put(byte[] bytes) throws IOException {
+            if (bytes.length <= buffer.remaining()) {
+                buffer.put(bytes);
+                return;
+            }
+            // 放不下的大数据不经过缓冲区，直接写入
+            flush();
+            if (bytes.length <= buffer.remaining()) {
+                buffer.put(bytes);
+            } else {
+                ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+                while (wrapped.hasRemaining()) {
+                    channel.write(wrapped);
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void endPartition() {
+            if (partitionRecords == 0) {
+                return;
+            }
+            if (3 * partitionCount == partitions.length) {
+                long[] grown = new long[partitions.length * 2];
+                System.arraycopy(partitions, 0, grown, 0, partitions.length);
+                partitions = grown;
+            }
+            partitions[3 * partitionCount] = partitionStart;
+            partitions[3 * partitionCount + 1] = position - partitionStart;
+            partitions[3 * partitionCount + 2] = partitionRecords;
+            partitionCount++;
+            partitionStart = position;
+            partitionRecords = 0;
+        }
+    }
+
+    static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final long[] partitions;
+        private final long savedAt;
+
+        Reader(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < TRAILER) {
+                    throw new IOException("快照文件格式错误：" + file);
+                }
+                ByteBuffer trailer = read(size - TRAILER, TRAILER);
+                int count = trailer.getInt();
+                savedAt = trailer.getLong();
+                int version = trailer.getInt();
+                if (trailer.getInt() != MAGIC || version != VERSION || count < 0
+                        || (long) count * PARTITION_ENTRY > size - TRAILER) {
+                    throw new IOException("快照文件格式错误：" + file);
+                }
+                ByteBuffer table = read(size - TRAILER - (long) count * PARTITION_ENTRY, count * PARTITION_ENTRY);
+                partitions = new long[3 * count];
+                for (int i = 0; i < count; i++) {
+                    partitions[3 * i] = table.getLong();
+                    partitions[3 * i + 1] = table.getInt();
+                    partitions[3 * i + 2] = table.getInt();
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        int partitions() {
+            return partitions.length / 3;
+        }
+
+        int records(int partition) {
+            return (int) partitions[3 * partition + 2];
+        }
+
+        /**
+         * 保存快照时的时间（System.currentTimeMillis）
+         */
+        long savedAt() {
+            return savedAt;
+        }
+
+        /**
+         * 把一个分区映射到内存中。可以由多个线程同时调用。
+         */
+        MappedByteBuffer map(int partition) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, partitions[3 * partition], partitions[3 * partition + 1]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("快照文件被截断");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
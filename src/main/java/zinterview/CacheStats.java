@@ -0,0 +1,112 @@
+package zinterview;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ConcurrentCache 统计数据的快照，由 ConcurrentCache.stats() 取得，取得之后不会再变化。
+ *
+ * 未命中（miss）指堆中没有可用的数据，包括之后从堆外提升回来的情况；加载（load）指真正调用了加载器。
+ * 淘汰（eviction）包括因为容量限制被淘汰与因为过期被清理的数据。锁等待时间为等待其他线程加载同一个 key，以及阻塞获取
+ * evictionLock 的时间之和。
+ */
+public final class CacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long evictionCount;
+    private final long lockWaitTime;
+    private final long[] loadTimeHistogram;
+    private final List<Map.Entry<Object, Long>> hotKeys;
+
+    CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount, long totalLoadTime,
+               long evictionCount, long lockWaitTime, long[] loadTimeHistogram, List<Map.Entry<Object, Long>> hotKeys) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.evictionCount = evictionCount;
+        this.lockWaitTime = lockWaitTime;
+        this.loadTimeHistogram = loadTimeHistogram;
+        this.hotKeys = Collections.unmodifiableList(hotKeys);
+    }
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    public double hitRate() {
+        long requests = requestCount();
+        return (requests == 0) ? 1.0 : (double) hitCount / requests;
+    }
+
+    public long loadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    public long loadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * 所有加载的总耗时（纳秒）
+     */
+    public long totalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * 平均每次加载的耗时（纳秒）
+     */
+    public double averageLoadPenalty() {
+        long loads = loadSuccessCount + loadFailureCount;
+        return (loads == 0) ? 0.0 : (double) totalLoadTime / loads;
+    }
+
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 锁等待的总时间（纳秒）
+     */
+    public long lockWaitTime() {
+        return lockWaitTime;
+    }
+
+    /**
+     * 加载耗时的分布：第 0 个元素为小于 1 微秒的次数，第 i 个元素为 [2^(i-1), 2^i) 微秒的次数。
+     */
+    public long[] loadTimeHistogram() {
+        return loadTimeHistogram.clone();
+    }
+
+    /**
+     * 访问最多的 key 及其（估算的）访问次数，按次数从大到小排列。
+     */
+    public List<Map.Entry<Object, Long>> hotKeys() {
+        return hotKeys;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hitCount=" + hitCount + ", missCount=" + missCount + ", hitRate="
+                + String.format("%.4f", hitRate()) + ", loadSuccessCount=" + loadSuccessCount
+                + ", loadFailureCount=" + loadFailureCount + ", averageLoadPenalty="
+                + String.format("%.0f", averageLoadPenalty()) + "ns, evictionCount=" + evictionCount
+                + ", lockWaitTime=" + lockWaitTime + "ns, hotKeys=" + hotKeys + "}";
+    }
+}
@@ -0,0 +1,35 @@
+package zinterview;
+
+/**
+ * 通过 JMX 暴露 ConcurrentCache 的统计数据，可以在 jconsole 或 VisualVM 的 MBean 页面中查看。
+ * 使用 ConcurrentCache.registerMBean(name) 注册，ObjectName 为 zinterview:type=ConcurrentCache,name=xxx。
+ */
+public interface CacheStatsMXBean {
+
+    long getSize();
+
+    long getOffHeapSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getLoadSuccessCount();
+
+    long getLoadFailureCount();
+
+    double getAverageLoadPenaltyNanos();
+
+    long getEvictionCount();
+
+    long getLockWaitTimeNanos();
+
+    long[] getLoadTimeHistogram();
+
+    /**
+     * 热点 key，格式为 key=访问次数
+     */
+    String[] getHotKeys();
+}
@@ -0,0 +1,1245 @@
+package zinterview;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于 ConcurrentHashMap 的缓存引擎，用于替换 CacheDemo 中全局读写锁的实现。
+ *
+ * CacheDemo 原来的问题：
+ * 1，整个 HashMap 只有一把 ReentrantReadWriteLock，任何一个 key 未命中时都要升级为写锁，而写锁是互斥的，这时所有 key 的读操作
+ * 都会被阻塞，即一个 key 的未命中会拖慢整个缓存。
+ * 2，写锁期间去数据库中加载数据，即持锁时间就是数据库的访问时间。
+ *
+ * 本类的做法：
+ * 1，数据存放在 ConcurrentHashMap 中，其内部是按桶（bin）加锁的，读操作完全无锁（volatile 读）。所以命中时不会有任何锁竞争。
+ * 2，未命中时不加任何全局锁，而是为每个 key 登记一个 CompletableFuture（single-flight）。同一个 key 并发未命中时，只有第一个
+ * 登记成功的线程去调用加载器，其他线程等待它的 future 即可。即不同 key 的未命中之间互不阻塞，同一个 key 只会加载一次。
+ * getAll 批量查询时也是一样，所有未命中并且登记成功的 key 通过一次 loadAll 加载，其他线程正在加载的 key 则等待它们的结果。
+ * 3，加载期间不持有任何锁，所以数据库的访问时间不会变成其他线程的等待时间。
+ *
+ * 容量限制（maximumSize）与过期（expireAfterWrite，expireAfterAccess）：
+ * 淘汰策略（EvictionPolicy）与时间轮（TimerWheel）本身都不是线程安全的，由 evictionLock 保护。但读操作并不去获取这把锁，而是
+ * 把访问记录放入分段的读缓冲区中；写操作则把对它们的修改放入写缓冲区中。之后由某一个线程 tryLock 成功后批量重放（维护操作），
+ * 获取锁失败的线程直接返回，所以任何读写操作都不会因为淘汰或过期而阻塞等待。
+ * 已经过期但还没有被时间轮清理的数据，在读取时会被当作未命中，所以不会读到过期的数据。
+ *
+ * 刷新（refreshAfterWrite）：
+ * 数据写入超过刷新时间后，第一次读取时会在后台线程池中重新加载，在此期间仍然返回旧值，所以读线程不会因为数据变旧而等待数据库。
+ * 刷新时间应当小于过期时间，否则数据会先过期，读取时只能同步加载。
+ *
+ * 堆外存储（offHeap）：
+ * 因为容量限制被淘汰的数据，不直接丢弃，而是序列化后降级到堆外内存（OffHeapStore）中。之后再次访问时，在未命中的加载流程中
+ * 先到堆外查找，找到则反序列化并重新提升到堆中，找不到才调用加载器。即热数据在堆中，冷数据在堆外，对调用者来说仍然是同一个
+ * get 方法。这样堆中的对象数量只取决于 maximumSize，而不是全部的数据量，GC 的停顿时间也就不会随着数据量增长。
+ *
+ * 统计（recordStats）：
+ * 未命中、加载耗时等计数使用 LongAdder。命中路径上则没有任何额外的操作：每次命中本来就会记录到读缓冲区中，命中数与热点
+ * key 都是在维护操作重放读缓冲区时统计的，只有没能记录到读缓冲区中的命中（缓冲区满了或者 CAS 失败）才单独累加。
+ * 统计数据可以通过 stats() 取得快照，也可以通过 registerMBean 注册到 JMX 中查看。
+ *
+ * 快照（saveSnapshot，loadSnapshot）：
+ * 把堆中的数据保存到磁盘上，重启之后先加载快照再对外服务，避免冷启动时所有请求都打到数据库上。快照的格式参考 CacheSnapshot，
+ * 加载时多个线程并行地把各个分区映射到内存中解析，并且按批写入缓存（每批只做一次维护操作），而不是逐条调用 put。
+ * 数据的写入时间也保存在快照中，所以过期与刷新的时间点不会因为重启而推迟。
+ */
+public class ConcurrentCache<K, V> {
+
+    // 加载快照时，每写入这么多条数据做一次维护操作
+    private static final int RESTORE_BATCH = 4096;
+
+    private final ConcurrentHashMap<K, CacheNode<K, V>> data;
+    // 正在加载中的 key，value 为加载结果的 future。加载完成（无论成功失败）后就会移除。
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    private final CacheLoader<? super K, V> loader;
+
+    private final long maximumSize;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final long refreshAfterWriteNanos;
+    private final Executor executor;
+    // 正在后台刷新的 key
+    private final Set<K> refreshing;
+    // 堆外存储，没有配置时为 null
+    private final OffHeapStore<K> offHeap;
+    private final CacheSerializer<V> serializer;
+    // 统计，没有开启时为 null
+    private final StatsCounter stats;
+    private final SpaceSavingSketch hotKeys;
+    private final int topK;
+    // registerMBean 注册的名字，没有注册时为 null
+    private volatile ObjectName mbeanName;
+
+    // 以下字段只在有容量限制或者过期时间时使用
+    private final CachePolicy<K, V> policy;
+    private final TimerWheel<K, V> timerWheel;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final StripedReadBuffer<CacheNode<K, V>> readBuffer;
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer;
+
+    public ConcurrentCache(CacheLoader<? super K, V> loader) {
+        this(loader, 16);
+    }
+
+    public ConcurrentCache(CacheLoader<? super K, V> loader, int initialCapacity) {
+        this(newBuilder().initialCapacity(initialCapacity), loader);
+    }
+
+    private ConcurrentCache(Builder builder, CacheLoader<? super K, V> loader) {
+        if (loader == null) {
+            throw new NullPointerException("loader");
+        }
+        this.loader = loader;
+        this.data = new ConcurrentHashMap<>(builder.initialCapacity);
+        this.maximumSize = builder.maximumSize;
+        this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+        this.refreshAfterWriteNanos = builder.refreshAfterWriteNanos;
+        this.executor = builder.executor;
+        this.refreshing = refreshesAfterWrite() ? ConcurrentHashMap.<K>newKeySet() : null;
+        if (builder.serializer != null) {
+            @SuppressWarnings("unchecked")
+            CacheSerializer<V> serializer = (CacheSerializer<V>) builder.serializer;
+            this.serializer = serializer;
+            this.offHeap = new OffHeapStore<>(builder.offHeapMaximumBytes);
+        } else {
+            this.serializer = null;
+            this.offHeap = null;
+        }
+
+        if (builder.topK > 0) {
+            this.stats = new StatsCounter();
+            this.hotKeys = new SpaceSavingSketch(builder.topK);
+            this.topK = builder.topK;
+        } else {
+            this.stats = null;
+            this.hotKeys = null;
+            this.topK = 0;
+        }
+
+        policy = (maximumSize >= 0) ? builder.evictionPolicy.<K, V>create(maximumSize) : null;
+        timerWheel = expires() ? new TimerWheel<K, V>(System.nanoTime()) : null;
+        if (policy != null || timerWheel != null || stats != null) {
+            readBuffer = new StripedReadBuffer<>();
+            writeBuffer = new ConcurrentLinkedQueue<>();
+        } else {
+            readBuffer = null;
+            writeBuffer = null;
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * 只查询缓存，不会触发加载。
+     */
+    public V getIfPresent(K key) {
+        CacheNode<K, V> node = data.get(key);
+        if (node == null) {
+            if (stats != null) {
+                stats.misses.increment();
+            }
+            return (offHeap != null) ? promote(key) : null;
+        }
+        long now = tick();
+        if (hasExpired(node, now)) {
+            if (stats != null) {
+                stats.misses.increment();
+            }
+            return null;
+        }
+        afterRead(node, now);
+        return node.value;
+    }
+
+    /**
+     * 查询缓存，未命中时通过加载器加载，并写入缓存。加载失败时抛出 RuntimeException（原因为加载器抛出的异常）。
+     */
+    public V get(K key) {
+        CacheNode<K, V> node = data.get(key);
+        if (node != null) {
+            long now = tick();
+            if (!hasExpired(node, now)) {
+                afterRead(node, now);
+                return node.value;
+            }
+        }
+        if (stats != null) {
+            stats.misses.increment();
+        }
+        return load(key);
+    }
+
+    /**
+     * 批量查询缓存。命中的数据在一次遍历中取得，所有未命中的 key 只调用一次加载器的 loadAll，而不是每个 key 访问一次后端。
+     * 返回的 map 按照 keys 的顺序排列，后端中没有的 key 不会出现在结果中。
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> found = new HashMap<>();
+        List<K> misses = new ArrayList<>();
+        long now = tick();
+        for (K key : keys) {
+            if (found.containsKey(key)) {
+                continue;
+            }
+            CacheNode<K, V> node = data.get(key);
+            if (node != null && !hasExpired(node, now)) {
+                afterRead(node, now);
+                found.put(key, node.value);
+            } else if (offHeap != null && promoteInto(key, found)) {
+                if (stats != null) {
+                    stats.misses.increment();
+                }
+            } else {
+                misses.add(key);
+            }
+        }
+        if (stats != null) {
+            stats.misses.add(misses.size());
+        }
+        if (!misses.isEmpty()) {
+            loadAll(misses, found);
+        }
+
+        Map<K, V> result = new LinkedHashMap<>(found.size() * 2);
+        for (K key : keys) {
+            V value = found.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    public void put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        if (offHeap != null) {
+            offHeap.remove(key);
+        }
+        put(key, value, tick());
+    }
+
+    /**
+     * 批量写入，对淘汰策略的修改在全部写入之后统一处理一次。
+     */
+    public void putAll(Map<? extends K, ? extends V> map) {
+        long now = tick();
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            if (entry.getValue() == null) {
+                throw new NullPointerException("value");
+            }
+            if (offHeap != null) {
+                offHeap.remove(entry.getKey());
+            }
+            doPut(entry.getKey(), entry.getValue(), now);
+        }
+        if (writeBuffer != null) {
+            scheduleDrain();
+        }
+    }
+
+    private void put(K key, V value, long now) {
+        doPut(key, value, now);
+        if (writeBuffer != null) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * 写入数据，并把对淘汰策略与时间轮的修改放入写缓冲区，但不执行维护操作。
+     */
+    private void doPut(K key, V value, long now) {
+        if (writeBuffer == null) {
+            CacheNode<K, V> node = new CacheNode<>(key, value);
+            node.writeTime = now;
+            data.put(key, node);
+            return;
+        }
+        CacheNode<K, V> node = data.get(key);
+        if (node != null) {
+            node.value = value;
+            node.writeTime = now;
+            node.accessTime = now;
+            // 更新的节点可能同时被淘汰了，这时要重新放入
+            if (data.get(key) == node) {
+                writeBuffer.add(() -> onUpdate(node));
+                return;
+            }
+        }
+        CacheNode<K, V> added = new CacheNode<>(key, value);
+        added.writeTime = now;
+        added.accessTime = now;
+        CacheNode<K, V> prior = data.put(key, added);
+        if (prior != null) {
+            prior.state = CacheNode.RETIRED;
+            writeBuffer.add(() -> unlink(prior));
+        }
+        writeBuffer.add(() -> link(added));
+    }
+
+    /**
+     * 只在 key 不存在时写入，不执行维护操作。
+     */
+    private boolean putIfAbsent(K key, V value, long writeTime) {
+        CacheNode<K, V> added = new CacheNode<>(key, value);
+        added.writeTime = writeTime;
+        added.accessTime = writeTime;
+        if (data.putIfAbsent(key, added) != null) {
+            return false;
+        }
+        if (writeBuffer != null) {
+            writeBuffer.add(() -> link(added));
+        }
+        return true;
+    }
+
+    public void invalidate(K key) {
+        CacheNode<K, V> node;
+        if (offHeap == null) {
+            node = data.remove(key);
+        } else {
+            // 与 evictEntries 中的降级对同一个 key 互斥：否则在删除堆外数据与删除堆中节点之间，淘汰可能刚好把这个节点
+            // 降级到堆外，之后的 get 又会把已经 invalidate 的旧值提升回来
+            AtomicReference<CacheNode<K, V>> removed = new AtomicReference<>();
+            data.compute(key, (k, n) -> {
+                offHeap.remove(k);
+                removed.set(n);
+                return null;
+            });
+            node = removed.get();
+        }
+        if (node != null && writeBuffer != null) {
+            node.state = CacheNode.RETIRED;
+            afterWrite(() -> unlink(node));
+        }
+    }
+
+    public void invalidateAll() {
+        if (offHeap != null) {
+            offHeap.clear();
+        }
+        if (writeBuffer == null) {
+            data.clear();
+            return;
+        }
+        lockEviction();
+        try {
+            maintenance();
+            for (CacheNode<K, V> node : data.values()) {
+                if (data.remove(node.key, node)) {
+                    node.state = CacheNode.RETIRED;
+                    unlink(node);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * 堆中缓存的条数，可能包含已经过期但还没有被清理的数据。
+     */
+    public long size() {
+        return data.mappingCount();
+    }
+
+    /**
+     * 堆外缓存的条数，没有配置堆外存储时为 0。
+     */
+    public long offHeapSize() {
+        return (offHeap != null) ? offHeap.size() : 0;
+    }
+
+    /**
+     * 立即执行一次维护操作：重放读写缓冲区，清理过期数据，并淘汰超出容量的数据。
+     * 缓存只在读写时顺带做维护，如果长时间没有访问，过期的数据会一直占用内存，这时可以定时调用此方法。
+     */
+    public void cleanUp() {
+        if (writeBuffer == null) {
+            return;
+        }
+        lockEviction();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * 把堆中的数据保存为快照文件，返回保存的条数。已经过期的数据不保存，堆外的冷数据也不保存（预热只需要热数据）。
+     * 保存期间缓存可以正常读写，快照中是保存过程中遍历到的数据。序列化失败的数据会被跳过。
+     */
+    public long saveSnapshot(Path file, CacheSerializer<K> keySerializer, CacheSerializer<V> valueSerializer)
+            throws IOException {
+        long now = tick();
+        try (CacheSnapshot.Writer writer = new CacheSnapshot.Writer(file)) {
+            for (CacheNode<K, V> node : data.values()) {
+                if (!node.isAlive() || hasExpired(node, now)) {
+                    continue;
+                }
+                byte[] key;
+                byte[] value;
+                try {
+                    key = keySerializer.serialize(node.key);
+                    value = valueSerializer.serialize(node.value);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                long ageMillis = (now == 0L) ? 0L : TimeUnit.NANOSECONDS.toMillis(now - node.writeTime);
+                writer.append(key, value, ageMillis);
+            }
+            writer.complete();
+            return writer.records();
+        }
+    }
+
+    /**
+     * 加载快照文件，使用 parallelism 个线程并行解析，返回加载的条数。加载期间缓存可以正常读写，快照中的数据不会覆盖
+     * 已经存在的数据。已经过期的数据（包括保存之后到现在经过的时间）会被跳过。
+     */
+    public long loadSnapshot(Path file, CacheSerializer<K> keySerializer, CacheSerializer<V> valueSerializer,
+                             int parallelism) throws IOException {
+        try (CacheSnapshot.Reader reader = new CacheSnapshot.Reader(file)) {
+            long elapsedMillis = Math.max(0L, System.currentTimeMillis() - reader.savedAt());
+            AtomicInteger cursor = new AtomicInteger();
+            AtomicLong loaded = new AtomicLong();
+            AtomicReference<IOException> failure = new AtomicReference<>();
+            int threads = Math.max(1, Math.min(parallelism, reader.partitions()));
+            CountDownLatch end = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            int partition;
+                            while (failure.get() == null && (partition = cursor.getAndIncrement()) < reader.partitions()) {
+                                loaded.addAndGet(restore(reader.map(partition), reader.records(partition),
+                                        elapsedMillis, keySerializer, valueSerializer));
+                            }
+                        } catch (IOException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            end.countDown();
+                        }
+                    }
+                }, "snapshot-loader-" + t).start();
+            }
+            try {
+                end.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("加载快照时被中断", e);
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            return loaded.get();
+        }
+    }
+
+    /**
+     * 解析一个分区，并按批写入缓存，返回写入的条数。
+     */
+    private long restore(ByteBuffer partition, int records, long elapsedMillis,
+                         CacheSerializer<K> keySerializer, CacheSerializer<V> valueSerializer) throws IOException {
+        long restored = 0;
+        long now = tick();
+        int batch = 0;
+        for (int i = 0; i < records; i++) {
+            if (partition.remaining() < CacheSnapshot.RECORD_HEADER) {
+                throw new IOException("快照文件已损坏");
+            }
+            int keyLength = partition.getInt();
+            int valueLength = partition.getInt();
+            long ageNanos = TimeUnit.MILLISECONDS.toNanos(partition.getLong() + elapsedMillis);
+            if (keyLength < 0 || valueLength < 0 || (long) keyLength + valueLength > partition.remaining()) {
+                throw new IOException("快照文件已损坏");
+            }
+            byte[] keyBytes = new byte[keyLength];
+            byte[] valueBytes = new byte[valueLength];
+            partition.get(keyBytes);
+            partition.get(valueBytes);
+            if (expireAfterWriteNanos > 0 && ageNanos >= expireAfterWriteNanos) {
+                continue;
+            }
+            K key;
+            V value;
+            try {
+                key = keySerializer.deserialize(keyBytes);
+                value = valueSerializer.deserialize(valueBytes);
+            } catch (Exception e) {
+                e.printStackTrace();
+                continue;
+            }
+            // 保留原来的写入时间（只有需要计时的时候 now 才不为 0）
+            if (key == null || value == null || !putIfAbsent(key, value, (now == 0L) ? 0L : now - ageNanos)) {
+                continue;
+            }
+            restored++;
+            if (++batch == RESTORE_BATCH && writeBuffer != null) {
+                batch = 0;
+                scheduleDrain();
+            }
+        }
+        if (writeBuffer != null) {
+            scheduleDrain();
+        }
+        return restored;
+    }
+
+    /**
+     * 取得统计数据的快照。没有开启统计时所有的计数都为 0。
+     */
+    public CacheStats stats() {
+        if (stats == null) {
+            return new CacheStats(0, 0, 0, 0, 0, 0, 0,
+                    new long[StatsCounter.HISTOGRAM_BUCKETS], new ArrayList<Map.Entry<Object, Long>>());
+        }
+        List<Map.Entry<Object, Long>> top;
+        long hits;
+        lockEviction();
+        try {
+            maintenance();
+            top = hotKeys.top(topK);
+            hits = stats.replayedHits + stats.hits.sum();
+        } finally {
+            evictionLock.unlock();
+        }
+        return new CacheStats(hits, stats.misses.sum(), stats.loadSuccesses.sum(),
+                stats.loadFailures.sum(), stats.totalLoadNanos.sum(), stats.evictions.sum(),
+                stats.lockWaitNanos.sum(), stats.histogram(), top);
+    }
+
+    /**
+     * 把统计数据注册到 JMX 中，ObjectName 为 zinterview:type=ConcurrentCache,name=name，返回是否注册成功。
+     * 同名的 MBean 已经存在时（例如同一个 JVM 中再次加载了同一个类：另一个 ClassLoader，重新部署，测试框架）替换为当前的
+     * 缓存。统计只是监控用的功能，注册失败时只打印异常，不影响缓存的使用，所以可以在静态初始化中调用。
+     */
+    public boolean registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("zinterview:type=ConcurrentCache,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.registerMBean(new StatsMXBean(), objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                unregister(server, objectName);
+                server.registerMBean(new StatsMXBean(), objectName);
+            }
+            mbeanName = objectName;
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 注销 registerMBean 注册的 MBean，没有注册过时什么也不做。注意按名字注销：已经被同名的其他缓存替换时，注销的是替换后的
+     * 那一个。
+     */
+    public void unregisterMBean() {
+        ObjectName objectName = mbeanName;
+        if (objectName == null) {
+            return;
+        }
+        mbeanName = null;
+        unregister(ManagementFactory.getPlatformMBeanServer(), objectName);
+    }
+
+    private static void unregister(MBeanServer server, ObjectName objectName) {
+        try {
+            server.unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // 已经被注销了
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private V load(K key) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            // 已经有线程在加载这个 key 了，等待它的结果即可
+            return awaitLoad(running);
+        }
+        try {
+            // 再次判断缓存中是否有值。因为在本线程登记 future 之前，另一个线程可能刚刚加载完成并移除了它的 future。
+            CacheNode<K, V> node = data.get(key);
+            V value;
+            if (node != null && !hasExpired(node, tick())) {
+                value = node.value;
+            } else if (offHeap != null && (value = promote(key)) != null) {
+                // 在堆外找到了，已经重新提升到堆中
+            } else {
+                long begin = System.nanoTime();
+                try {
+                    value = loader.load(key);
+                } catch (Throwable e) {
+                    if (stats != null) {
+                        stats.recordLoadFailure(System.nanoTime() - begin);
+                    }
+                    throw e;
+                }
+                if (stats != null) {
+                    stats.recordLoadSuccess(System.nanoTime() - begin);
+                }
+                if (value != null) {
+                    put(key, value);
+                }
+            }
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw rethrow(e);
+        } finally {
+            // 必须在写入缓存之后再移除 future，这样后来的线程要么能看到 future，要么能看到缓存中的值。
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * 批量加载未命中的 key。先为每个 key 登记 future，登记成功的由本线程通过一次 loadAll 加载，登记失败的说明其他线程正在
+     * 加载，等待其结果即可。
+     */
+    private void loadAll(List<K> misses, Map<K, V> found) {
+        Map<K, CompletableFuture<V>> owned = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> waiting = new HashMap<>();
+        for (K key : misses) {
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> running = loading.putIfAbsent(key, future);
+            if (running != null) {
+                waiting.put(key, running);
+            } else {
+                owned.put(key, future);
+            }
+        }
+
+        try {
+            List<K> toLoad = new ArrayList<>(owned.size());
+            long now = tick();
+            for (Map.Entry<K, CompletableFuture<V>> entry : owned.entrySet()) {
+                // 与 load 方法一样，登记之前可能刚好有其他线程加载完成
+                CacheNode<K, V> node = data.get(entry.getKey());
+                if (node != null && !hasExpired(node, now)) {
+                    found.put(entry.getKey(), node.value);
+                    entry.getValue().complete(node.value);
+                } else {
+                    toLoad.add(entry.getKey());
+                }
+            }
+            if (!toLoad.isEmpty()) {
+                Map<? super K, V> loaded;
+                long begin = System.nanoTime();
+                try {
+                    loaded = loader.loadAll(toLoad);
+                } catch (Throwable e) {
+                    if (stats != null) {
+                        stats.recordLoadFailure(System.nanoTime() - begin);
+                    }
+                    throw e;
+                }
+                if (stats != null) {
+                    stats.recordLoadSuccess(System.nanoTime() - begin);
+                }
+                now = tick();
+                for (K key : toLoad) {
+                    V value = loaded.get(key);
+                    if (value != null) {
+                        doPut(key, value, now);
+                        found.put(key, value);
+                    }
+                    owned.get(key).complete(value);
+                }
+                if (writeBuffer != null) {
+                    scheduleDrain();
+                }
+            }
+        } catch (Throwable e) {
+            for (CompletableFuture<V> future : owned.values()) {
+                future.completeExceptionally(e);
+            }
+            throw rethrow(e);
+        } finally {
+            for (Map.Entry<K, CompletableFuture<V>> entry : owned.entrySet()) {
+                loading.remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (Map.Entry<K, CompletableFuture<V>> entry : waiting.entrySet()) {
+            V value = awaitLoad(entry.getValue());
+            if (value != null) {
+                found.put(entry.getKey(), value);
+            }
+        }
+    }
+
+    private boolean promoteInto(K key, Map<K, V> found) {
+        V value = promote(key);
+        if (value != null) {
+            found.put(key, value);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 从堆外取出数据并重新放入堆中，保留原来的写入时间，所以过期时间不会因为降级而延长。
+     */
+    private V promote(K key) {
+        OffHeapStore.Entry entry = offHeap.take(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = tick();
+        if (expireAfterWriteNanos > 0 && now - entry.writeTime >= expireAfterWriteNanos) {
+            return null;
+        }
+        V value;
+        try {
+            value = serializer.deserialize(entry.bytes);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+        put(key, value, now);
+        CacheNode<K, V> node = data.get(key);
+        if (node != null && node.value == value) {
+            node.writeTime = entry.writeTime;
+        }
+        return value;
+    }
+
+    /**
+     * 把被淘汰的数据降级到堆外。序列化失败或者数据过大时直接丢弃。
+     */
+    private void demote(CacheNode<K, V> node) {
+        try {
+            offHeap.put(node.key, serializer.serialize(node.value), node.writeTime);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 在后台线程池中刷新数据，同一个 key 同时只会有一个刷新任务。刷新失败时保留旧值，下次读取时会再次尝试。
+     */
+    private void refresh(CacheNode<K, V> node) {
+        K key = node.key;
+        if (!refreshing.add(key)) {
+            return;
+        }
+        V oldValue = node.value;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        V value = loader.reload(key, oldValue);
+                        // 刷新期间如果数据被重新写入或者移除了，则放弃本次的结果
+                        if (value != null && data.get(key) == node && node.value == oldValue) {
+                            put(key, value);
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                }
+            });
+        } catch (Throwable e) {
+            refreshing.remove(key);
+            e.printStackTrace();
+        }
+    }
+
+    private boolean expires() {
+        return expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0;
+    }
+
+    private boolean refreshesAfterWrite() {
+        return refreshAfterWriteNanos > 0;
+    }
+
+    private long tick() {
+        return (expires() || refreshesAfterWrite()) ? System.nanoTime() : 0L;
+    }
+
+    private boolean hasExpired(CacheNode<K, V> node, long now) {
+        return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos)
+                || (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos);
+    }
+
+    /**
+     * 节点的过期时间点，取写入过期与访问过期中较早的一个
+     */
+    private long deadline(CacheNode<K, V> node) {
+        long deadline = Long.MAX_VALUE;
+        boolean hasDeadline = false;
+        if (expireAfterWriteNanos > 0) {
+            deadline = node.writeTime + expireAfterWriteNanos;
+            hasDeadline = true;
+        }
+        if (expireAfterAccessNanos > 0) {
+            long accessDeadline = node.accessTime + expireAfterAccessNanos;
+            deadline = hasDeadline ? Math.min(deadline, accessDeadline) : accessDeadline;
+        }
+        return deadline;
+    }
+
+    private void afterRead(CacheNode<K, V> node, long now) {
+        if (expireAfterAccessNanos > 0) {
+            node.accessTime = now;
+        }
+        if (refreshesAfterWrite() && now - node.writeTime >= refreshAfterWriteNanos) {
+            refresh(node);
+        }
+        if (readBuffer == null) {
+            return;
+        }
+        int result = readBuffer.offer(node);
+        if (result != StripedReadBuffer.SUCCESS) {
+            // 命中数在重放读缓冲区时统计，只有没能记录到读缓冲区中的命中才需要在这里累加
+            if (stats != null && result != StripedReadBuffer.FULL) {
+                stats.hits.increment();
+            }
+            if (result != StripedReadBuffer.FAILED) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    private void afterWrite(Runnable task) {
+        writeBuffer.add(task);
+        scheduleDrain();
+    }
+
+    /**
+     * 尝试执行维护操作。获取锁失败说明另一个线程正在维护，它释放锁之后会再检查写缓冲区，所以这里的写任务不会被遗漏。
+     */
+    private void scheduleDrain() {
+        do {
+            if (!evictionLock.tryLock()) {
+                return;
+            }
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (!writeBuffer.isEmpty());
+    }
+
+    private void maintenance() {
+        readBuffer.drainTo(this::onAccess);
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+        if (timerWheel != null) {
+            timerWheel.advance(System.nanoTime(), this::expire);
+        }
+        evictEntries();
+    }
+
+    private void onAccess(CacheNode<K, V> node) {
+        if (stats != null) {
+            stats.replayedHits++;
+            hotKeys.offer(node.key);
+        }
+        if (node.linked) {
+            if (policy != null) {
+                policy.onAccess(node);
+            }
+            // 只有访问过期才需要在读取后重新调度
+            if (expireAfterAccessNanos > 0) {
+                node.variableTime = deadline(node);
+                timerWheel.schedule(node);
+            }
+        }
+    }
+
+    private void onUpdate(CacheNode<K, V> node) {
+        if (node.linked) {
+            if (policy != null) {
+                policy.onAccess(node);
+            }
+            if (timerWheel != null) {
+                node.variableTime = deadline(node);
+                timerWheel.schedule(node);
+            }
+        }
+    }
+
+    private void link(CacheNode<K, V> node) {
+        // 节点在加入之前就可能已经被移除了，这时不能再加入
+        if (node.isAlive() && !node.linked) {
+            node.linked = true;
+            if (policy != null) {
+                policy.onAdd(node);
+            }
+            if (timerWheel != null) {
+                node.variableTime = deadline(node);
+                timerWheel.schedule(node);
+            }
+        }
+    }
+
+    private void unlink(CacheNode<K, V> node) {
+        if (node.linked) {
+            node.linked = false;
+            if (policy != null) {
+                policy.onRemove(node);
+            }
+            if (timerWheel != null) {
+                timerWheel.deschedule(node);
+            }
+        }
+        node.state = CacheNode.DEAD;
+    }
+
+    /**
+     * 时间轮到期时的回调。节点可能在到期之前又被访问或者更新过，所以要再判断一次。
+     */
+    private boolean expire(CacheNode<K, V> node) {
+        long now = System.nanoTime();
+        if (!hasExpired(node, now)) {
+            node.variableTime = deadline(node);
+            return false;
+        }
+        if (data.remove(node.key, node)) {
+            node.state = CacheNode.RETIRED;
+            if (stats != null) {
+                stats.evictions.increment();
+            }
+        }
+        // 时间轮已经把节点摘下了，这里只需要从淘汰策略中移除
+        node.linked = false;
+        if (policy != null) {
+            policy.onRemove(node);
+        }
+        node.state = CacheNode.DEAD;
+        return true;
+    }
+
+    private void evictEntries() {
+        if (policy == null) {
+            return;
+        }
+        while (policy.size > maximumSize) {
+            CacheNode<K, V> victim = policy.evict();
+            if (victim == null) {
+                break;
+            }
+            victim.linked = false;
+            victim.state = CacheNode.DEAD;
+            if (timerWheel != null) {
+                timerWheel.deschedule(victim);
+            }
+            if (remove(victim)) {
+                if (stats != null) {
+                    stats.evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * 从 data 中删除被淘汰的节点，有堆外存储时在同一个 compute 中降级，与 invalidate 对同一个 key 互斥
+     */
+    private boolean remove(CacheNode<K, V> victim) {
+        if (offHeap == null) {
+            return data.remove(victim.key, victim);
+        }
+        boolean[] removed = new boolean[1];
+        data.compute(victim.key, (k, n) -> {
+            if (n != victim) {
+                // 已经被 invalidate 或者替换了，不能再降级
+                return n;
+            }
+            demote(victim);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * 等待其他线程的加载结果，并统计等待的时间
+     */
+    private V awaitLoad(CompletableFuture<V> future) {
+        if (stats == null) {
+            return await(future);
+        }
+        long begin = System.nanoTime();
+        try {
+            return await(future);
+        } finally {
+            stats.lockWaitNanos.add(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 阻塞获取 evictionLock，并统计等待的时间
+     */
+    private void lockEviction() {
+        if (stats == null) {
+            evictionLock.lock();
+            return;
+        }
+        if (evictionLock.tryLock()) {
+            return;
+        }
+        long begin = System.nanoTime();
+        evictionLock.lock();
+        stats.lockWaitNanos.add(System.nanoTime() - begin);
+    }
+
+    private static <V> V await(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new RuntimeException("缓存数据加载异常！", e);
+    }
+
+    private final class StatsMXBean implements CacheStatsMXBean {
+
+        @Override
+        public long getSize() {
+            return size();
+        }
+
+        @Override
+        public long getOffHeapSize() {
+            return offHeapSize();
+        }
+
+        @Override
+        public long getHitCount() {
+            return stats().hitCount();
+        }
+
+        @Override
+        public long getMissCount() {
+            return (stats != null) ? stats.misses.sum() : 0;
+        }
+
+        @Override
+        public double getHitRate() {
+            return stats().hitRate();
+        }
+
+        @Override
+        public long getLoadSuccessCount() {
+            return (stats != null) ? stats.loadSuccesses.sum() : 0;
+        }
+
+        @Override
+        public long getLoadFailureCount() {
+            return (stats != null) ? stats.loadFailures.sum() : 0;
+        }
+
+        @Override
+        public double getAverageLoadPenaltyNanos() {
+            return stats().averageLoadPenalty();
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return (stats != null) ? stats.evictions.sum() : 0;
+        }
+
+        @Override
+        public long getLockWaitTimeNanos() {
+            return (stats != null) ? stats.lockWaitNanos.sum() : 0;
+        }
+
+        @Override
+        public long[] getLoadTimeHistogram() {
+            return stats().loadTimeHistogram();
+        }
+
+        @Override
+        public String[] getHotKeys() {
+            List<Map.Entry<Object, Long>> top = stats().hotKeys();
+            String[] keys = new String[top.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = top.get(i).getKey() + "=" + top.get(i).getValue();
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * ConcurrentCache 的配置。例如：
+     * ConcurrentCache.newBuilder().maximumSize(10000).evictionPolicy(EvictionPolicy.LRU).build(loader)
+     */
+    public static final class Builder {
+        private int initialCapacity = 16;
+        private long maximumSize = -1;
+        private EvictionPolicy evictionPolicy = EvictionPolicy.TINY_LFU;
+        private long expireAfterWriteNanos;
+        private long expireAfterAccessNanos;
+        private long refreshAfterWriteNanos;
+        private Executor executor = ForkJoinPool.commonPool();
+        private CacheSerializer<?> serializer;
+        private long offHeapMaximumBytes;
+        private int topK;
+
+        private Builder() {
+        }
+
+        public Builder initialCapacity(int initialCapacity) {
+            if (initialCapacity < 0) {
+                throw new IllegalArgumentException("initialCapacity < 0");
+            }
+            this.initialCapacity = initialCapacity;
+            return this;
+        }
+
+        /**
+         * 缓存的最大条数，超出时按照淘汰策略淘汰数据。不设置则不限制容量。
+         */
+        public Builder maximumSize(long maximumSize) {
+            if (maximumSize < 0) {
+                throw new IllegalArgumentException("maximumSize < 0");
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public Builder evictionPolicy(EvictionPolicy evictionPolicy) {
+            if (evictionPolicy == null) {
+                throw new NullPointerException("evictionPolicy");
+            }
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * 数据写入（或更新）后经过指定的时间即过期
+         */
+        public Builder expireAfterWrite(long duration, TimeUnit unit) {
+            this.expireAfterWriteNanos = toNanos(duration, unit);
+            return this;
+        }
+
+        /**
+         * 数据最后一次读写后经过指定的时间即过期
+         */
+        public Builder expireAfterAccess(long duration, TimeUnit unit) {
+            this.expireAfterAccessNanos = toNanos(duration, unit);
+            return this;
+        }
+
+        /**
+         * 数据写入后经过指定的时间，在下一次读取时于后台刷新，刷新完成之前仍然返回旧值
+         */
+        public Builder refreshAfterWrite(long duration, TimeUnit unit) {
+            this.refreshAfterWriteNanos = toNanos(duration, unit);
+            return this;
+        }
+
+        /**
+         * 执行后台刷新的线程池，默认为 ForkJoinPool.commonPool()
+         */
+        public Builder executor(Executor executor) {
+            if (executor == null) {
+                throw new NullPointerException("executor");
+            }
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * 开启堆外存储：因为容量限制被淘汰的数据，使用 serializer 序列化后存入堆外内存，最多使用 maximumBytes 字节。
+         * 必须同时设置 maximumSize，并且 JVM 的 -XX:MaxDirectMemorySize 要大于 maximumBytes。
+         */
+        public Builder offHeap(CacheSerializer<?> serializer, long maximumBytes) {
+            if (serializer == null) {
+                throw new NullPointerException("serializer");
+            }
+            if (maximumBytes <= 0) {
+                throw new IllegalArgumentException("maximumBytes <= 0");
+            }
+            this.serializer = serializer;
+            this.offHeapMaximumBytes = maximumBytes;
+            return this;
+        }
+
+        /**
+         * 开启统计，并记录访问最多的 16 个 key
+         */
+        public Builder recordStats() {
+            return recordStats(16);
+        }
+
+        /**
+         * 开启统计，并记录访问最多的 topK 个 key
+         */
+        public Builder recordStats(int topK) {
+            if (topK <= 0) {
+                throw new IllegalArgumentException("topK <= 0");
+            }
+            this.topK = topK;
+            return this;
+        }
+
+        public <K, V> ConcurrentCache<K, V> build(CacheLoader<? super K, V> loader) {
+            if (serializer != null && maximumSize < 0) {
+                throw new IllegalStateException("offHeap requires maximumSize");
+            }
+            return new ConcurrentCache<>(this, loader);
+        }
+
+        private static long toNanos(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("duration <= 0");
+            }
+            return unit.toNanos(duration);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package zinterview;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 容量可以伸缩的 BoundedBuffer，并且在元素积压时提前通知生产者（背压）。
+ *
+ * BoundedBuffer 的容量在创建时就固定了：设置得小，流量突增时生产者很快就会阻塞；设置得大，空闲时大数组一直占着内存。
+ * 这里的元素存放在若干个固定大小（segmentSize）的段中，段之间组成一个链表：
+ * 生产者写满当前段之后，链接一个新的段继续写；消费者取完一个段之后，把它从链表头部摘下。
+ * 所以扩容与缩容都只是增加（释放）一个段，不需要像 ArrayList 那样复制已有的元素，也就不会在持有锁时复制大数组。
+ * 摘下的段在段数不超过 minCapacity 时留作备用，否则交给 GC 回收，另外总是保留一个备用段，以免元素个数在段的边界附近来回
+ * 变化时反复地申请与释放。元素个数达到 maxCapacity 时生产者才会阻塞。
+ *
+ * 背压：元素个数达到 highWatermark 时调用 BackpressureListener.onHighWatermark，之后降到 lowWatermark 时再调用
+ * onLowWatermark（两个水位之间不会重复通知，以免个数在水位附近波动时频繁地通知）。生产者可以在收到通知后降低速率，或者
+ * 丢弃不重要的数据，也可以直接检查 isBackpressured，或者使用不阻塞的 offer，而不是等到缓冲区满了再在 put 上阻塞。
+ * 通知是在持有锁时调用的，保证了通知的顺序与水位的变化一致，所以 listener 中不能执行耗时的操作。
+ */
+public class ElasticBoundedBuffer {
+
+    /**
+     * 元素个数越过水位时的通知
+     */
+    public interface BackpressureListener {
+        void onHighWatermark(int size);
+
+        void onLowWatermark(int size);
+    }
+
+    private static final class Segment {
+        final Object[] items;
+        Segment next;
+
+        Segment(int size) {
+            items = new Object[size];
+        }
+    }
+
+    final Lock lock = new ReentrantLock();
+    final Condition needClear = lock.newCondition();
+    final Condition needPut = lock.newCondition();
+
+    private final int segmentSize;
+    private final int minSegments;
+    private final int maxCapacity;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final BackpressureListener listener;
+
+    // 消费者从 head 段的 takei 处取出，生产者向 tail 段的 puti 处放入
+    private Segment head, tail;
+    private int puti,takei;
+    // 备用段组成的栈
+    private Segment spare;
+    private int spareCount;
+    // 已经申请的段数，包括备用段
+    private int segments;
+    volatile int count;
+    private volatile boolean backpressured;
+
+    private ElasticBoundedBuffer(Builder builder) {
+        this.segmentSize = builder.segmentSize;
+        this.minSegments = (builder.minCapacity + segmentSize - 1) / segmentSize;
+        this.maxCapacity = builder.maxCapacity;
+        this.highWatermark = (builder.highWatermark > 0) ? builder.highWatermark : maxCapacity * 3 / 4;
+        this.lowWatermark = (builder.highWatermark > 0) ? builder.lowWatermark : maxCapacity / 4;
+        this.listener = builder.listener;
+        head = tail = new Segment(segmentSize);
+        segments = 1;
+        while (segments < minSegments) {
+            Segment segment = new Segment(segmentSize);
+            segment.next = spare;
+            spare = segment;
+            spareCount++;
+            segments++;
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public void put(Object o) throws InterruptedException{
+        lock.lock();
+        try {
+            while (count == maxCapacity){
+                needClear.await();
+            }
+            enqueue(o);
+            if (count < maxCapacity) {
+                needClear.signal();
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 放入元素，缓冲区满了时不等待，直接返回 false
+     */
+    public boolean offer(Object o){
+        lock.lock();
+        try {
+            if (count == maxCapacity) {
+                return false;
+            }
+            enqueue(o);
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public Object take() throws InterruptedException{
+        lock.lock();
+        try {
+            while (count == 0){
+                needPut.await();
+            }
+            Object o = dequeue();
+            if (count > 0) {
+                needPut.signal();
+            }
+            return o;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出元素，缓冲区空了时不等待，直接返回 null
+     */
+    public Object poll(){
+        lock.lock();
+        try {
+            return (count == 0) ? null : dequeue();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 持有锁并且缓冲区没有满时调用
+     */
+    private void enqueue(Object o) {
+        if (puti == segmentSize) {
+            Segment segment = acquireSegment();
+            tail.next = segment;
+            tail = segment;
+            puti = 0;
+        }
+        tail.items[puti++] = o;
+        ++count;
+        if (!backpressured && count >= highWatermark) {
+            backpressured = true;
+            if (listener != null) {
+                listener.onHighWatermark(count);
+            }
+        }
+        needPut.signal();
+    }
+
+    /**
+     * 持有锁并且缓冲区不为空时调用
+     */
+    private Object dequeue() {
+        if (takei == segmentSize) {
+            Segment drained = head;
+            head = head.next;
+            takei = 0;
+            releaseSegment(drained);
+        }
+        Object o = head.items[takei];
+        head.items[takei++] = null;
+        if (--count == 0) {
+            // 取空了，此时 head 与 tail 是同一个段，从段的开头重新使用
+            puti = takei = 0;
+        }
+        if (backpressured && count <= lowWatermark) {
+            backpressured = false;
+            if (listener != null) {
+                listener.onLowWatermark(count);
+            }
+        }
+        needClear.signal();
+        return o;
+    }
+
+    private Segment acquireSegment() {
+        if (spare != null) {
+            Segment segment = spare;
+            spare = segment.next;
+            segment.next = null;
+            spareCount--;
+            return segment;
+        }
+        segments++;
+        return new Segment(segmentSize);
+    }
+
+    private void releaseSegment(Segment segment) {
+        segment.next = null;
+        if (segments <= minSegments || spareCount == 0) {
+            segment.next = spare;
+            spare = segment;
+            spareCount++;
+        } else {
+            segments--;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 当前申请的容量，在 minCapacity 与 maxCapacity 之间变化（按 segmentSize 取整）
+     */
+    public int capacity() {
+        lock.lock();
+        try {
+            return segments * segmentSize;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public int maxCapacity() {
+        return maxCapacity;
+    }
+
+    /**
+     * 元素个数越过 highWatermark 之后，到降至 lowWatermark 之前为 true
+     */
+    public boolean isBackpressured() {
+        return backpressured;
+    }
+
+    /**
+     * ElasticBoundedBuffer 的配置。例如：
+     * ElasticBoundedBuffer.newBuilder().minCapacity(64).maxCapacity(10000).watermarks(8000, 2000, listener).build()
+     */
+    public static final class Builder {
+        private int minCapacity = 64;
+        private int maxCapacity = 1024;
+        private int segmentSize = 64;
+        private int highWatermark;
+        private int lowWatermark;
+        private BackpressureListener listener;
+
+        private Builder() {
+        }
+
+        /**
+         * 空闲时至少保留的容量，默认为 64
+         */
+        public Builder minCapacity(int minCapacity) {
+            if (minCapacity < 0) {
+                throw new IllegalArgumentException("minCapacity < 0");
+            }
+            this.minCapacity = minCapacity;
+            return this;
+        }
+
+        /**
+         * 元素个数的上限，达到上限时 put 阻塞，默认为 1024
+         */
+        public Builder maxCapacity(int maxCapacity) {
+            if (maxCapacity <= 0) {
+                throw new IllegalArgumentException("maxCapacity <= 0");
+            }
+            this.maxCapacity = maxCapacity;
+            return this;
+        }
+
+        /**
+         * 每次扩容（缩容）的大小，默认为 64
+         */
+        public Builder segmentSize(int segmentSize) {
+            if (segmentSize <= 0) {
+                throw new IllegalArgumentException("segmentSize <= 0");
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * 背压的水位，默认为 maxCapacity 的 3/4 与 1/4
+         */
+        public Builder watermarks(int highWatermark, int lowWatermark) {
+            if (highWatermark <= 0 || lowWatermark < 0 || lowWatermark >= highWatermark) {
+                throw new IllegalArgumentException("highWatermark: " + highWatermark + ", lowWatermark: " + lowWatermark);
+            }
+            this.highWatermark = highWatermark;
+            this.lowWatermark = lowWatermark;
+            return this;
+        }
+
+        public Builder watermarks(int highWatermark, int lowWatermark, BackpressureListener listener) {
+            if (listener == null) {
+                throw new NullPointerException("listener");
+            }
+            this.listener = listener;
+            return watermarks(highWatermark, lowWatermark);
+        }
+
+        public ElasticBoundedBuffer build() {
+            if (minCapacity > maxCapacity) {
+                throw new IllegalStateException("minCapacity > maxCapacity");
+            }
+            if (highWatermark > maxCapacity) {
+                throw new IllegalStateException("highWatermark > maxCapacity");
+            }
+            return new ElasticBoundedBuffer(this);
+        }
+    }
+
+    /**
+     * 生产者先突发地放入一批数据，再以较慢的速度放入；消费者匀速取出。观察容量的伸缩与背压的通知：
+     * 越过高水位之后，生产者丢弃一半的数据（降级），直到积压降到低水位以下。
+     */
+    public static void main(String[] args) throws Exception {
+        ElasticBoundedBuffer buffer = ElasticBoundedBuffer.newBuilder()
+                .minCapacity(64).maxCapacity(2000).segmentSize(100)
+                .watermarks(1500, 500, new BackpressureListener() {
+                    @Override
+                    public void onHighWatermark(int size) {
+                        System.out.println("积压达到高水位，开始降级 ===== " + size);
+                    }
+
+                    @Override
+                    public void onLowWatermark(int size) {
+                        System.out.println("积压降到低水位，恢复正常 ===== " + size);
+                    }
+                })
+                .build();
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Object o = buffer.take();
+                        if ("end".equals(o)) {
+                            break;
+                        }
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        consumer.start();
+
+        int dropped = 0;
+        for (int i = 0; i < 6000; i++) {
+            if (buffer.isBackpressured() && ThreadLocalRandom.current().nextBoolean()) {
+                dropped++;
+                continue;
+            }
+            buffer.put(i);
+            if (i >= 3000) {
+                Thread.sleep(2);
+            }
+            if (i % 500 == 0) {
+                System.out.println("i = " + i + "，元素个数 = " + buffer.size() + "，容量 = " + buffer.capacity());
+            }
+        }
+        buffer.put("end");
+        consumer.join();
+        System.out.println("丢弃 = " + dropped + "，最终容量 = " + buffer.capacity());
+    }
+}
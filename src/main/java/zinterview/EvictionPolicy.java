@@ -0,0 +1,41 @@
+package zinterview;
+
+/**
+ * ConcurrentCache 容量满时的淘汰策略。
+ */
+public enum EvictionPolicy {
+
+    /**
+     * 最近最少使用：淘汰最久没有被访问的数据。实现简单，但一次大范围的扫描就会把热点数据全部挤出去。
+     */
+    LRU {
+        @Override
+        <K, V> CachePolicy<K, V> create(long maximumSize) {
+            return new CachePolicy.Lru<>();
+        }
+    },
+
+    /**
+     * 采样的最不经常使用：淘汰时随机抽取若干个节点，淘汰其中访问次数最少的一个（类似 Redis 的 allkeys-lfu）。
+     * 访问次数会定期减半，使得过去的热点数据能够慢慢冷却下来。
+     */
+    LFU {
+        @Override
+        <K, V> CachePolicy<K, V> create(long maximumSize) {
+            return new CachePolicy.SampledLfu<>(maximumSize);
+        }
+    },
+
+    /**
+     * W-TinyLFU：新数据先进入一个很小的 LRU 窗口，被挤出窗口时要与主区（分段 LRU）中的淘汰者比较 CountMin 估算的访问频率，
+     * 频率更高的一方才能留下。在大多数负载下的命中率都高于 LRU 和 LFU。
+     */
+    TINY_LFU {
+        @Override
+        <K, V> CachePolicy<K, V> create(long maximumSize) {
+            return new CachePolicy.WindowTinyLfu<>(maximumSize);
+        }
+    };
+
+    abstract <K, V> CachePolicy<K, V> create(long maximumSize);
+}
@@ -0,0 +1,34 @@
+package zinterview;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * 使用 Jackson 把数据序列化为 JSON 字节。ObjectMapper 在配置完成之后是线程安全的，所以可以共用一个。
+ *
+ * 注意反序列化时需要指定类型：如果 type 为 Object.class，则 JSON 字符串会还原为 String，JSON 对象会还原为 LinkedHashMap，
+ * 而不是原来的 java 类型。
+ */
+public class JacksonSerializer<V> implements CacheSerializer<V> {
+
+    private final ObjectMapper mapper;
+    private final Class<V> type;
+
+    public JacksonSerializer(Class<V> type) {
+        this(new ObjectMapper(), type);
+    }
+
+    public JacksonSerializer(ObjectMapper mapper, Class<V> type) {
+        this.mapper = mapper;
+        this.type = type;
+    }
+
+    @Override
+    public byte[] serialize(V value) throws Exception {
+        return mapper.writeValueAsBytes(value);
+    }
+
+    @Override
+    public V deserialize(byte[] bytes) throws Exception {
+        return mapper.readValue(bytes, type);
+    }
+}
@@ -0,0 +1,170 @@
+package zinterview;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按 key 串行的线程池：key 相同（equals）的任务严格按照提交的顺序一个接一个地执行，key 不同的任务在线程池中并行执行。
+ * 即 BlockingQueueLog3 中要求的"key 相同的线程同步输出"，但不再需要每个线程一直持有锁等待。
+ *
+ * TestDo2.doSome3，doSome4 的做法是在 List（CopyOnWriteArrayList）中逐个比较，找到 equals 的 key 对象之后对它加锁。
+ * 这样每次调用都要遍历整个集合（O(n)），CopyOnWriteArrayList 每次 add 都要复制整个数组，并且集合只增不减，不同的 key
+ * 越多越慢；同一个 key 的线程都阻塞在 synchronized 上，也不能保证它们按照调用的顺序执行。
+ *
+ * 这里为每个正在执行的 key 创建一个任务队列（KeyQueue），放在 ConcurrentHashMap 中：
+ * 提交任务时，如果 key 没有队列，或者队列中的任务都执行完了，就直接把任务交给线程池，否则放入队列末尾；
+ * 任务执行完之后，从同一个队列中取出下一个任务继续执行，队列空了就把它从 map 中删除。
+ * 队列的创建，入队，出队与删除都在 ConcurrentHashMap.compute 中完成，compute 对同一个 key 是互斥的，所以不会出现一个任务
+ * 刚放入队列，队列却被删除了的情况。map 中只有还有任务的 key，执行完就回收，不会像 clist 那样一直增长。
+ *
+ * 为了不让一个任务很多的 key 一直占着工作线程，一个 key 连续执行 MAX_BATCH 个任务之后，把剩下的任务重新交给线程池排队。
+ * 任务抛出的异常只打印，不影响同一个 key 后面的任务。线程池拒绝执行时（例如线程池被关闭），execute 抛出
+ * RejectedExecutionException，这个 key 已经在队列中的任务也一起丢弃。与 doSome4 的对比测试参考 KeyedExecutorBenchmark。
+ */
+public class KeyedExecutor {
+
+    private static final int MAX_BATCH = 16;
+
+    private final ThreadPoolExecutor pool;
+    private final ConcurrentHashMap<Object, KeyQueue> queues = new ConcurrentHashMap<>();
+    // 已经提交还没有执行完的任务数，用于 shutdown
+    private final AtomicLong pending = new AtomicLong();
+    private volatile boolean shutdown;
+
+    /**
+     * 同一个 key 的任务队列，只在 ConcurrentHashMap.compute 中访问
+     */
+    private final class KeyQueue implements Runnable {
+        final Object key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        Runnable current;
+
+        KeyQueue(Object key, Runnable first) {
+            this.key = key;
+            this.current = first;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                try {
+                    current.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+                completed();
+                if (!next()) {
+                    return;
+                }
+            }
+            // 还有任务，重新排队，让其他 key 的任务也有机会执行
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException e) {
+                abandon(this);
+                throw e;
+            }
+        }
+
+        /**
+         * 取出下一个任务放入 current，没有任务时删除队列并返回 false
+         */
+        private boolean next() {
+            boolean[] hasNext = new boolean[1];
+            queues.compute(key, (k, q) -> {
+                current = tasks.poll();
+                hasNext[0] = (current != null);
+                return hasNext[0] ? q : null;
+            });
+            return hasNext[0];
+        }
+    }
+
+    public KeyedExecutor(int threads) {
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * 提交任务，key 相同的任务按照提交的顺序串行执行
+     */
+    public void execute(Object key, Runnable task) {
+        if (key == null || task == null) {
+            throw new NullPointerException();
+        }
+        pending.incrementAndGet();
+        if (shutdown) {
+            completed();
+            throw new RejectedExecutionException("KeyedExecutor 已经关闭！");
+        }
+        KeyQueue[] started = new KeyQueue[1];
+        queues.compute(key, (k, q) -> {
+            if (q == null) {
+                q = new KeyQueue(k, task);
+                started[0] = q;
+            } else {
+                q.tasks.add(task);
+            }
+            return q;
+        });
+        if (started[0] != null) {
+            try {
+                pool.execute(started[0]);
+            } catch (RejectedExecutionException e) {
+                // 线程池拒绝了，队列没有线程执行，不删除的话这个 key 之后的任务都只会放入队列，pending 也不会减到 0
+                abandon(started[0]);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 线程池拒绝执行 q 时，从 map 中删除 q，q 中的任务（包括其他线程在这期间放入的）都不再执行，计为已完成
+     */
+    private void abandon(KeyQueue q) {
+        int[] dropped = new int[1];
+        queues.computeIfPresent(q.key, (k, current) -> {
+            if (current != q) {
+                return current;
+            }
+            dropped[0] = (q.current == null ? 0 : 1) + q.tasks.size();
+            q.current = null;
+            q.tasks.clear();
+            return null;
+        });
+        for (int i = 0; i < dropped[0]; i++) {
+            completed();
+        }
+    }
+
+    /**
+     * 当前有任务在执行或者等待执行的 key 的个数
+     */
+    public int activeKeys() {
+        return queues.size();
+    }
+
+    private void completed() {
+        if (pending.decrementAndGet() == 0 && shutdown) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 不再接收新的任务，已经提交的任务全部执行完之后关闭线程池
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (pending.get() == 0) {
+            pool.shutdown();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+}
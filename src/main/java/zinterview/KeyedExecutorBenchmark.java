@@ -0,0 +1,140 @@
+package zinterview;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KeyedExecutor，StripedLock（doSome5）与 TestDo2.doSome4 的对比测试。
+ *
+ * doSome4 中的 sleep（每次 1 秒，以及遍历时每个元素 20 毫秒）是为了演示效果，这里去掉了 sleep，只保留它查找 key 的方式
+ * （CopyOnWriteArrayList 的 contains，add 与遍历）以及 synchronized，任务本身只是给 key 对应的计数器加一。
+ * 两种方式都使用 THREADS 个工作线程，每个 key 提交 TASKS_PER_KEY 个任务，key 都是内容相同但不是同一个对象的字符串
+ * （与 Test 中一样），输出全部任务执行完的耗时。
+ * KeyedExecutor 还会检查同一个 key 的任务是否按照提交的顺序执行，doSome4 的方式不保证顺序，所以不做检查。
+ * 注意 doSome4 的方式是 O(n^2) 的，100000 个 key 时需要几分钟。
+ */
+public class KeyedExecutorBenchmark {
+
+    private static final int THREADS = 4;
+    private static final int TASKS_PER_KEY = 2;
+
+    /**
+     * 与 doSome4 相同的查找方式，去掉了 sleep
+     */
+    private static final class CopyOnWriteKeys {
+        private final CopyOnWriteArrayList<Object> clist = new CopyOnWriteArrayList<>();
+
+        Object lockOf(String key) {
+            Object o = key;
+            if (!clist.contains(o)) {
+                clist.add(o);
+            } else {
+                for (Iterator<Object> ite = clist.iterator(); ite.hasNext(); ) {
+                    Object ob = ite.next();
+                    if (ob.equals(o)) {
+                        o = ob;
+                    }
+                }
+            }
+            return o;
+        }
+    }
+
+    public static void t1(int keys) throws Exception {
+        System.out.println(keys + " 个不同的 key，每个 key " + TASKS_PER_KEY + " 个任务：");
+        System.out.printf("    %-24s %8d ms%n", "doSome4", doSome4(keys));
+        System.out.printf("    %-24s %8d ms%n", "StripedLock.striped(64)", locked(keys, StripedLock.striped(64)));
+        System.out.printf("    %-24s %8d ms%n", "StripedLock.exact()", locked(keys, StripedLock.exact()));
+        System.out.printf("    %-24s %8d ms%n", "KeyedExecutor", keyed(keys));
+    }
+
+    private static long doSome4(int keys) throws Exception {
+        CopyOnWriteKeys lookup = new CopyOnWriteKeys();
+        ConcurrentHashMap<String, int[]> counters = new ConcurrentHashMap<>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+        CountDownLatch done = new CountDownLatch(keys * TASKS_PER_KEY);
+        long begin = System.nanoTime();
+        for (int round = 0; round < TASKS_PER_KEY; round++) {
+            for (int i = 0; i < keys; i++) {
+                String key = i + "";
+                pool.execute(() -> {
+                    synchronized (lookup.lockOf(key)) {
+                        counters.computeIfAbsent(key, k -> new int[1])[0]++;
+                    }
+                    done.countDown();
+                });
+            }
+        }
+        done.await();
+        long elapsed = (System.nanoTime() - begin) / 1000000;
+        pool.shutdown();
+        return elapsed;
+    }
+
+    /**
+     * 与 doSome5 相同，使用 StripedLock 加锁
+     */
+    private static long locked(int keys, StripedLock keyLocks) throws Exception {
+        ConcurrentHashMap<String, int[]> counters = new ConcurrentHashMap<>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+        CountDownLatch done = new CountDownLatch(keys * TASKS_PER_KEY);
+        long begin = System.nanoTime();
+        for (int round = 0; round < TASKS_PER_KEY; round++) {
+            for (int i = 0; i < keys; i++) {
+                String key = i + "";
+                pool.execute(() -> {
+                    keyLocks.lock(key);
+                    try {
+                        counters.computeIfAbsent(key, k -> new int[1])[0]++;
+                    } finally {
+                        keyLocks.unlock(key);
+                    }
+                    done.countDown();
+                });
+            }
+        }
+        done.await();
+        long elapsed = (System.nanoTime() - begin) / 1000000;
+        pool.shutdown();
+        return elapsed;
+    }
+
+    private static long keyed(int keys) throws Exception {
+        KeyedExecutor executor = new KeyedExecutor(THREADS);
+        ConcurrentHashMap<String, int[]> counters = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(keys * TASKS_PER_KEY);
+        long begin = System.nanoTime();
+        for (int round = 0; round < TASKS_PER_KEY; round++) {
+            int expected = round;
+            for (int i = 0; i < keys; i++) {
+                String key = i + "";
+                executor.execute(key, () -> {
+                    try {
+                        int[] counter = counters.computeIfAbsent(key, k -> new int[1]);
+                        if (counter[0]++ != expected) {
+                            throw new IllegalStateException(key + " 的任务没有按照提交的顺序执行！");
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        done.await();
+        long elapsed = (System.nanoTime() - begin) / 1000000;
+        executor.shutdown();
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // 预热
+        t1(1000);
+        t1(10000);
+        t1(100000);
+    }
+}
@@ -0,0 +1,326 @@
+package zinterview;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 写日志的性能测试。
+ *
+ * t1：PRODUCERS 个线程一共写 LINES 行日志，对比 AsyncLogSink 与多个线程共用一个 BufferedWriter（写入时加锁，即同步写日志的
+ * 通常做法）。每次调用都用 System.nanoTime 计时（计时本身大约有二三十纳秒的开销），输出调用耗时的 p50，p99，p999，以及从
+ * 开始到全部写入文件（close 完成）的吞吐量。最后读回文件，检查每个线程的日志是否都在，并且顺序与调用的顺序一致。
+ * t2：同样的写入方式，对比写到磁盘的各种方式，包括 MappedLogWriter 的三种 FlushPolicy。
+ * t3：BlockingQueueLog.t3 的逐个 take 与 BatchQueueConsumer 的对比。
+ */
+public class LogBenchmark {
+
+    private static final int PRODUCERS = 4;
+    private static final int LINES = 1000000;
+    private static final int SYNC_EVERY = 1024;
+    private static final int CONSUMERS = 4;
+    // 1000000 行大约 80MB，分为多个段，测量切换段的开销
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    interface LineWriter {
+        void write(String line) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * 写入同一个文件的 LineWriter
+     */
+    static LineWriter of(AsyncLogSink sink) {
+        return new LineWriter() {
+            @Override
+            public void write(String line) {
+                sink.log(line);
+            }
+
+            @Override
+            public void close() throws IOException {
+                sink.close();
+            }
+        };
+    }
+
+    /**
+     * 多个线程共用一个 BufferedWriter，每写 syncEvery 行 flush 并 fsync 一次，syncEvery 为 0 时不 fsync
+     */
+    static LineWriter of(Path file, int syncEvery, long[] syncs) throws IOException {
+        FileOutputStream out = new FileOutputStream(file.toFile());
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        return new LineWriter() {
+            private int lines;
+
+            @Override
+            public void write(String line) throws IOException {
+                synchronized (writer) {
+                    writer.write(line);
+                    writer.newLine();
+                    if (syncEvery > 0 && ++lines % syncEvery == 0) {
+                        long begin = System.nanoTime();
+                        writer.flush();
+                        out.getFD().sync();
+                        syncs[0]++;
+                        syncs[1] += System.nanoTime() - begin;
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    public static void t1() throws Exception {
+        System.out.printf("    %-28s %8s %8s %8s %12s%n", "", "p50(ns)", "p99(ns)", "p999(ns)", "lines/s");
+        for (int round = 0; round < 2; round++) {
+            Path file = Files.createTempFile("log-benchmark", ".log");
+            try {
+                long[] async = run(of(new AsyncLogSink(file)), Collections.singletonList(file));
+                Files.delete(file);
+                long[] sync = run(of(file, 0, null), Collections.singletonList(file));
+                if (round > 0) {
+                    print("AsyncLogSink", async);
+                    print("synchronized BufferedWriter", sync);
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static void print(String name, long[] result) {
+        System.out.printf("    %-28s %8d %8d %8d %12d%n", name, result[0], result[1], result[2], result[3]);
+    }
+
+    /**
+     * 写入磁盘的方式对比：BufferedWriter（不 fsync，以及每 SYNC_EVERY 行 fsync 一次），AsyncLogSink 写入 FileChannel，以及
+     * AsyncLogSink 写入 MappedLogWriter（三种 FlushPolicy）。输出吞吐量，force（fsync）的次数与平均耗时。
+     * 注意 fsync 的耗时取决于磁盘，在虚拟机或者 tmpfs 上测量的结果没有参考意义。
+     */
+    public static void t2() throws Exception {
+        System.out.printf("    %-36s %12s %8s %12s%n", "", "lines/s", "fsync", "avg(ms)");
+        for (int round = 0; round < 2; round++) {
+            Path dir = Files.createTempDirectory("log-benchmark");
+            Path file = dir.resolve("buffered.log");
+            try {
+                long[] syncs = new long[2];
+                long[] result = run(of(file, 0, syncs), Collections.singletonList(file));
+                print(round, "BufferedWriter", result[3], syncs[0], syncs[1]);
+                Files.delete(file);
+
+                syncs = new long[2];
+                result = run(of(file, SYNC_EVERY, syncs), Collections.singletonList(file));
+                print(round, "BufferedWriter + fsync/" + SYNC_EVERY + " 行", result[3], syncs[0], syncs[1]);
+                Files.delete(file);
+
+                result = run(of(new AsyncLogSink(file)), Collections.singletonList(file));
+                print(round, "AsyncLogSink + FileChannel", result[3], 0, 0);
+                Files.delete(file);
+
+                for (MappedLogWriter.FlushPolicy policy : MappedLogWriter.FlushPolicy.values()) {
+                    Path segments = dir.resolve(policy.name());
+                    MappedLogWriter writer = new MappedLogWriter(segments, SEGMENT_SIZE, policy, 100);
+                    result = run(of(new AsyncLogSink(writer, 64 * 1024)), null);
+                    List<Path> files = writer.files();
+                    verify(files, LINES / PRODUCERS);
+                    print(round, "AsyncLogSink + Mapped(" + policy + ")", result[3], writer.forceCount(),
+                            writer.forceNanos());
+                    for (Path f : files) {
+                        Files.delete(f);
+                    }
+                    Files.delete(segments);
+                }
+            } finally {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(dir);
+            }
+        }
+    }
+
+    private static void print(int round, String name, long linesPerSecond, long syncs, long syncNanos) {
+        if (round > 0) {
+            System.out.printf("    %-36s %12d %8d %12.2f%n", name, linesPerSecond, syncs,
+                    (syncs == 0) ? 0.0 : syncNanos / 1e6 / syncs);
+        }
+    }
+
+    /**
+     * 1 个生产者向 LinkedBlockingQueue 中放入 LINES 行日志，CONSUMERS 个消费线程取出并处理（这里只累加每行的长度，以便只测量
+     * 取出的开销）。对比 t3 的逐个 take 与 BatchQueueConsumer 的批量取出（每批最多 256 行），输出吞吐量。
+     * 两种方式都以毒丸结束：逐个 take 时每个消费线程需要一个毒丸。
+     */
+    public static void t3() throws Exception {
+        String[] texts = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            texts[i] = i + " 2019-01-01 12:00:00.000 INFO zinterview.LogBenchmark - log line";
+        }
+        for (int round = 0; round < 4; round++) {
+            long single = drain(texts, false);
+            long batch = drain(texts, true);
+            if (round > 0) {
+                System.out.printf("    逐个 take %10d lines/s，BatchQueueConsumer %10d lines/s%n", single, batch);
+            }
+        }
+    }
+
+    private static long drain(String[] texts, boolean batched) throws Exception {
+        BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        String poisonPill = new String("end");
+        AtomicLong total = new AtomicLong();
+        BatchQueueConsumer<String> consumer = new BatchQueueConsumer<>(queue, 256, 100, TimeUnit.MILLISECONDS,
+                batch -> {
+                    long length = 0;
+                    for (String line : batch) {
+                        length += line.length();
+                    }
+                    total.addAndGet(length);
+                }, poisonPill);
+        Thread[] consumers = new Thread[CONSUMERS];
+        for (int c = 0; c < CONSUMERS; c++) {
+            consumers[c] = new Thread(batched ? consumer : new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long length = 0;
+                        while (true) {
+                            String line = queue.take();
+                            if (line == poisonPill) {
+                                break;
+                            }
+                            length += line.length();
+                        }
+                        total.addAndGet(length);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            consumers[c].start();
+        }
+        long begin = System.nanoTime();
+        for (String text : texts) {
+            queue.put(text);
+        }
+        for (int c = 0; c < (batched ? 1 : CONSUMERS); c++) {
+            queue.put(poisonPill);
+        }
+        for (Thread thread : consumers) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        long expected = 0;
+        for (String text : texts) {
+            expected += text.length();
+        }
+        if (total.get() != expected) {
+            throw new IllegalStateException("取出的日志不完整！");
+        }
+        return (long) texts.length * 1000000000L / elapsed;
+    }
+
+    /**
+     * PRODUCERS 个线程一共写 LINES 行，返回调用耗时的 p50，p99，p999（纳秒）与吞吐量（行/秒）。
+     * files 不为 null 时，写完之后检查文件中的日志。
+     */
+    static long[] run(LineWriter writer, List<Path> files) throws Exception {
+        int lines = LINES / PRODUCERS;
+        long[][] latencies = new long[PRODUCERS][lines];
+        // 日志的内容事先创建好，避免测量到字符串拼接的耗时
+        String[][] texts = new String[PRODUCERS][lines];
+        for (int p = 0; p < PRODUCERS; p++) {
+            for (int i = 0; i < lines; i++) {
+                texts[p][i] = p + " " + i + " 2019-01-01 12:00:00.000 INFO zinterview.LogBenchmark - log line";
+            }
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(PRODUCERS);
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int num = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < lines; i++) {
+                            long begin = System.nanoTime();
+                            writer.write(texts[num][i]);
+                            latencies[num][i] = System.nanoTime() - begin;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        end.await();
+        writer.close();
+        long elapsed = System.nanoTime() - begin;
+        if (files != null) {
+            verify(files, lines);
+        }
+        long[] all = new long[PRODUCERS * lines];
+        for (int p = 0; p < PRODUCERS; p++) {
+            System.arraycopy(latencies[p], 0, all, p * lines, lines);
+        }
+        Arrays.sort(all);
+        return new long[]{all[(int) (all.length * 0.5)], all[(int) (all.length * 0.99)],
+                all[(int) (all.length * 0.999)], (long) PRODUCERS * lines * 1000000000L / elapsed};
+    }
+
+    /**
+     * 检查每个线程的日志是否完整，并且按照调用的顺序排列
+     */
+    static void verify(List<Path> files, int lines) throws IOException {
+        int[] next = new int[PRODUCERS];
+        for (Path file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    int producer = Integer.parseInt(line.substring(0, space));
+                    int sequence = Integer.parseInt(line.substring(space + 1, line.indexOf(' ', space + 1)));
+                    if (sequence != next[producer]++) {
+                        throw new IllegalStateException("线程 " + producer + " 的日志顺序不正确：" + line);
+                    }
+                }
+            }
+        }
+        for (int p = 0; p < PRODUCERS; p++) {
+            if (next[p] != lines) {
+                throw new IllegalStateException("线程 " + p + " 的日志不完整：" + next[p]);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // AsyncLogSink 与同步写日志的对比
+        //t1();
+        // 写入磁盘的方式与 fsync 的对比
+        //t2();
+        // 逐个取出与批量取出阻塞队列的对比
+        t3();
+    }
+}
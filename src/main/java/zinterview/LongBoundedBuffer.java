@@ -0,0 +1,237 @@
+package zinterview;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 存放 long 的 BoundedBuffer，例如传递序号，时间戳。BoundedBuffer 中存放的是 Object，放入 long 时每个元素都要装箱
+ * （Long.valueOf 只缓存了 -128 到 127），装箱产生的对象会频繁地触发 GC。这里直接使用 long[] 存放元素，存取时不会分配任何对象。
+ *
+ * 实现与 IntBoundedBuffer 相同，只是元素的类型不同。分配的字节数对比参考 BufferBenchmark.t4。
+ */
+public class LongBoundedBuffer {
+    final Lock lock = new ReentrantLock();
+    final Condition needClear = lock.newCondition();
+    final Condition needPut = lock.newCondition();
+
+    final long[] items;
+    int puti,takei;
+    volatile int count;
+    // 为 null 时使用 needClear，needPut 等待
+    final WaitStrategy waitStrategy;
+    private final BooleanSupplier notFull;
+    private final BooleanSupplier notEmpty;
+
+    public LongBoundedBuffer(int capacity) {
+        this(capacity, null);
+    }
+
+    public LongBoundedBuffer(int capacity, WaitStrategy waitStrategy) {
+        this.items = new long[capacity];
+        this.waitStrategy = waitStrategy;
+        this.notFull = () -> count < items.length;
+        this.notEmpty = () -> count > 0;
+    }
+
+    /**
+     * 持有锁时调用，等待缓冲区有空位
+     */
+    private void awaitNotFull() throws InterruptedException {
+        if (waitStrategy == null) {
+            needClear.await();
+            return;
+        }
+        lock.unlock();
+        try {
+            waitStrategy.waitUntil(notFull);
+        } finally {
+            lock.lock();
+        }
+    }
+
+    /**
+     * 持有锁时调用，等待缓冲区有元素
+     */
+    private void awaitNotEmpty() throws InterruptedException {
+        if (waitStrategy == null) {
+            needPut.await();
+            return;
+        }
+        lock.unlock();
+        try {
+            waitStrategy.waitUntil(notEmpty);
+        } finally {
+            lock.lock();
+        }
+    }
+
+    /**
+     * 释放锁之后调用，唤醒使用 WaitStrategy.blocking 等待的线程
+     */
+    private void signalWaiters() {
+        if (waitStrategy != null) {
+            waitStrategy.signalAllWhenBlocking();
+        }
+    }
+
+    public void put(long e) throws InterruptedException{
+        lock.lock();
+        try {
+            while (count == items.length){
+                awaitNotFull();
+            }
+            items[puti] = e;
+            if(++puti == items.length){
+                puti = 0;
+            }
+            ++count;
+            needPut.signal();
+            if (count < items.length) {
+                needClear.signal();
+            }
+        }finally {
+            lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    public long take() throws InterruptedException{
+        lock.lock();
+        try {
+            while (count == 0){
+                awaitNotEmpty();
+            }
+            long e = items[takei];
+            if(++takei == items.length){
+                takei = 0;
+            }
+            --count;
+            needClear.signal();
+            if (count > 0) {
+                needPut.signal();
+            }
+            return e;
+        }finally {
+            lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    /**
+     * 放入元素，缓冲区满了时不等待，直接返回 false
+     */
+    public boolean offer(long e){
+        lock.lock();
+        try {
+            if (count == items.length) {
+                return false;
+            }
+            items[puti] = e;
+            if(++puti == items.length){
+                puti = 0;
+            }
+            ++count;
+            needPut.signal();
+            return true;
+        }finally {
+            lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    /**
+     * 取出元素，缓冲区空了时不等待，直接返回 emptyValue。emptyValue 应该是一个不会被放入缓冲区的值（例如 -1）。
+     */
+    public long poll(long emptyValue){
+        lock.lock();
+        try {
+            if (count == 0) {
+                return emptyValue;
+            }
+            long e = items[takei];
+            if(++takei == items.length){
+                takei = 0;
+            }
+            --count;
+            needClear.signal();
+            return e;
+        }finally {
+            lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    /**
+     * 批量放入 src[off, off + len) 中的元素。空位不够时先放入一部分，再等待消费者取出，直到全部放入为止。
+     * 与 BoundedBuffer.putAll 相同，等待时被中断的话，已经放入的一段不会撤回，其余的没有放入。
+     */
+    public void putAll(long[] src, int off, int len) throws InterruptedException{
+        if (off < 0 || len < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len);
+        }
+        lock.lock();
+        try {
+            while (len > 0) {
+                while (count == items.length){
+                    awaitNotFull();
+                }
+                // 一次最多放满所有空位，数组的尾部与头部分两段复制
+                int n = Math.min(len, items.length - count);
+                int first = Math.min(n, items.length - puti);
+                System.arraycopy(src, off, items, puti, first);
+                System.arraycopy(src, off + first, items, 0, n - first);
+                puti = (puti + n) % items.length;
+                count += n;
+                off += n;
+                len -= n;
+                needPut.signal();
+            }
+            if (count < items.length) {
+                needClear.signal();
+            }
+        }finally {
+            lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    /**
+     * 批量取出最多 max 个元素放入 dst 中，返回取出的个数。缓冲区为空时等待，直到至少可以取出一个元素。
+     */
+    public int drainTo(long[] dst, int max) throws InterruptedException{
+        max = Math.min(max, dst.length);
+        if (max <= 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (count == 0){
+                awaitNotEmpty();
+            }
+            int n = Math.min(max, count);
+            int first = Math.min(n, items.length - takei);
+            System.arraycopy(items, takei, dst, 0, first);
+            System.arraycopy(items, 0, dst, first, n - first);
+            takei = (takei + n) % items.length;
+            count -= n;
+            needClear.signal();
+            if (count > 0) {
+                needPut.signal();
+            }
+            return n;
+        }finally {
+            lock.unlock();
+            signalWaiters();
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+}
@@ -0,0 +1,245 @@
+package zinterview;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import sun.misc.Unsafe;
+
+/**
+ * 基于内存映射文件的单生产者单消费者缓冲区，用于同一台机器上两个 JVM 进程之间传递数据（例如采集进程把数据交给索引进程）。
+ * 两个进程映射同一个文件，映射的内存就是两个进程共享的物理页，所以传递数据不需要经过 socket 或者管道。
+ *
+ * 文件格式：
+ * [0, 4096)：文件头。0 处依次为 MAGIC，VERSION，slotSize，capacity；tail 与 head 分别在 64，128 处，各自独占一个缓存行。
+ * [4096, ...)：capacity 个固定大小的槽位，每个槽位的格式为 [int 长度][数据]，所以每个元素最多 slotSize - 4 个字节。
+ *
+ * 同步方式与 SpscRingBuffer 相同：生产者先写入槽位，再有序写推进 tail；消费者读取槽位之后，再有序写推进 head。
+ * 不同的是 tail，head 在映射的内存中而不是 Java 对象中，AtomicLong 之类的类无法使用，所以这里通过 Unsafe 直接对映射内存的
+ * 地址执行有序写（putOrderedLong）与 volatile 读（getLongVolatile）。映射内存的地址是 java.nio.Buffer 的 address 字段，
+ * 通过 Unsafe.objectFieldOffset 读取，不需要 setAccessible（高版本 JDK 中 setAccessible 需要加 --add-opens 参数）。
+ * 项目的源码级别是 Java 8，没有 VarHandle，对 ByteBuffer 的普通 getLong，putLong 不论前后怎样加 volatile 读写都得不到
+ * acquire，release 的语义（后面的普通写可以被重排到前面的 volatile 写之前），所以这里只能使用 Unsafe，编译时的专有 API
+ * 警告是有意保留的。升级到 Java 9 以上时可以换成 MethodHandles.byteBufferViewVarHandle 的 getAcquire 与 setRelease。
+ *
+ * 消费者重启：head，tail 都保存在文件中，消费者取出元素之后才推进 head，所以消费者进程退出（即使是被 kill）之后，重新打开
+ * 文件的消费者会从 head 继续取出，[head, tail) 中还没有取出的元素都不会丢失。如果消费者在取出元素之后，推进 head 之前退出，
+ * 这个元素会被重新取出一次（至少一次）。同理，生产者在推进 tail 之前退出，写了一半的槽位对消费者是不可见的。
+ * 写入的数据在操作系统的页缓存中，进程退出不影响，只有机器掉电才会丢失，需要持久化时可以调用 force。
+ *
+ * 等待：另一个进程中的线程无法被 Condition 唤醒，所以 WaitStrategy.blocking 在这里退化为每 1 毫秒检查一次，通常使用默认的
+ * sleeping 即可。同一个文件同时只能有一个生产者进程与一个消费者进程，这一点需要使用者保证。
+ * 两个进程之间的吞吐量测试参考 BufferBenchmark.t5。
+ */
+public class MappedBoundedBuffer extends AbstractRingBuffer<byte[]> implements Closeable {
+
+    private static final int MAGIC = 0x4D424246;
+    private static final int VERSION = 1;
+    private static final int HEADER = 4096;
+    private static final int SLOT_SIZE_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int TAIL_OFFSET = 64;
+    private static final int HEAD_OFFSET = 128;
+
+    // 见类注释：Java 8 中对映射内存做有序写与 volatile 读只能通过 Unsafe
+    private static final Unsafe UNSAFE;
+    private static final long ADDRESS_OFFSET;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+            ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long address;
+    private final int slotSize;
+    // 只由生产者访问
+    private long headCache;
+    // 只由消费者访问
+    private long tailCache;
+
+    public MappedBoundedBuffer(Path file, int capacity, int slotSize) throws IOException {
+        this(file, capacity, slotSize, WaitStrategy.sleeping());
+    }
+
+    /**
+     * 打开（不存在时创建）缓冲区文件。文件已经存在时，capacity 与 slotSize 必须与创建时相同，之前没有取出的元素仍然保留。
+     */
+    public MappedBoundedBuffer(Path file, int capacity, int slotSize, WaitStrategy waitStrategy) throws IOException {
+        super(capacity, waitStrategy);
+        if (slotSize <= 4) {
+            throw new IllegalArgumentException("slotSize: " + slotSize);
+        }
+        long size = HEADER + (long) this.capacity * slotSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("文件过大：" + size);
+        }
+        this.slotSize = slotSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            // 两个进程同时打开一个新文件时，只能有一个进程初始化文件头
+            FileLock lock = channel.lock();
+            try {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (buffer.getInt(0) == 0) {
+                    buffer.putInt(SLOT_SIZE_OFFSET, slotSize);
+                    buffer.putInt(CAPACITY_OFFSET, this.capacity);
+                    buffer.putInt(4, VERSION);
+                    // 最后写入 MAGIC，表示文件头已经完整
+                    buffer.putInt(0, MAGIC);
+                    buffer.force();
+                } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                        || buffer.getInt(SLOT_SIZE_OFFSET) != slotSize || buffer.getInt(CAPACITY_OFFSET) != this.capacity) {
+                    throw new IOException("缓冲区文件与参数不一致：" + file);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.address = UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+        this.headCache = head();
+        this.tailCache = tail();
+    }
+
+    private long tail() {
+        return UNSAFE.getLongVolatile(null, address + TAIL_OFFSET);
+    }
+
+    private long head() {
+        return UNSAFE.getLongVolatile(null, address + HEAD_OFFSET);
+    }
+
+    private int slot(long sequence) {
+        return HEADER + ((int) sequence & mask) * slotSize;
+    }
+
+    // Java 8 的 ByteBuffer 没有按绝对位置批量读写的方法，所以直接在 byte 数组与映射内存之间复制
+    private void write(long sequence, byte[] e) {
+        long slot = address + slot(sequence);
+        UNSAFE.putInt(null, slot, e.length);
+        UNSAFE.copyMemory(e, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, slot + 4, e.length);
+    }
+
+    private byte[] read(long sequence) {
+        long slot = address + slot(sequence);
+        byte[] e = new byte[UNSAFE.getInt(null, slot)];
+        UNSAFE.copyMemory(null, slot + 4, e, Unsafe.ARRAY_BYTE_BASE_OFFSET, e.length);
+        return e;
+    }
+
+    private void checkLength(byte[] e) {
+        checkNotNull(e);
+        if (e.length > slotSize - 4) {
+            throw new IllegalArgumentException("元素过大：" + e.length + "，最大为 " + (slotSize - 4));
+        }
+    }
+
+    @Override
+    public boolean offer(byte[] e) {
+        checkLength(e);
+        long t = tail();
+        if (t - headCache >= capacity) {
+            headCache = head();
+            if (t - headCache >= capacity) {
+                return false;
+            }
+        }
+        write(t, e);
+        UNSAFE.putOrderedLong(null, address + TAIL_OFFSET, t + 1);
+        return true;
+    }
+
+    @Override
+    public byte[] poll() {
+        long h = head();
+        if (h >= tailCache) {
+            tailCache = tail();
+            if (h >= tailCache) {
+                return null;
+            }
+        }
+        byte[] e = read(h);
+        UNSAFE.putOrderedLong(null, address + HEAD_OFFSET, h + 1);
+        return e;
+    }
+
+    @Override
+    public int offer(byte[][] src, int off, int len) {
+        checkRange(src, off, len);
+        for (int i = off; i < off + len; i++) {
+            checkLength(src[i]);
+        }
+        long t = tail();
+        long free = capacity - (t - headCache);
+        if (free < len) {
+            headCache = head();
+            free = capacity - (t - headCache);
+        }
+        int n = (int) Math.min(free, len);
+        for (int i = 0; i < n; i++) {
+            write(t + i, src[off + i]);
+        }
+        // 一次有序写发布整批元素
+        if (n > 0) {
+            UNSAFE.putOrderedLong(null, address + TAIL_OFFSET, t + n);
+        }
+        return n;
+    }
+
+    @Override
+    public int poll(byte[][] dst, int max) {
+        long h = head();
+        long available = tailCache - h;
+        if (available < max) {
+            tailCache = tail();
+            available = tailCache - h;
+        }
+        int n = (int) Math.min(available, Math.min(max, dst.length));
+        for (int i = 0; i < n; i++) {
+            dst[i] = read(h + i);
+        }
+        if (n > 0) {
+            UNSAFE.putOrderedLong(null, address + HEAD_OFFSET, h + n);
+        }
+        return n;
+    }
+
+    @Override
+    public int size() {
+        long h = head();
+        long t = tail();
+        return (int) Math.max(0, Math.min(t - h, capacity));
+    }
+
+    /**
+     * 把映射内存中修改过的页写入磁盘，用于防止机器掉电时丢失数据。进程之间传递数据不需要调用。
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * 关闭文件。映射的内存在 buffer 被 GC 回收时才会释放，关闭之后不能再存取元素。
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,303 @@
+package zinterview;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于内存映射文件的日志写入器：把数据复制到映射的内存中即完成写入，不需要 write 系统调用。
+ *
+ * 日志按固定大小（segmentSize）分段存放在 directory 下，文件名为 log-00000000.log，log-00000001.log ...
+ * 当前段写满时，切换（roll）到下一个段。下一个段是在后台线程中提前创建好的：创建文件，映射，并且每隔 4KB 写一个字节，让操作
+ * 系统提前分配好页（否则第一次写入每一页时都会产生缺页中断），所以切换时不需要等待。写满的段会截断为实际写入的长度。
+ * 一次 write 的数据（例如 AsyncLogSink 的一批日志）放不下时，整批写到下一个段，所以一行日志不会被拆到两个文件中。
+ * 重新打开同一个目录时，从最后一个段的最后一个非 0 字节之后继续写入。
+ *
+ * 写入的数据在页缓存中，什么时候写到磁盘由 FlushPolicy 决定：
+ * PER_BATCH：每次 write 之后都调用 force（即 msync），最安全，但每批日志都要等待磁盘；
+ * PERIODIC：由后台线程每隔 flushIntervalMillis 调用一次 force，机器掉电时最多丢失这段时间内的日志；
+ * OS：只在切换段与 close 时 force，其余时间由操作系统决定何时写回（Linux 通常为 30 秒之内），进程崩溃不会丢失数据。
+ * forceCount，forceNanos 记录了 force 的次数与耗时。
+ *
+ * 实现了 GatheringByteChannel，可以作为 AsyncLogSink 的写入目标。write 只能由一个线程调用（AsyncLogSink 的写线程），
+ * PERIODIC 的 force 在另一个线程中执行，与 write 之间只在切换段时互斥，force 期间不会阻塞写入。
+ * 与 BufferedWriter 的对比参考 LogBenchmark.t2。
+ */
+public class MappedLogWriter implements GatheringByteChannel {
+
+    public enum FlushPolicy {
+        PER_BATCH, PERIODIC, OS
+    }
+
+    private static final int PAGE_SIZE = 4096;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FlushPolicy flushPolicy;
+    // 提前创建下一个段，PERIODIC 时还负责定期 force
+    private final ScheduledExecutorService background;
+    // 切换段与 force 互斥，以免 force 一个正在被截断的段
+    private final ReentrantLock rollLock = new ReentrantLock();
+
+    private Segment current;
+    private Future<Segment> next;
+    private final AtomicLong forceCount = new AtomicLong();
+    private final AtomicLong forceNanos = new AtomicLong();
+    private volatile boolean closed;
+
+    private static final class Segment {
+        final int index;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(int index, FileChannel channel, MappedByteBuffer buffer) {
+            this.index = index;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    public MappedLogWriter(Path directory, int segmentSize, FlushPolicy flushPolicy) throws IOException {
+        this(directory, segmentSize, flushPolicy, 1000);
+    }
+
+    public MappedLogWriter(Path directory, int segmentSize, FlushPolicy flushPolicy, long flushIntervalMillis)
+            throws IOException {
+        if (segmentSize < PAGE_SIZE) {
+            throw new IllegalArgumentException("segmentSize: " + segmentSize);
+        }
+        if (flushPolicy == null) {
+            throw new NullPointerException("flushPolicy");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flushPolicy = flushPolicy;
+        Files.createDirectories(directory);
+        this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mapped-log-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<Path> files = files();
+        int index = files.isEmpty() ? 0 : parseIndex(files.get(files.size() - 1));
+        current = open(index);
+        // 从最后一个非 0 字节之后继续写
+        int position = segmentSize;
+        while (position > 0 && current.buffer.get(position - 1) == 0) {
+            position--;
+        }
+        current.buffer.position(position);
+        next = prepare(index + 1);
+
+        if (flushPolicy == FlushPolicy.PERIODIC) {
+            background.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    rollLock.lock();
+                    try {
+                        if (!closed) {
+                            force(current);
+                        }
+                    } finally {
+                        rollLock.unlock();
+                    }
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Path file(int index) {
+        return directory.resolve(String.format("log-%08d.log", index));
+    }
+
+    private static int parseIndex(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(4, name.length() - 4));
+    }
+
+    /**
+     * 所有段的文件，按照写入的顺序排列
+     */
+    public List<Path> files() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "log-[0-9]*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private Segment open(int index) throws IOException {
+        FileChannel channel = FileChannel.open(file(index), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new Segment(index, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 在后台创建下一个段，并且预先分配好页
+     */
+    private Future<Segment> prepare(int index) {
+        return background.submit(() -> {
+            Segment segment = open(index);
+            for (int i = 0; i < segmentSize; i += PAGE_SIZE) {
+                segment.buffer.put(i, (byte) 0);
+            }
+            return segment;
+        });
+    }
+
+    private void force(Segment segment) {
+        long begin = System.nanoTime();
+        segment.buffer.force();
+        forceNanos.addAndGet(System.nanoTime() - begin);
+        forceCount.incrementAndGet();
+    }
+
+    /**
+     * 切换到下一个段：force 并截断写满的段，再取出提前创建好的段
+     */
+    private void roll() throws IOException {
+        Segment next;
+        try {
+            next = this.next.get();
+        } catch (InterruptedException e) {
+            // 保留中断状态，this.next 仍然有效，下一次 roll 再取
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待创建日志段时被中断！");
+        } catch (ExecutionException e) {
+            // 后台创建失败，同步再创建一次（不预先分配页）。仍然失败时重新提交到后台，下一次 roll 再试，
+            // 否则 this.next 一直是这个失败的 Future，之后每次切换都会失败
+            try {
+                next = open(current.index + 1);
+            } catch (IOException retry) {
+                this.next = prepare(current.index + 1);
+                retry.addSuppressed(e.getCause());
+                throw new IOException("创建日志段异常！", retry);
+            }
+        }
+        rollLock.lock();
+        try {
+            Segment old = current;
+            force(old);
+            old.channel.truncate(old.buffer.position());
+            old.channel.close();
+            current = next;
+        } finally {
+            rollLock.unlock();
+        }
+        this.next = prepare(current.index + 1);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += srcs[i].remaining();
+        }
+        // 当前段放不下这一批时，整批写到下一个段。超过一个段大小的数据只能拆开写
+        if (total > current.buffer.remaining() && total <= segmentSize && current.buffer.position() > 0) {
+            roll();
+        }
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer src = srcs[i];
+            while (src.hasRemaining()) {
+                if (!current.buffer.hasRemaining()) {
+                    roll();
+                }
+                MappedByteBuffer buffer = current.buffer;
+                if (src.remaining() <= buffer.remaining()) {
+                    buffer.put(src);
+                } else {
+                    int limit = src.limit();
+                    src.limit(src.position() + buffer.remaining());
+                    buffer.put(src);
+                    src.limit(limit);
+                }
+            }
+        }
+        if (flushPolicy == FlushPolicy.PER_BATCH) {
+            force(current);
+        }
+        return total;
+    }
+
+    public long forceCount() {
+        return forceCount.get();
+    }
+
+    public long forceNanos() {
+        return forceNanos.get();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * force 并截断当前段，删除提前创建好但还没有使用的段
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        rollLock.lock();
+        try {
+            closed = true;
+            force(current);
+            current.channel.truncate(current.buffer.position());
+            current.channel.close();
+        } finally {
+            rollLock.unlock();
+        }
+        background.shutdown();
+        try {
+            Segment unused = next.get();
+            unused.channel.close();
+            Files.deleteIfExists(file(unused.index));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package zinterview;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 多生产者多消费者的环形缓冲区（Dmitry Vyukov 的有界 MPMC 队列）。
+ *
+ * 每个槽位除了元素之外还有一个序号 sequences[i]，初始值为 i：
+ * 生产者读取 tail，如果对应槽位的序号等于 tail，说明槽位是空的，CAS 推进 tail 抢到之后写入元素，再把序号设为 tail + 1；
+ * 消费者读取 head，如果对应槽位的序号等于 head + 1，说明元素已经写好了，CAS 推进 head 抢到之后取出元素，再把序号设为
+ * head + capacity，即下一圈生产者可以写入的位置。
+ * 序号小于期望值说明缓冲区满了（空了），大于期望值说明其他线程已经抢先推进了计数器，重新读取即可。
+ * 所以生产者与消费者只在 tail，head 上各自竞争，并且每个槽位的状态由它自己的序号表示，不需要额外的锁或者计数。
+ *
+ * 批量操作时，先检查从 tail（head）开始的连续槽位中有几个是可用的，再一次 CAS 把计数器推进这么多。CAS 成功就说明这期间没有
+ * 其他线程推进过计数器，检查过的槽位都归当前线程所有。
+ */
+public class MpmcRingBuffer<E> extends AbstractRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final Sequence tail = new Sequence(0);
+    private final Sequence head = new Sequence(0);
+
+    public MpmcRingBuffer(int capacity) {
+        this(capacity, WaitStrategy.sleeping());
+    }
+
+    public MpmcRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        buffer = new AtomicReferenceArray<>(this.capacity);
+        sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        checkNotNull(e);
+        long t = tail.get();
+        while (true) {
+            int index = (int) t & mask;
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    buffer.lazySet(index, e);
+                    sequences.lazySet(index, t + 1);
+                    return true;
+                }
+                t = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                t = tail.get();
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        long h = head.get();
+        while (true) {
+            int index = (int) h & mask;
+            long diff = sequences.get(index) - (h + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(h, h + 1)) {
+                    E e = buffer.get(index);
+                    buffer.lazySet(index, null);
+                    sequences.lazySet(index, h + capacity);
+                    return e;
+                }
+                h = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                h = head.get();
+            }
+        }
+    }
+
+    @Override
+    public int offer(E[] src, int off, int len) {
+        checkRange(src, off, len);
+        for (int i = off; i < off + len; i++) {
+            checkNotNull(src[i]);
+        }
+        while (true) {
+            long t = tail.get();
+            int n = 0;
+            while (n < len && sequences.get((int) (t + n) & mask) == t + n) {
+                n++;
+            }
+            if (n == 0) {
+                if (sequences.get((int) t & mask) - t < 0) {
+                    return 0;
+                }
+                // 其他生产者已经推进了 tail，重新读取
+                continue;
+            }
+            if (tail.compareAndSet(t, t + n)) {
+                for (int i = 0; i < n; i++) {
+                    int index = (int) (t + i) & mask;
+                    buffer.lazySet(index, src[off + i]);
+                    sequences.lazySet(index, t + i + 1);
+                }
+                return n;
+            }
+        }
+    }
+
+    @Override
+    public int poll(E[] dst, int max) {
+        max = Math.min(max, dst.length);
+        if (max <= 0) {
+            return 0;
+        }
+        while (true) {
+            long h = head.get();
+            int n = 0;
+            while (n < max && sequences.get((int) (h + n) & mask) == h + n + 1) {
+                n++;
+            }
+            if (n == 0) {
+                if (sequences.get((int) h & mask) - (h + 1) < 0) {
+                    return 0;
+                }
+                continue;
+            }
+            if (head.compareAndSet(h, h + n)) {
+                for (int i = 0; i < n; i++) {
+                    int index = (int) (h + i) & mask;
+                    dst[i] = buffer.get(index);
+                    buffer.lazySet(index, null);
+                    sequences.lazySet(index, h + i + capacity);
+                }
+                return n;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, capacity));
+    }
+}
@@ -0,0 +1,121 @@
+package zinterview;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 多生产者单消费者的环形缓冲区，例如多个业务线程把日志交给一个写日志的线程。
+ *
+ * 生产者用 CAS 推进 tail 来争抢一个位置，抢到之后再写入元素。所以在消费者看来，tail 之前的槽位可能暂时还是 null（生产者抢到了
+ * 位置但还没有写入），这时消费者等待这一个槽位即可，不能跳过它，否则就破坏了先进先出的顺序。
+ * 消费者只有一个，取出元素后用 lazySet 清空槽位、推进 head 即可，不需要 CAS。
+ */
+public class MpscRingBuffer<E> extends AbstractRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final Sequence tail = new Sequence(0);
+    private final Sequence head = new Sequence(0);
+    // 生产者共享的 head 缓存，只在看起来满了时才去读取 head
+    private final Sequence headCache = new Sequence(0);
+
+    public MpscRingBuffer(int capacity) {
+        this(capacity, WaitStrategy.sleeping());
+    }
+
+    public MpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        buffer = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        checkNotNull(e);
+        long t;
+        do {
+            t = tail.get();
+            if (t - headCache.get() >= capacity) {
+                long h = head.get();
+                if (t - h >= capacity) {
+                    return false;
+                }
+                headCache.lazySet(h);
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        buffer.lazySet((int) t & mask, e);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        long h = head.get();
+        int index = (int) h & mask;
+        E e = buffer.get(index);
+        if (e == null) {
+            if (h == tail.get()) {
+                return null;
+            }
+            // 生产者已经抢到了这个位置，马上就会写入
+            do {
+                e = buffer.get(index);
+            } while (e == null);
+        }
+        buffer.lazySet(index, null);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    @Override
+    public int offer(E[] src, int off, int len) {
+        checkRange(src, off, len);
+        for (int i = off; i < off + len; i++) {
+            checkNotNull(src[i]);
+        }
+        long t;
+        int n;
+        do {
+            t = tail.get();
+            long free = capacity - (t - headCache.get());
+            if (free < len) {
+                long h = head.get();
+                headCache.lazySet(h);
+                free = capacity - (t - h);
+            }
+            n = (int) Math.min(free, len);
+            if (n <= 0) {
+                return 0;
+            }
+            // 一次 CAS 抢到 n 个连续的位置
+        } while (!tail.compareAndSet(t, t + n));
+        for (int i = 0; i < n; i++) {
+            buffer.lazySet((int) (t + i) & mask, src[off + i]);
+        }
+        return n;
+    }
+
+    @Override
+    public int poll(E[] dst, int max) {
+        max = Math.min(max, dst.length);
+        long h = head.get();
+        int n = 0;
+        // 遇到还没有写入的槽位就停下，这一批只取出已经写好的连续元素
+        for (; n < max; n++) {
+            int index = (int) (h + n) & mask;
+            E e = buffer.get(index);
+            if (e == null) {
+                break;
+            }
+            dst[n] = e;
+            buffer.lazySet(index, null);
+        }
+        if (n > 0) {
+            head.lazySet(h + n);
+        }
+        return n;
+    }
+
+    @Override
+    public int size() {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, capacity));
+    }
+}
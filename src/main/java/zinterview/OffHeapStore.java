@@ -0,0 +1,251 @@
+package zinterview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外内存的存储层，用于存放 ConcurrentCache 中被淘汰下来的冷数据。
+ *
+ * 大量的小对象放在堆中时，每次 GC 都要遍历（或者复制）它们，对象越多停顿越长。而放在直接内存（DirectByteBuffer）中的数据
+ * 对 GC 来说只是几块大的 byte 数组，不管存了多少条数据都不会增加 GC 的负担。堆中只保留 key 和一个 long 类型的地址。
+ *
+ * 内存分配采用 slab 的方式：按 2 的幂划分出若干个大小级别（32 字节到 64KB），每个级别按 1MB 申请一块 slab，再切分为固定
+ * 大小的槽位，释放的槽位放入空闲列表中重复使用，所以不会产生内存碎片。每个槽位的格式为 [int 长度][long 写入时间][数据]。
+ * 超过 64KB 的数据不存入堆外。
+ *
+ * 并发：每个大小级别各有一把锁，只在分配与释放槽位时持有。释放一个槽位之前，必须先从 index 中原子地移除它的地址
+ * （ConcurrentHashMap 的 remove），这样一个槽位同时只会有一个线程在读写，读写数据本身不需要加锁。
+ * 总内存达到上限时，在同一个大小级别中随机淘汰一个槽位（对于冷数据来说，随机淘汰的效果与 LRU 相差不大）。
+ */
+final class OffHeapStore<K> {
+
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int MIN_SHIFT = 5;
+    private static final int MAX_SHIFT = 16;
+    private static final int HEADER = 12;
+    private static final int EVICT_ATTEMPTS = 16;
+
+    private final ConcurrentHashMap<K, Long> index = new ConcurrentHashMap<>();
+    private final SizeClass[] classes;
+    private final long maximumBytes;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    OffHeapStore(long maximumBytes) {
+        this.maximumBytes = maximumBytes;
+        this.classes = newClasses(MAX_SHIFT - MIN_SHIFT + 1);
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(i, 1 << (i + MIN_SHIFT));
+        }
+    }
+
+    /**
+     * SizeClass 是内部类，类型为 OffHeapStore<K>.SizeClass，不能直接创建它的数组
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private SizeClass[] newClasses(int length) {
+        return new OffHeapStore.SizeClass[length];
+    }
+
+    /**
+     * 存入数据，数据过大或者无法分配内存时返回 false。
+     */
+    boolean put(K key, byte[] bytes, long writeTime) {
+        int required = bytes.length + HEADER;
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(required - 1));
+        if (shift > MAX_SHIFT) {
+            remove(key);
+            return false;
+        }
+        SizeClass sizeClass = classes[shift - MIN_SHIFT];
+        long address = sizeClass.allocate(key);
+        if (address < 0) {
+            remove(key);
+            return false;
+        }
+        ByteBuffer buffer = sizeClass.slot(address);
+        buffer.putInt(bytes.length);
+        buffer.putLong(writeTime);
+        buffer.put(bytes);
+
+        Long old = index.put(key, address);
+        if (old != null) {
+            free(old);
+        }
+        return true;
+    }
+
+    /**
+     * 取出并移除数据，即数据被重新提升到堆中。不存在时返回 null。
+     */
+    Entry take(K key) {
+        Long address = index.remove(key);
+        if (address == null) {
+            return null;
+        }
+        SizeClass sizeClass = classes[classOf(address)];
+        ByteBuffer buffer = sizeClass.slot(address);
+        int length = buffer.getInt();
+        long writeTime = buffer.getLong();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        sizeClass.free(address);
+        return new Entry(bytes, writeTime);
+    }
+
+    void remove(K key) {
+        Long address = index.remove(key);
+        if (address != null) {
+            free(address);
+        }
+    }
+
+    void clear() {
+        for (K key : index.keySet()) {
+            remove(key);
+        }
+    }
+
+    long size() {
+        return index.mappingCount();
+    }
+
+    /**
+     * 已经申请的堆外内存（字节）
+     */
+    long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    private void free(long address) {
+        classes[classOf(address)].free(address);
+    }
+
+    private static int classOf(long address) {
+        return (int) (address >>> 56);
+    }
+
+    static final class Entry {
+        final byte[] bytes;
+        final long writeTime;
+
+        Entry(byte[] bytes, long writeTime) {
+            this.bytes = bytes;
+            this.writeTime = writeTime;
+        }
+    }
+
+    /**
+     * 一个大小级别。地址的格式为 [8 位级别][24 位 slab 下标][32 位槽位下标]。
+     */
+    private final class SizeClass {
+        final int id;
+        final int slotSize;
+        final int slotsPerSlab;
+        final ReentrantLock lock = new ReentrantLock();
+        // 只在持有 lock 时追加（写时复制），读取时不需要加锁
+        volatile ByteBuffer[] slabs = new ByteBuffer[0];
+        // 每个槽位当前属于哪个 key，用于内存满时的淘汰
+        final List<Object[]> owners = new ArrayList<>();
+        long[] free = new long[64];
+        int freeCount;
+        // 最后一块 slab 中还没有使用过的槽位
+        int unused;
+
+        SizeClass(int id, int slotSize) {
+            this.id = id;
+            this.slotSize = slotSize;
+            this.slotsPerSlab = SLAB_SIZE / slotSize;
+        }
+
+        long allocate(Object key) {
+            lock.lock();
+            try {
+                long address = -1;
+                if (freeCount > 0) {
+                    address = free[--freeCount];
+                } else if (unused > 0) {
+                    address = address(slabs.length - 1, slotsPerSlab - unused--);
+                } else if (allocatedBytes.addAndGet(SLAB_SIZE) <= maximumBytes) {
+                    ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+                    grown[slabs.length] = ByteBuffer.allocateDirect(SLAB_SIZE);
+                    slabs = grown;
+                    owners.add(new Object[slotsPerSlab]);
+                    unused = slotsPerSlab - 1;
+                    address = address(slabs.length - 1, 0);
+                } else {
+                    allocatedBytes.addAndGet(-SLAB_SIZE);
+                    address = evictRandom();
+                }
+                if (address >= 0) {
+                    owners.get(slabOf(address))[slotOf(address)] = key;
+                }
+                return address;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private long evictRandom() {
+            if (slabs.length == 0) {
+                return -1;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int used = slabs.length * slotsPerSlab - unused;
+            for (int i = 0; i < EVICT_ATTEMPTS; i++) {
+                int n = random.nextInt(used);
+                long address = address(n / slotsPerSlab, n % slotsPerSlab);
+                Object owner = owners.get(slabOf(address))[slotOf(address)];
+                // 槽位可能是空闲的，或者刚分配出去还没有写入 index，这时 remove 会失败，换一个槽位再试
+                if (owner != null && index.remove((K) owner, address)) {
+                    return address;
+                }
+            }
+            return -1;
+        }
+
+        void free(long address) {
+            lock.lock();
+            try {
+                owners.get(slabOf(address))[slotOf(address)] = null;
+                if (freeCount == free.length) {
+                    long[] grown = new long[free.length * 2];
+                    System.arraycopy(free, 0, grown, 0, freeCount);
+                    free = grown;
+                }
+                free[freeCount++] = address;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 返回一个定位到槽位起始处的 ByteBuffer。使用 duplicate 是因为多个线程会同时读写同一块 slab 的不同槽位。
+         */
+        ByteBuffer slot(long address) {
+            ByteBuffer buffer = slabs[slabOf(address)].duplicate();
+            int position = slotOf(address) * slotSize;
+            buffer.limit(position + slotSize);
+            buffer.position(position);
+            return buffer;
+        }
+
+        private long address(int slab, int slot) {
+            return ((long) id << 56) | ((long) slab << 32) | slot;
+        }
+
+        private int slabOf(long address) {
+            return (int) ((address >>> 32) & 0xffffff);
+        }
+
+        private int slotOf(long address) {
+            return (int) address;
+        }
+    }
+}
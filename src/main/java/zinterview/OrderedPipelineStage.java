@@ -0,0 +1,146 @@
+package zinterview;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 保序的并行处理阶段：输入由线程池中的多个线程并行处理，但处理结果按照输入的顺序交给下游（downstream）。
+ *
+ * BlockingQueueLog2.t3 用 Semaphore(1) 保证输出的顺序，代价是所有的 TestDo.dosome 都是串行执行的，10 个线程只有一个在工作。
+ * 这里的做法：
+ * 1，submit 时给每个输入分配一个递增的序号，交给线程池处理；
+ * 2，处理完的结果按序号放入重排序缓冲区（reorder buffer）slots[序号 % window]；
+ * 3，结果放入之后，尝试输出：从 nextToEmit 开始，把连续已经完成的结果依次交给 downstream，遇到还没有完成的就停下，等它完成
+ * 时由它所在的线程继续输出。
+ * 输出只能由一个线程进行，这里用 tryLock：抢不到锁说明已经有线程在输出了，直接返回即可，不需要等待。但持有锁的线程可能
+ * 刚好检查完、还没有释放锁，所以释放锁之后要再检查一次 nextToEmit 对应的结果是否已经完成，否则这个结果就没有线程输出了。
+ *
+ * 已提交但还没有输出的输入最多 window 个（即缓冲区的大小），超过时 submit 等待，这样某个输入处理得特别慢时，后面已经完成
+ * 的结果不会无限制地积压在内存中，也保证了序号 % window 不会冲突。
+ * function 抛出异常时打印异常，并跳过这个输入（不交给 downstream），后面的结果照常输出。function 返回 null 时，downstream
+ * 收到的也是 null。
+ */
+public class OrderedPipelineStage<I, O> {
+
+    // 结果为 null 与处理失败时放入缓冲区的占位对象
+    private static final Object NULL = new Object();
+    private static final Object SKIPPED = new Object();
+
+    private final ExecutorService pool;
+    private final int window;
+    private final Function<? super I, ? extends O> function;
+    private final Consumer<? super O> downstream;
+
+    private final AtomicReferenceArray<Object> slots;
+    private final ReentrantLock emitLock = new ReentrantLock();
+    // 只由持有 emitLock 的线程修改
+    private volatile long nextToEmit;
+
+    // submit 时等待缓冲区有空位，flush 时等待全部输出
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition emitted = lock.newCondition();
+    // 只由 submit 的线程修改
+    private long nextSequence;
+
+    public OrderedPipelineStage(ExecutorService pool, int window, Function<? super I, ? extends O> function,
+                                Consumer<? super O> downstream) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window <= 0");
+        }
+        this.pool = pool;
+        this.window = window;
+        this.function = function;
+        this.downstream = downstream;
+        this.slots = new AtomicReferenceArray<>(window);
+    }
+
+    /**
+     * 提交一个输入，缓冲区满了时等待。只能由一个线程调用（即输入的顺序就是调用的顺序）。
+     */
+    public void submit(I input) throws InterruptedException {
+        lock.lock();
+        try {
+            while (nextSequence - nextToEmit >= window) {
+                emitted.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+        long sequence = nextSequence++;
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                Object result;
+                try {
+                    O out = function.apply(input);
+                    result = (out == null) ? NULL : out;
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    result = SKIPPED;
+                }
+                slots.set(index(sequence), result);
+                emit();
+            }
+        });
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % window);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void emit() {
+        while (emitLock.tryLock()) {
+            int count = 0;
+            try {
+                Object result;
+                while ((result = slots.get(index(nextToEmit))) != null) {
+                    // 先清空位置，再推进 nextToEmit，之后 submit 才能使用这个位置
+                    slots.set(index(nextToEmit), null);
+                    nextToEmit++;
+                    count++;
+                    if (result == SKIPPED) {
+                        continue;
+                    }
+                    try {
+                        downstream.accept(result == NULL ? null : (O) result);
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                emitLock.unlock();
+            }
+            if (count > 0) {
+                lock.lock();
+                try {
+                    emitted.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            // 持有锁期间完成的结果，它的线程 tryLock 失败就返回了，所以这里再检查一次
+            if (slots.get(index(nextToEmit)) == null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 等待已经提交的输入全部输出。只能由调用 submit 的线程调用。
+     */
+    public void flush() throws InterruptedException {
+        lock.lock();
+        try {
+            while (nextToEmit < nextSequence) {
+                emitted.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package zinterview;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * 把一个 List（数组）中的元素分给多个线程并行处理，并且自动平衡各个线程的负载。
+ *
+ * BlockingQueueLog.t2 的做法是按线程数把元素平均分成固定的几段（index = size / 线程数），这样有两个问题：
+ * 1，size 不能被线程数整除时，最后的 size % 线程数 个元素没有线程处理；
+ * 2，每个元素的耗时不同时，分到耗时元素的线程很久才结束，其他线程早早处理完了自己的一段就空闲了，总耗时取决于最慢的一段。
+ *
+ * 这里采用 guided self-scheduling（OpenMP 中的 schedule(guided)）：所有线程共用一个 AtomicInteger 游标，每个线程每次用
+ * getAndAdd 领取一块连续的元素，处理完再领取下一块，直到游标越过末尾。每块的大小为 剩余元素数 / (2 * 线程数)（不小于
+ * minChunk），即开始时块比较大，领取的次数少；越接近末尾块越小，最后每个线程都只剩下很小的一块，各个线程几乎同时结束。
+ * 领取只是一次 getAndAdd，不需要加锁，也不需要像工作窃取那样为每个线程维护一个队列。
+ *
+ * 调用 forEach 的线程也参与处理，forEach 在全部元素处理完之后才返回。某个元素抛出异常时，其他线程不再领取新的块，
+ * forEach 把第一个异常包装为 RuntimeException 抛出。与固定分段的对比测试参考 ParallelDispatcherBenchmark。
+ */
+public class ParallelDispatcher {
+
+    private final ExecutorService pool;
+    private final int parallelism;
+    private final int minChunk;
+
+    /**
+     * 使用线程池的核心线程数作为并行度
+     */
+    public ParallelDispatcher(ThreadPoolExecutor pool) {
+        this(pool, pool.getCorePoolSize(), 1);
+    }
+
+    /**
+     * @param parallelism 同时处理的线程数（包括调用 forEach 的线程）
+     * @param minChunk 每次至少领取的元素个数，每个元素的耗时很短时应该适当加大，以减少领取的次数
+     */
+    public ParallelDispatcher(ExecutorService pool, int parallelism, int minChunk) {
+        if (parallelism <= 0 || minChunk <= 0) {
+            throw new IllegalArgumentException("parallelism: " + parallelism + ", minChunk: " + minChunk);
+        }
+        this.pool = pool;
+        this.parallelism = parallelism;
+        this.minChunk = minChunk;
+    }
+
+    public <T> void forEach(T[] items, Consumer<? super T> action) {
+        forEach(Arrays.asList(items), action);
+    }
+
+    /**
+     * 并行处理 items 中的每一个元素，全部处理完之后返回。items 需要支持随机访问（例如 ArrayList）。
+     */
+    public <T> void forEach(List<T> items, Consumer<? super T> action) {
+        int size = items.size();
+        if (size == 0) {
+            return;
+        }
+        AtomicInteger cursor = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int workers = Math.min(parallelism, size);
+        CountDownLatch done = new CountDownLatch(workers - 1);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        int remaining = size - cursor.get();
+                        int chunk = Math.max(minChunk, remaining / (2 * workers));
+                        int start = cursor.getAndAdd(chunk);
+                        if (start >= size) {
+                            return;
+                        }
+                        int end = Math.min(size, start + chunk);
+                        for (int i = start; i < end; i++) {
+                            action.accept(items.get(i));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                    // 让其他线程不再领取
+                    cursor.set(size);
+                }
+            }
+        };
+        for (int i = 1; i < workers; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        worker.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("等待并行处理结束时被中断！", e);
+        }
+        if (failure.get() != null) {
+            throw new RuntimeException("并行处理异常！", failure.get());
+        }
+    }
+}
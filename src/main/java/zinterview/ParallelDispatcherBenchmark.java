@@ -0,0 +1,102 @@
+package zinterview;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * ParallelDispatcher 与 BlockingQueueLog.t2 固定分段方式的对比测试，每个元素的耗时是不均匀的：后 1/4 的元素的耗时是前面
+ * 元素的 SKEW 倍（例如日志越往后越长）。固定分段时，最后一个线程分到了所有耗时的元素。
+ *
+ * 耗时分为两种：
+ * io：每个元素 park 一段时间，模拟 printLog 中的 sleep 或者等待 IO，线程等待时不占用 CPU，所以单核的机器上也能体现出差别；
+ * cpu：每个元素做一段计算，需要 CPU 核数不少于线程数，否则多个线程只是轮流使用同一个 CPU 核，总耗时与分段方式无关。
+ * 固定分段这里把余数分给了最后一段，以保证两种方式处理的元素相同（t2 的写法会漏掉余数）。
+ */
+public class ParallelDispatcherBenchmark {
+
+    private static final int THREADS = 4;
+    private static final int SKEW = 10;
+
+    private static volatile long sink;
+
+    /**
+     * 按 t2 的方式固定分为 THREADS 段，余数分给最后一段
+     */
+    static <T> void fixed(ThreadPoolExecutor pool, List<T> items, Consumer<? super T> action) throws Exception {
+        int index = items.size() / THREADS;
+        CountDownLatch done = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            final int num = i;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int end = (num == THREADS - 1) ? items.size() : index * (num + 1);
+                    for (int d = index * num; d < end; d++) {
+                        action.accept(items.get(d));
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+
+    public static void t1(String name, int size, long unit, Consumer<Long> work) throws Exception {
+        List<Long> costs = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            costs.add((i < size * 3 / 4) ? unit : unit * SKEW);
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+        // 调用线程也会参与处理，所以线程池中只需要 THREADS - 1 个线程
+        ThreadPoolExecutor dispatcherPool = new ThreadPoolExecutor(THREADS - 1, THREADS - 1, 0, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>());
+        ParallelDispatcher dispatcher = new ParallelDispatcher(dispatcherPool, THREADS, 1);
+        AtomicLong processed = new AtomicLong();
+        Consumer<Long> action = cost -> {
+            work.accept(cost);
+            processed.incrementAndGet();
+        };
+        // 预热
+        fixed(pool, costs, action);
+        dispatcher.forEach(costs, action);
+
+        processed.set(0);
+        long begin = System.nanoTime();
+        fixed(pool, costs, action);
+        long fixedMillis = (System.nanoTime() - begin) / 1000000;
+        if (processed.get() != size) {
+            throw new IllegalStateException("固定分段处理的元素个数不正确：" + processed.get());
+        }
+        processed.set(0);
+        begin = System.nanoTime();
+        dispatcher.forEach(costs, action);
+        long guidedMillis = (System.nanoTime() - begin) / 1000000;
+        if (processed.get() != size) {
+            throw new IllegalStateException("ParallelDispatcher 处理的元素个数不正确：" + processed.get());
+        }
+        System.out.printf("    %-6s 固定分段 %6d ms，ParallelDispatcher %6d ms%n", name, fixedMillis, guidedMillis);
+        pool.shutdown();
+        dispatcherPool.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(THREADS + " 个线程，后 1/4 的元素耗时为前面的 " + SKEW + " 倍：");
+        // 每个元素 1 毫秒（耗时的元素 10 毫秒）
+        t1("io", 400, 1000000, cost -> LockSupport.parkNanos(cost));
+        // 每个元素几十微秒的计算
+        t1("cpu", 40000, 2000, cost -> {
+            long x = cost;
+            for (long i = 0; i < cost * 10; i++) {
+                x = x * 6364136223846793005L + 1442695040888963407L;
+            }
+            sink = x;
+        });
+    }
+}
@@ -0,0 +1,69 @@
+package zinterview;
+
+/**
+ * 无锁的有界环形缓冲区，用于替换 BoundedBuffer 中 ReentrantLock + Condition 的实现。
+ *
+ * 容量会向上取整为 2 的幂，这样下标可以用 sequence & mask 计算，而不是取模。生产者与消费者各自只推进自己的计数器（sequence），
+ * 计数器前后都做了填充，避免落在同一个缓存行上（伪共享）。根据生产者、消费者的数量，分为三种实现：
+ * SpscRingBuffer：单生产者单消费者，两边都不需要 CAS，只需要有序写（lazySet）。
+ * MpscRingBuffer：多生产者单消费者，生产者用 CAS 争抢位置，消费者不需要 CAS。
+ * MpmcRingBuffer：多生产者多消费者，每个槽位带一个序号（Vyukov 的有界队列），两边都用 CAS 争抢位置。
+ * 使用方必须保证实际的生产者、消费者数量不超过实现的要求，否则数据会被覆盖或者重复取出。
+ *
+ * offer，poll 不会阻塞，缓冲区满了或者空了时直接返回。put，take 则按照创建时指定的 WaitStrategy 等待，默认为 sleeping：
+ * 等待的时间越长，让出 CPU 的力度越大（自旋，yield，park），而不是每次都 park 之后再被 signalAll 唤醒。
+ *
+ * 批量操作（offer(E[], int, int)，poll(E[], int)，putAll，drainTo）一次 CAS（或者一次有序写）就推进多个位置，把同步的代价分摊
+ * 到一批元素上。
+ */
+public interface RingBuffer<E> {
+
+    /**
+     * 放入元素，缓冲区满了时返回 false。元素不能为 null。
+     */
+    boolean offer(E e);
+
+    /**
+     * 取出元素，缓冲区空了时返回 null。
+     */
+    E poll();
+
+    /**
+     * 放入元素，缓冲区满了时等待。
+     */
+    void put(E e) throws InterruptedException;
+
+    /**
+     * 取出元素，缓冲区空了时等待。
+     */
+    E take() throws InterruptedException;
+
+    /**
+     * 放入 src[off, off + len) 中尽可能多的元素，返回放入的个数，不会阻塞。元素不能为 null。
+     */
+    int offer(E[] src, int off, int len);
+
+    /**
+     * 取出最多 max 个元素放入 dst 中，返回取出的个数，不会阻塞。
+     */
+    int poll(E[] dst, int max);
+
+    /**
+     * 放入 src[off, off + len) 中的全部元素，空位不够时等待。
+     * 等待时被中断会抛出 InterruptedException，已经放入的元素（src 中从 off 开始的一段）不会撤回，其余的没有放入，
+     * 所以不能直接用同样的参数重试。需要知道放入了多少个时，使用 offer(E[], int, int)。
+     */
+    void putAll(E[] src, int off, int len) throws InterruptedException;
+
+    /**
+     * 取出最多 max 个元素放入 dst 中，返回取出的个数。缓冲区为空时等待，直到至少可以取出一个元素。
+     */
+    int drainTo(E[] dst, int max) throws InterruptedException;
+
+    /**
+     * 当前的元素个数。并发修改时只是一个近似值。
+     */
+    int size();
+
+    int capacity();
+}
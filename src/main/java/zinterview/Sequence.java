@@ -0,0 +1,48 @@
+package zinterview;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 前后填充的 long 计数器，即 Disruptor 中的 Sequence。
+ *
+ * 一个缓存行通常为 64 字节，前后各填充 7 个 long，就可以保证 value 独占一个缓存行。填充放在父类与子类中，是因为 JVM 会对同一个
+ * 类中的字段重新排序，但父类的字段总是排在子类的字段之前。
+ */
+class SequencePadding {
+    long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequencePadding {
+    volatile long value;
+}
+
+final class Sequence extends SequenceValue {
+    long q1, q2, q3, q4, q5, q6, q7;
+
+    private static final AtomicLongFieldUpdater<SequenceValue> UPDATER =
+            AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    Sequence(long initial) {
+        value = initial;
+    }
+
+    long get() {
+        return value;
+    }
+
+    void set(long v) {
+        value = v;
+    }
+
+    /**
+     * 有序写：保证之前的写操作不会重排到它之后，但不会像 volatile 写那样等待写缓冲区刷新，代价要小得多。
+     * 单写者的计数器只需要有序写，其他线程最终一定能看到新值。
+     */
+    void lazySet(long v) {
+        UPDATER.lazySet(this, v);
+    }
+
+    boolean compareAndSet(long expect, long update) {
+        return UPDATER.compareAndSet(this, expect, update);
+    }
+}
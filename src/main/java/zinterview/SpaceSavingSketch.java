@@ -0,0 +1,137 @@
+package zinterview;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving 算法，用固定数量的计数器找出访问最多的 top-K 个 key（热点 key）。
+ *
+ * 只监视 capacity 个 key，按计数组织为小顶堆：已监视的 key 直接加 1；未监视的 key 替换掉堆顶（当前计数最小）的那个，并继承
+ * 它的计数再加 1。所以真正的热点 key 一定会留在监视列表中，而计数可能会偏大（最多偏大被替换时继承的值）。每处理一定数量的访问
+ * 后，所有计数减半，让过去的热点慢慢冷却，反映的是最近的热点。
+ *
+ * 为了让统计的开销与淘汰策略本身相比可以忽略，只随机抽取 1/SAMPLE 的访问记录进行计数，返回时再把计数乘以 SAMPLE。热点 key
+ * 的访问次数远高于平均值，抽样后仍然会留在监视列表中，只是计数是一个估计值。
+ *
+ * 不是线程安全的，只在持有 evictionLock 时，由读缓冲区批量重放访问记录时调用，所以不会增加读路径的开销。
+ */
+final class SpaceSavingSketch {
+
+    private static final int SAMPLE = 64;
+
+    private final Counter[] heap;
+    private final Map<Object, Counter> counters;
+    private final long agingPeriod;
+    private int size;
+    private long offers;
+    private int random = 0x2545F491;
+    private int skip = 1;
+
+    SpaceSavingSketch(int topK) {
+        // 监视的 key 数量多于要求的 top-K，以提高计数的准确性
+        int capacity = Math.max(topK * 4, 16);
+        this.heap = new Counter[capacity];
+        this.counters = new HashMap<>(capacity * 2);
+        this.agingPeriod = capacity * 10000L / SAMPLE;
+    }
+
+    void offer(Object key) {
+        // 方法体尽量小，以便被内联到重放读缓冲区的循环中
+        if (--skip == 0) {
+            record(key);
+        }
+    }
+
+    private void record(Object key) {
+        // 下一次计数前跳过的访问数为 [1, 2 * SAMPLE) 中的随机数（xorshift），平均每 SAMPLE 次访问计数一次
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        skip = (random & (2 * SAMPLE - 1)) | 1;
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count++;
+            siftDown(counter.index);
+        } else if (size < heap.length) {
+            counter = new Counter();
+            counter.key = key;
+            counter.count = 1;
+            counter.index = size;
+            heap[size++] = counter;
+            counters.put(key, counter);
+            siftUp(counter.index);
+        } else {
+            // 计数最小的 key 在小顶堆的堆顶，替换它只需要 O(log capacity)
+            counter = heap[0];
+            counters.remove(counter.key);
+            counter.key = key;
+            counter.count++;
+            counters.put(key, counter);
+            siftDown(0);
+        }
+        if (++offers == agingPeriod) {
+            offers = 0;
+            // 所有计数同时减半，堆的顺序不变
+            for (int i = 0; i < size; i++) {
+                heap[i].count >>>= 1;
+            }
+        }
+    }
+
+    /**
+     * 按计数从大到小返回前 k 个 key
+     */
+    List<Map.Entry<Object, Long>> top(int k) {
+        List<Map.Entry<Object, Long>> entries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(heap[i].key, heap[i].count * SAMPLE));
+        }
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return new ArrayList<>(entries.subList(0, Math.min(k, entries.size())));
+    }
+
+    private void siftUp(int i) {
+        Counter counter = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], i);
+            i = parent;
+        }
+        place(counter, i);
+    }
+
+    private void siftDown(int i) {
+        Counter counter = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            int right = child + 1;
+            if (right < size && heap[right].count < heap[child].count) {
+                child = right;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], i);
+            i = child;
+        }
+        place(counter, i);
+    }
+
+    private void place(Counter counter, int i) {
+        heap[i] = counter;
+        counter.index = i;
+    }
+
+    private static final class Counter {
+        Object key;
+        long count;
+        int index;
+    }
+}
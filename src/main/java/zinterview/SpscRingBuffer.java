@@ -0,0 +1,112 @@
+package zinterview;
+
+/**
+ * 单生产者单消费者的环形缓冲区。
+ *
+ * tail 只有生产者写，head 只有消费者写，所以两边都不需要 CAS。生产者先写入元素，再用 lazySet 推进 tail，消费者读到新的 tail
+ * 时一定能看到之前写入的元素。
+ * 另外生产者缓存了一份 head（消费者缓存了一份 tail），只有在缓存的值显示缓冲区满了（空了）时，才去读取对方的计数器。
+ * 这样大部分操作都只访问自己的缓存行，对方的缓存行不会在两个 CPU 核之间来回传递。
+ */
+public class SpscRingBuffer<E> extends AbstractRingBuffer<E> {
+
+    // 元素的可见性由 tail，head 的有序写保证，所以使用普通数组即可
+    private final Object[] buffer;
+    private final Sequence tail = new Sequence(0);
+    private final Sequence head = new Sequence(0);
+    // 只由生产者访问
+    private final Sequence headCache = new Sequence(0);
+    // 只由消费者访问
+    private final Sequence tailCache = new Sequence(0);
+
+    public SpscRingBuffer(int capacity) {
+        this(capacity, WaitStrategy.sleeping());
+    }
+
+    public SpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        buffer = new Object[this.capacity];
+    }
+
+    @Override
+    public boolean offer(E e) {
+        checkNotNull(e);
+        long t = tail.get();
+        if (t - headCache.value >= capacity) {
+            headCache.value = head.get();
+            if (t - headCache.value >= capacity) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h >= tailCache.value) {
+            tailCache.value = tail.get();
+            if (h >= tailCache.value) {
+                return null;
+            }
+        }
+        int index = (int) h & mask;
+        E e = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    @Override
+    public int offer(E[] src, int off, int len) {
+        checkRange(src, off, len);
+        long t = tail.get();
+        long free = capacity - (t - headCache.value);
+        if (free < len) {
+            headCache.value = head.get();
+            free = capacity - (t - headCache.value);
+        }
+        int n = (int) Math.min(free, len);
+        for (int i = 0; i < n; i++) {
+            E e = src[off + i];
+            checkNotNull(e);
+            buffer[(int) (t + i) & mask] = e;
+        }
+        // 一次有序写发布整批元素
+        if (n > 0) {
+            tail.lazySet(t + n);
+        }
+        return n;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int poll(E[] dst, int max) {
+        long h = head.get();
+        long available = tailCache.value - h;
+        if (available < max) {
+            tailCache.value = tail.get();
+            available = tailCache.value - h;
+        }
+        int n = (int) Math.min(available, Math.min(max, dst.length));
+        for (int i = 0; i < n; i++) {
+            int index = (int) (h + i) & mask;
+            dst[i] = (E) buffer[index];
+            buffer[index] = null;
+        }
+        if (n > 0) {
+            head.lazySet(h + n);
+        }
+        return n;
+    }
+
+    @Override
+    public int size() {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, capacity));
+    }
+}
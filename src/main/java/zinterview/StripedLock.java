@@ -0,0 +1,124 @@
+package zinterview;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按 key 加锁：equals 相同的 key 互斥，用于代替 TestDo2.doSome3，doSome4 中"在集合中找到 equals 的 key 对象再对它加锁"的做法。
+ * 那种做法每次都要遍历集合（O(n)），集合只增不减，key 越多占用的内存越多。这里提供两种方式：
+ *
+ * striped：按 key 的 hash 映射到固定个数的锁（锁分段，ConcurrentHashMap 在 JDK 7 中的 Segment 就是这样做的）。查找是 O(1)，
+ * 不管有多少种 key 都只占用固定的内存，代价是不同的 key 可能映射到同一个锁，彼此之间也会互斥（锁越多，冲突越少）。
+ * 锁放在数组中时，相邻的锁可能落在同一个缓存行上，一个锁的状态变化会让其他 CPU 核上相邻的锁的缓存行失效（伪共享），
+ * 所以每个锁对象都做了填充：ReentrantLock 的状态在它的 Sync 对象中，Sync 是在锁对象之后紧接着分配的，锁对象中的填充
+ * 字段把相邻两个锁的 Sync 隔开了至少 64 字节。
+ *
+ * exact：每个正在使用的 key 对应一个锁，不同的 key 之间不会互斥。锁放在 ConcurrentHashMap 中，并且记录了引用计数，
+ * lock 时加一，unlock 时减一，减到 0 时从 map 中删除，所以 map 中只有正在被使用的 key，内存同样不会一直增长。
+ * 引用计数只在 ConcurrentHashMap.compute 中修改，compute 对同一个 key 是互斥的，所以不会删除一个刚刚被其他线程取得的锁。
+ *
+ * lock 与 unlock 必须成对使用，并且 unlock 要放在 finally 中。
+ */
+public abstract class StripedLock {
+
+    public abstract void lock(Object key);
+
+    public abstract void unlock(Object key);
+
+    /**
+     * 固定个数的锁，个数会向上取整为 2 的幂
+     */
+    public static StripedLock striped(int stripes) {
+        return new Striped(stripes);
+    }
+
+    /**
+     * 每个 key 一个锁，使用完之后删除
+     */
+    public static StripedLock exact() {
+        return new Exact();
+    }
+
+
+    static final class PaddedLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    static final class Striped extends StripedLock {
+        private final PaddedLock[] locks;
+        private final int mask;
+
+        Striped(int stripes) {
+            if (stripes <= 0 || stripes > (1 << 30)) {
+                throw new IllegalArgumentException("stripes: " + stripes);
+            }
+            int size = (stripes == 1) ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+            locks = new PaddedLock[size];
+            for (int i = 0; i < size; i++) {
+                locks[i] = new PaddedLock();
+            }
+            mask = size - 1;
+        }
+
+        /**
+         * key 对应的锁
+         */
+        ReentrantLock get(Object key) {
+            // 与 HashMap 一样，把 hash 的高位混入低位，以免 hashCode 只有高位不同的 key 都落在同一个锁上
+            int h = key.hashCode();
+            return locks[(h ^ (h >>> 16)) & mask];
+        }
+
+        @Override
+        public void lock(Object key) {
+            get(key).lock();
+        }
+
+        @Override
+        public void unlock(Object key) {
+            get(key).unlock();
+        }
+    }
+
+
+    static final class Exact extends StripedLock {
+
+        private static final class CountedLock extends ReentrantLock {
+            private static final long serialVersionUID = 1L;
+            // 只在 ConcurrentHashMap.compute 中修改
+            int refs;
+        }
+
+        private final ConcurrentHashMap<Object, CountedLock> locks = new ConcurrentHashMap<>();
+
+        @Override
+        public void lock(Object key) {
+            CountedLock lock = locks.compute(key, (k, l) -> {
+                if (l == null) {
+                    l = new CountedLock();
+                }
+                l.refs++;
+                return l;
+            });
+            lock.lock();
+        }
+
+        @Override
+        public void unlock(Object key) {
+            CountedLock lock = locks.get(key);
+            if (lock == null) {
+                throw new IllegalMonitorStateException("key 没有加锁：" + key);
+            }
+            lock.unlock();
+            locks.computeIfPresent(key, (k, l) -> (--l.refs == 0) ? null : l);
+        }
+
+        /**
+         * 当前正在被使用的 key 的个数
+         */
+        int size() {
+            return locks.size();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package zinterview;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 分段的、有损的读缓冲区，用于记录缓存的读操作，之后再由持有 evictionLock 的线程批量重放给淘汰策略。
+ *
+ * 按线程 id 把读操作分散到多个环形缓冲区上（段数为 CPU 核数向上取 2 的幂），以减少 CAS 的竞争。缓冲区满了或者 CAS 失败时直
+ * 接丢弃这次记录，读线程永远不会等待。丢弃少量的访问记录只会让淘汰策略的判断稍微不那么精确，而不会影响正确性。
+ */
+final class StripedReadBuffer<E> {
+
+    static final int SUCCESS = 0;
+    // 已经记录，缓冲区满了，需要重放
+    static final int FULL = 1;
+    static final int FAILED = 2;
+    // 缓冲区已满，没有记录
+    static final int REJECTED = 3;
+
+    private static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    private final Ring<E>[] rings;
+    private final int mask;
+
+    StripedReadBuffer() {
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() - 1) << 1;
+        stripes = Math.max(stripes, 1);
+        rings = newRings(stripes);
+        for (int i = 0; i < stripes; i++) {
+            rings[i] = new Ring<>();
+        }
+        mask = stripes - 1;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <E> Ring<E>[] newRings(int length) {
+        return new Ring[length];
+    }
+
+    int offer(E e) {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        Ring<E> ring = rings[(int) (id >>> 32) & mask];
+        long head = ring.readCounter;
+        long tail = ring.writeCounter.get();
+        long size = tail - head;
+        if (size >= BUFFER_SIZE) {
+            return REJECTED;
+        }
+        if (ring.writeCounter.compareAndSet(tail, tail + 1)) {
+            ring.slots.lazySet((int) (tail & BUFFER_MASK), e);
+            return (size + 1 == BUFFER_SIZE) ? FULL : SUCCESS;
+        }
+        return FAILED;
+    }
+
+    /**
+     * 取出所有已记录的元素。只能由持有 evictionLock 的线程调用。
+     */
+    void drainTo(Consumer<E> consumer) {
+        for (Ring<E> ring : rings) {
+            long head = ring.readCounter;
+            long tail = ring.writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & BUFFER_MASK);
+                E e = ring.slots.get(index);
+                if (e == null) {
+                    // 写线程已经占了位置，但还没有写入元素，下次再处理
+                    break;
+                }
+                ring.slots.lazySet(index, null);
+                consumer.accept(e);
+            }
+            ring.readCounter = head;
+        }
+    }
+
+    static final class Ring<E> {
+        // 前后填充，防止不同段的计数器落在同一个缓存行上（伪共享）
+        long p0, p1, p2, p3, p4, p5, p6;
+        volatile long readCounter;
+        final AtomicLong writeCounter = new AtomicLong();
+        final AtomicReferenceArray<E> slots = new AtomicReferenceArray<>(BUFFER_SIZE);
+        long q0, q1, q2, q3, q4, q5, q6;
+    }
+}
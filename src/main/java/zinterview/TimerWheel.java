@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Modified: adapted from com.github.benmanes.caffeine.cache.TimerWheel
+ * (works on CacheNode, expiry decided by a Predicate passed to advance).
+ */
+package zinterview;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * 分层时间轮，用于 ConcurrentCache 的过期处理。
+ *
+ * 如果每次维护都去扫描所有的节点来判断是否过期，代价是 O(n) 的。时间轮则像钟表一样，把节点按过期时间挂到对应的桶中，时间前进
+ * 时只处理已经走过的桶，所以每个节点的调度与过期都是 O(1) 的。
+ *
+ * 分层是为了兼顾精度与跨度：第一层每个桶约 1 秒（共 64 个桶），第二层每个桶约 1 分钟，第三层约 1 小时，第四层约 1 天，最后一
+ * 层只有一个桶。过期时间较远的节点先放在上层的粗粒度桶中，等上层的桶到期时再重新调度到下层更精确的桶中（即降级）。
+ *
+ * 桶中的链表使用节点上的 prevInVariable，nextInVariable 字段，不需要额外分配对象。只能在持有 evictionLock 时使用。
+ *
+ * 实现改编自 Caffeine（https://github.com/ben-manes/caffeine）的 TimerWheel，各层的桶数 BUCKETS 与跨度 SPANS 与其相同，
+ * 遵循 Apache License 2.0，见文件头。
+ */
+final class TimerWheel<K, V> {
+
+    private static final int[] BUCKETS = {64, 64, 32, 4, 1};
+    private static final long[] SPANS = {
+            ceilingPowerOfTwo(TimeUnit.SECONDS.toNanos(1)), // 1.07 秒
+            ceilingPowerOfTwo(TimeUnit.MINUTES.toNanos(1)), // 1.14 分钟
+            ceilingPowerOfTwo(TimeUnit.HOURS.toNanos(1)),   // 1.22 小时
+            ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),    // 1.63 天
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)), // 6.5 天
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)), // 6.5 天
+    };
+    private static final long[] SHIFT = {
+            Long.numberOfTrailingZeros(SPANS[0]),
+            Long.numberOfTrailingZeros(SPANS[1]),
+            Long.numberOfTrailingZeros(SPANS[2]),
+            Long.numberOfTrailingZeros(SPANS[3]),
+            Long.numberOfTrailingZeros(SPANS[4]),
+    };
+
+    private final CacheNode<K, V>[][] wheel;
+    // 时间轮当前的时间
+    private long nanos;
+
+    TimerWheel(long nanos) {
+        this.nanos = nanos;
+        wheel = newWheel();
+        for (int i = 0; i < wheel.length; i++) {
+            for (int j = 0; j < wheel[i].length; j++) {
+                CacheNode<K, V> sentinel = new CacheNode<>(null, null);
+                sentinel.prevInVariable = sentinel;
+                sentinel.nextInVariable = sentinel;
+                wheel[i][j] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * 不能直接创建泛型数组，只在这里创建原始类型的数组再转换
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <K, V> CacheNode<K, V>[][] newWheel() {
+        CacheNode[][] wheel = new CacheNode[BUCKETS.length][];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new CacheNode[BUCKETS[i]];
+        }
+        return wheel;
+    }
+
+    /**
+     * 时间前进到 currentTimeNanos，处理所有走过的桶。expire 返回 false 表示节点实际还没有过期（例如之后又被访问过），这时
+     * 重新调度该节点。
+     */
+    void advance(long currentTimeNanos, Predicate<CacheNode<K, V>> expire) {
+        long previousTimeNanos = nanos;
+        nanos = currentTimeNanos;
+
+        // System.nanoTime 可能为负数，跨过 0 时整体平移，使得无符号右移后的计数仍然是递增的
+        if ((previousTimeNanos < 0) && (currentTimeNanos > 0)) {
+            previousTimeNanos += Long.MAX_VALUE;
+            currentTimeNanos += Long.MAX_VALUE;
+        }
+        for (int i = 0; i < SHIFT.length; i++) {
+            long previousTicks = (previousTimeNanos >>> SHIFT[i]);
+            long currentTicks = (currentTimeNanos >>> SHIFT[i]);
+            long delta = currentTicks - previousTicks;
+            if (delta <= 0L) {
+                break;
+            }
+            expire(i, previousTicks, delta, expire);
+        }
+    }
+
+    private void expire(int index, long previousTicks, long delta, Predicate<CacheNode<K, V>> expire) {
+        CacheNode<K, V>[] timerWheel = wheel[index];
+        int mask = timerWheel.length - 1;
+        int steps = (int) Math.min(1 + delta, timerWheel.length);
+        int start = (int) (previousTicks & mask);
+        int end = start + steps;
+
+        for (int i = start; i < end; i++) {
+            CacheNode<K, V> sentinel = timerWheel[i & mask];
+            CacheNode<K, V> node = sentinel.nextInVariable;
+            sentinel.prevInVariable = sentinel;
+            sentinel.nextInVariable = sentinel;
+
+            while (node != sentinel) {
+                CacheNode<K, V> next = node.nextInVariable;
+                node.prevInVariable = null;
+                node.nextInVariable = null;
+                if ((node.variableTime - nanos) > 0 || !expire.test(node)) {
+                    schedule(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * 按 node.variableTime 把节点挂到对应的桶中。如果节点已经在时间轮中，则先移除。
+     */
+    void schedule(CacheNode<K, V> node) {
+        deschedule(node);
+        CacheNode<K, V> sentinel = findBucket(node.variableTime);
+        node.nextInVariable = sentinel;
+        node.prevInVariable = sentinel.prevInVariable;
+        sentinel.prevInVariable.nextInVariable = node;
+        sentinel.prevInVariable = node;
+    }
+
+    void deschedule(CacheNode<K, V> node) {
+        if (node.nextInVariable != null) {
+            node.nextInVariable.prevInVariable = node.prevInVariable;
+            node.prevInVariable.nextInVariable = node.nextInVariable;
+            node.nextInVariable = null;
+            node.prevInVariable = null;
+        }
+    }
+
+    private CacheNode<K, V> findBucket(long time) {
+        long duration = time - nanos;
+        int length = wheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                long ticks = (time >>> SHIFT[i]);
+                int index = (int) (ticks & (wheel[i].length - 1));
+                return wheel[i][index];
+            }
+        }
+        return wheel[length][0];
+    }
+
+    private static long ceilingPowerOfTwo(long x) {
+        return 1L << -Long.numberOfLeadingZeros(x - 1);
+    }
+}
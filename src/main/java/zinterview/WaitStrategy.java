@@ -0,0 +1,161 @@
+package zinterview;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 缓冲区满了（空了）时，生产者（消费者）的等待方式。可以在创建 RingBuffer，BoundedBuffer 时指定。
+ *
+ * 延迟与 CPU 的取舍（测试结果参考 BufferBenchmark.t3）：
+ * busySpin：一直自旋检查，延迟最低（只有缓存行在 CPU 核之间传递的时间），但等待期间一直占满一个 CPU 核。只适用于线程数少于
+ * CPU 核数，并且线程绑定了 CPU 核的场景，否则自旋的线程会抢走生产者的时间片，延迟反而更高。
+ * yielding：先自旋，再 Thread.yield。延迟接近 busySpin，没有其他线程要运行时仍然会占满 CPU，但可以把时间片让给其他线程。
+ * sleeping：先自旋，再 yield，最后 park，park 的时间逐步加长（最长 1 毫秒）。空闲时几乎不占 CPU，但等待久了之后被唤醒的延迟
+ * 取决于 park 的时间。这是 RingBuffer 默认的方式。
+ * blocking：使用 ReentrantLock + Condition，延迟最高（需要操作系统唤醒线程，通常为几十微秒），但空闲时完全不占 CPU。
+ *
+ * waitUntil 会反复调用 condition，直到它返回 true 为止，所以 condition 可以直接就是一次存取的尝试（例如 offer）。
+ * 只有 blocking 需要在条件变化时被通知，其他方式的 signalAllWhenBlocking 什么都不做。
+ */
+public interface WaitStrategy {
+
+    /**
+     * 等待，直到 condition 返回 true。
+     */
+    void waitUntil(BooleanSupplier condition) throws InterruptedException;
+
+    /**
+     * 缓冲区的状态发生了变化（放入或者取出了元素），唤醒阻塞等待的线程。
+     */
+    void signalAllWhenBlocking();
+
+    static WaitStrategy busySpin() {
+        return new BusySpin();
+    }
+
+    static WaitStrategy yielding() {
+        return new Yielding();
+    }
+
+    static WaitStrategy sleeping() {
+        return new Sleeping();
+    }
+
+    static WaitStrategy blocking() {
+        return new Blocking();
+    }
+
+
+    final class BusySpin implements WaitStrategy {
+        @Override
+        public void waitUntil(BooleanSupplier condition) throws InterruptedException {
+            while (!condition.getAsBoolean()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        @Override
+        public void signalAllWhenBlocking() {
+        }
+    }
+
+
+    final class Yielding implements WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+
+        @Override
+        public void waitUntil(BooleanSupplier condition) throws InterruptedException {
+            for (int tries = 0; !condition.getAsBoolean(); tries++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (tries >= SPIN_TRIES) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        @Override
+        public void signalAllWhenBlocking() {
+        }
+    }
+
+
+    final class Sleeping implements WaitStrategy {
+        // 先自旋，再 yield，最后 park，park 的时间逐步加长（最长 1 毫秒）
+        private static final int SPIN_TRIES = 100;
+        private static final int YIELD_TRIES = 200;
+        private static final long MAX_PARK_NANOS = 1000000;
+
+        @Override
+        public void waitUntil(BooleanSupplier condition) throws InterruptedException {
+            for (int tries = 0; !condition.getAsBoolean(); tries++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (tries < SPIN_TRIES) {
+                    continue;
+                }
+                if (tries < YIELD_TRIES) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(Math.min(1L << Math.min(tries - YIELD_TRIES, 20), MAX_PARK_NANOS));
+                }
+            }
+        }
+
+        @Override
+        public void signalAllWhenBlocking() {
+        }
+    }
+
+
+    /**
+     * 只有在有线程等待时，signalAllWhenBlocking 才去加锁唤醒，否则只是一次 getAndSet。
+     * 等待的线程先把 signalNeeded 设为 true，再检查条件；通知的线程先修改缓冲区，再 getAndSet 检查 signalNeeded。两边都是先写后读，
+     * 所以至少有一边能看到对方的修改，不会出现条件已经满足而等待的线程没有被唤醒的情况。
+     * 另外 await 设置了超时时间，作为防御：即使漏掉了一次唤醒，最多也只是多等待 1 毫秒。
+     */
+    final class Blocking implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final AtomicBoolean signalNeeded = new AtomicBoolean();
+
+        @Override
+        public void waitUntil(BooleanSupplier condition) throws InterruptedException {
+            if (condition.getAsBoolean()) {
+                return;
+            }
+            lock.lock();
+            try {
+                while (true) {
+                    signalNeeded.set(true);
+                    if (condition.getAsBoolean()) {
+                        return;
+                    }
+                    changed.await(1, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signalAllWhenBlocking() {
+            if (signalNeeded.getAndSet(false)) {
+                lock.lock();
+                try {
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}